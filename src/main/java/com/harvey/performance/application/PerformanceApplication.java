@@ -3,10 +3,22 @@ package com.harvey.performance.application;
 import com.harvey.performance.application.factory.CloudFactory;
 import com.harvey.performance.application.interfaces.BaseCloudService;
 import com.harvey.performance.enums.CloudTypeEnum;
+import com.harvey.performance.enums.TransferModeEnum;
 import com.harvey.performance.exception.PerformanceException;
+import com.harvey.performance.jschutils.JschChannelPool;
+import com.harvey.performance.jschutils.ExecResult;
+import com.harvey.performance.jschutils.IncrementalSync;
 import com.harvey.performance.jschutils.JschExecUtil;
-import com.harvey.performance.jschutils.JschSftpUtil;
+import com.harvey.performance.jschutils.JschSessionPool;
 import com.harvey.performance.jschutils.JschUtil;
+import com.harvey.performance.jschutils.LineSink;
+import com.harvey.performance.jschutils.RangedDownload;
+import com.harvey.performance.jschutils.RollingFileLineSink;
+import com.harvey.performance.jschutils.TreeDistributor;
+import com.harvey.performance.jschutils.UploadScheduler;
+import com.harvey.performance.metrics.MetricsRegistry;
+import com.harvey.performance.utils.ArtifactCache;
+import com.harvey.performance.utils.Futures;
 import com.jcraft.jsch.*;
 import lombok.Data;
 import org.apache.tools.ant.util.FileUtils;
@@ -16,11 +28,15 @@ import org.testng.collections.CollectionUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 /**
  * @author harvey
@@ -48,11 +64,46 @@ public class PerformanceApplication {
      */
     private final String REMOTE_JMETER_ROOT = "/usr/local/JmeterTest/";
 
+    /**
+     * 压测机上存放制品的目录
+     */
+    private final String REMOTE_ARTIFACT_ROOT = REMOTE_JMETER_ROOT + ".artifacts/";
+
+    /**
+     * apache-jmeter目录下记录配置指纹的文件
+     */
+    private final String FINGERPRINT_FILE = ".provision_fingerprint";
+
+    /**
+     * 探测时表示压测机上没有安装JMeter
+     */
+    private final String JMETER_MISSING = "__jmeter_missing__";
+
     /**
      *
      */
     private final String REPORT_PATH = "/src/main/resources/JmeterReport/";
 
+    /**
+     * 各阶段耗时的指标名
+     */
+    private static final String PHASE_METRIC = "run_phase_seconds";
+
+    /**
+     * 单台压测机各步骤耗时的指标名
+     */
+    private static final String NODE_STAGE_METRIC = "node_stage_seconds";
+
+    /**
+     *
+     */
+    private final int JMETER_SERVER_PORT = 1099;
+
+    /**
+     * 等待jmeter-server启动的最长时间
+     */
+    private final long JMETER_SERVER_START_TIMEOUT = 1000 * 60;
+
     /**
      *
      */
@@ -73,6 +124,11 @@ public class PerformanceApplication {
      */
     private int expireHour = 1;
 
+    /**
+     * 实例池中空闲实例保留的分钟数：大于0时压测结束后实例归还到池中，下次压测优先租用，不能少于30；小于等于0时不使用实例池
+     */
+    private int poolIdleMinutes = 0;
+
     /**
      *
      */
@@ -103,6 +159,81 @@ public class PerformanceApplication {
      */
     private String password = "YOUR_SSH_PASSWORD";
 
+    /**
+     * 压测机命令输出的日志目录，按host滚动写入；为空时打印到控制台
+     */
+    private String remoteLogPath = null;
+
+    /**
+     * 并发连接压测机的线程数
+     */
+    private int connectParallelism = JschUtil.DEFAULT_CONNECT_PARALLELISM;
+
+    /**
+     * 单台压测机建立连接的截止时间（毫秒）
+     */
+    private long connectTimeout = JschUtil.DEFAULT_CONNECT_DEADLINE;
+
+    /**
+     * 同时上传文件的压测机数量
+     */
+    private int uploadConcurrency = UploadScheduler.DEFAULT_CONCURRENCY;
+
+    /**
+     * 是否增量上传：只上传压测机上缺失或内容有变化的文件
+     */
+    private boolean incrementalUpload = true;
+
+    /**
+     * 文件上传方式，AUTO：按采样压缩率为每个文件选择原样上传或gzip压缩上传
+     */
+    private TransferModeEnum transferMode = TransferModeEnum.AUTO;
+
+    /**
+     * 单个文件的上传方式，key：jmx或resourceFilePath中的本地源文件路径，value：该文件的上传方式；未指定的文件使用transferMode
+     */
+    private Map<String, TransferModeEnum> fileTransferModes = new HashMap<>();
+
+    /**
+     * 分段并行下载报告文件时同时下载的分段数
+     */
+    private int downloadParallelism = RangedDownload.DEFAULT_PARALLELISM;
+
+    /**
+     * 压测机无法计算报告文件的sha256时是否仍接受下载结果（只校验文件大小），默认下载失败
+     */
+    private boolean allowUnverifiedDownload = false;
+
+    /**
+     * 资源文件是否使用树形分发：只上传一次到master，其余压测机通过内网从已有文件的压测机拉取
+     */
+    private boolean treeDistribution = false;
+
+    /**
+     * 树形分发时每台压测机同时服务的压测机数量
+     */
+    private int distributionFanout = TreeDistributor.DEFAULT_FANOUT;
+
+    /**
+     * 运行指标的导出目录，每次运行结束时写入Prometheus文本和JSON快照
+     */
+    private String metricsPath = System.getProperty("user.dir") + REPORT_PATH + "metrics";
+
+    /**
+     * 本地制品缓存目录
+     */
+    private String artifactCacheDir = ArtifactCache.DEFAULT_CACHE_DIR;
+
+    /**
+     * JMeter安装包的sha256，为空时按Apache发布的官方sha512校验后记录
+     */
+    private String jmeterSha256 = null;
+
+    /**
+     * 额外安装的插件和依赖jar，例如 ArtifactCache.Artifact.plugin(dubbo插件地址, sha256)
+     */
+    private List<ArtifactCache.Artifact> extraArtifacts = new ArrayList<>();
+
     /**
      *
      */
@@ -125,202 +256,339 @@ public class PerformanceApplication {
         String jmxAbsolutePath = localAbsolutePath(srcJmx);
         boolean downloadFlag = false;
         LOG.info("当前指定的jmx文件路径为：[{}]", jmxAbsolutePath);
+        long phaseStart = System.nanoTime();
+        BaseCloudService cloudService = null;
+        String idList = null;
+        Thread releaseHook = null;
         if (!CollectionUtils.hasElements(hostList)) {
             downloadFlag = true;
-            BaseCloudService cloudService = CloudFactory.createCloudService(CloudTypeEnum.aliyun, region);
-            String idList = cloudService.runInstances(instanceCount, expireHour);
-            LOG.info("等待实例创建完成");
-            hostList = cloudService.ipAddressQuery(idList);
+            cloudService = CloudFactory.createCloudService(CloudTypeEnum.aliyun, region, poolIdleMinutes);
+            idList = cloudService.runInstances(instanceCount, expireHour);
+            releaseHook = releaseOnShutdown(cloudService, idList);
         } else {
             LOG.info("hostList已指定，不在重新申请实例");
         }
-        List<Session> sessionList = connectInstances(hostList);
-        Session masterSession = null;
-        if (null == masterHost) {
-            masterSession = sessionList.get(0);
-            masterHost = sessionList.get(0).getHost();
-        } else {
-            for (Session session : sessionList) {
-                if (masterHost.equals(session.getHost())) {
-                    masterSession = session;
-                    break;
+        try {
+            List<CompletableFuture<String>> readyHosts = new ArrayList<>();
+            if (null != idList) {
+                LOG.info("等待实例创建完成，每台实例就绪后立即开始连接和配置");
+                readyHosts = cloudService.awaitInstances(idList);
+                Futures.allOf(readyHosts)
+                        .whenComplete((r, e) -> MetricsRegistry.getInstance().observeSince(PHASE_METRIC, phaseStart, "phase", "provision"));
+            } else {
+                for (String host : hostList) {
+                    readyHosts.add(CompletableFuture.completedFuture(host));
                 }
             }
+            runOnHosts(downloadFlag, jmxAbsolutePath, readyHosts);
+        } finally {
+            if (null != idList) {
+                releaseInstances(cloudService, idList, releaseHook);
+            }
+            MetricsRegistry.getInstance().export(metricsPath, "metrics-" + START_TIME);
         }
-        uploadFiles(masterSession, sessionList, jmxAbsolutePath);
-        configureSlave(true, masterSession, sessionList);
-        executeCommand(downloadFlag, masterSession);
-        LOG.info("master机IP地址：[{}]", null != masterSession ? masterSession.getHost() : masterHost);
-        LOG.info("slave机IP地址如下：");
-        for (int i = 1; i < sessionList.size(); i++) {
-            System.out.println(sessionList.get(i).getHost());
+    }
+
+    /**
+     * 注册释放实例的shutdown hook，进程在压测过程中退出时也能释放本次申请的实例
+     *
+     * @param cloudService 云服务
+     * @param idList       本次申请的实例id
+     * @return 已注册的hook
+     */
+    private Thread releaseOnShutdown(BaseCloudService cloudService, String idList) {
+        Thread hook = new Thread(() -> {
+            LOG.warn("进程退出，释放实例{}", idList);
+            cloudService.releaseInstances(idList);
+        }, "instance-release");
+        Runtime.getRuntime().addShutdownHook(hook);
+        return hook;
+    }
+
+    /**
+     * 压测结束后立即释放实例；进程正在退出时由shutdown hook释放，这里不再重复释放
+     *
+     * @param cloudService 云服务
+     * @param idList       本次申请的实例id
+     * @param releaseHook  releaseOnShutdown注册的hook
+     */
+    private void releaseInstances(BaseCloudService cloudService, String idList, Thread releaseHook) {
+        boolean removed;
+        try {
+            removed = Runtime.getRuntime().removeShutdownHook(releaseHook);
+        } catch (IllegalStateException e) {
+            removed = false;
+        }
+        if (!removed) {
+            return;
         }
+        long start = System.nanoTime();
+        try {
+            cloudService.releaseInstances(idList);
+        } catch (RuntimeException e) {
+            LOG.error("释放实例失败：{}", idList, e);
+        }
+        MetricsRegistry.getInstance().observeSince(PHASE_METRIC, start, "phase", "teardown");
     }
 
     /**
-     * 在master压测机运行JMeter，调度slave压测
+     * 逐台准备压测机，全部结束后执行压测，结束后归还连接
      *
-     * @param downloadFlag 是否需要下载安装JMeter
-     * @param master master压测机session
+     * @param downloadFlag    是否由本次运行申请实例
+     * @param jmxAbsolutePath JMeter脚本本地路径
+     * @param readyHosts      每台压测机可以连接时完成的future，值为ip
      */
-    private void executeCommand(boolean downloadFlag, Session master) {
-        LOG.info("压测开始");
-        // 判断是否需要重新下载Jmeter包
-        Channel channel = JschSftpUtil.getOneSftpChannel(master);
-        assert channel != null;
+    private void runOnHosts(boolean downloadFlag, String jmxAbsolutePath, List<CompletableFuture<String>> readyHosts) {
+        if (readyHosts.isEmpty()) {
+            throw new PerformanceException("hosts不能为空");
+        }
+        LineSink outputSink = LineSink.CONSOLE;
+        if (null != remoteLogPath) {
+            outputSink = new RollingFileLineSink(remoteLogPath);
+            LOG.info("压测机命令输出将写入[{}]", remoteLogPath);
+        }
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        NodePipeline pipeline = new NodePipeline(downloadFlag, jmxAbsolutePath, outputSink);
         try {
-            ((ChannelSftp) channel).ls(REMOTE_JMETER_ROOT + "apache-jmeter");
-        } catch (SftpException e) {
-            if (2 == e.id) {
-                downloadFlag = true;
-            } else {
-                LOG.warn("调用ChannelSftp.ls()方法失败", e);
+            long phaseStart = System.nanoTime();
+            List<String> slaveHosts = pipeline.run(readyHosts, masterIndex());
+            metrics.observeSince(PHASE_METRIC, phaseStart, "phase", "setup");
+            phaseStart = System.nanoTime();
+            executeCommand(pipeline.master, slaveHosts, outputSink);
+            metrics.observeSince(PHASE_METRIC, phaseStart, "phase", "execute");
+            LOG.info("master机IP地址：[{}]", pipeline.master.getHost());
+            LOG.info("slave机IP地址如下：");
+            for (String host : slaveHosts) {
+                System.out.println(host);
             }
+        } finally {
+            if (outputSink instanceof RollingFileLineSink) {
+                ((RollingFileLineSink) outputSink).close();
+            }
+            pipeline.close();
         }
-        channel = JschExecUtil.getOneExecChannel(master);
-        assert channel != null;
-        JschExecUtil.execCmdOld((ChannelExec) channel, generateCommand(master.getHost(), true, downloadFlag));
-        channel.disconnect();
+    }
+
+    /**
+     * 指定了masterHost和hostList时master为masterHost，否则为第一台压测机
+     *
+     * @return master在压测机列表中的下标
+     */
+    private int masterIndex() {
+        if (null == masterHost || !CollectionUtils.hasElements(hostList)) {
+            return 0;
+        }
+        int index = hostList.indexOf(masterHost);
+        if (index < 0) {
+            throw new PerformanceException("master机不在hostList中：" + masterHost);
+        }
+        return index;
+    }
+
+    /**
+     * 在master压测机运行JMeter，调度slave压测
+     *
+     * @param master master压测机session
+     * @param slaveHosts 准备成功的slave压测机
+     * @param outputSink 命令输出的消费者
+     */
+    private void executeCommand(Session master, List<String> slaveHosts, LineSink outputSink) {
+        LOG.info("压测开始");
+        JschChannelPool channelPool = JschChannelPool.of(master);
+        channelPool.exec(generateCommand(slaveHosts), outputSink).join();
         String reportPath = System.getProperty("user.dir") + REPORT_PATH;
         LOG.info("压测结束，下载报告文件至[{}]", reportPath);
-        channel = JschSftpUtil.getOneSftpChannel(master);
-        assert channel != null;
-        List<String> srcList = new ArrayList<>();
-        srcList.add(REMOTE_CASE_ROOT + START_TIME + ".tar");
-        List<String> dstList = new ArrayList<>();
-        dstList.add(reportPath);
         FileUtils fileUtils = FileUtils.getFileUtils();
         try {
             fileUtils.createNewFile(new File(reportPath),true);
         } catch (IOException e) {
             LOG.error("", e);
         }
-        if (JschSftpUtil.downloadFile((ChannelSftp) channel, srcList, dstList, master.getHost())) {
+        if (RangedDownload.download(master, REMOTE_CASE_ROOT + START_TIME + ".tar", reportPath, downloadParallelism, allowUnverifiedDownload)) {
             LOG.info("已成功下载报告文件至\n[{}]\n请前往查看", reportPath);
         }
     }
 
     /**
-     * 使用命令行配置slave压测机，启动./jmeter-server
+     * 读取压测机上的配置指纹
      *
-     * @param downloadFlag 是否需要下载安装JMeter true:需要下载安装
-     * @param master master压测机session
-     * @param sessions slaver压测机session列表
-     */
-    private void configureSlave(boolean downloadFlag, Session master, List<Session> sessions) {
-        LOG.info("开始执行jmeter下载和配置的cmd命令");
-        ExecutorService threadPool = Executors.newCachedThreadPool();
-        Map<Channel, Session> channelSessionHashMap = JschExecUtil.getExecChannel(sessions);
-        if (null == channelSessionHashMap) {
-            throw new PerformanceException("channel创建失败");
-        }
-        for (Channel channelExec : channelSessionHashMap.keySet()) {
-            if (!master.equals(channelSessionHashMap.get(channelExec))) {
-                threadPool.execute(() -> JschExecUtil.execCmdOld((ChannelExec) channelExec, generateCommand("", false, downloadFlag)));
+     * @param session  压测机session
+     * @param isMaster 是否为master，master的JMeter在REMOTE_JMETER_ROOT下
+     * @return 配置指纹，没有安装JMeter时为JMETER_MISSING
+     */
+    private CompletableFuture<String> probeFingerprint(Session session, boolean isMaster) {
+        String root = isMaster ? "cd " + REMOTE_JMETER_ROOT + " && " : "";
+        return JschChannelPool.of(session).exec(root + "if [ -d apache-jmeter ]; then cat apache-jmeter/"
+                + FINGERPRINT_FILE + " 2>/dev/null; echo; else echo " + JMETER_MISSING + "; fi")
+                .thenApply(result -> result.getStdout().trim());
+    }
+
+    /**
+     * 启动slave压测机的jmeter-server，已在运行的jmeter-server先停止
+     * <p>
+     * 等旧进程退出且JMETER_SERVER_PORT空闲后才启动，否则新进程绑定端口失败，
+     * 而就绪检查会把旧进程占用的端口误认为新进程已就绪
+     *
+     * @param session slave压测机session
+     * @return jmeter-server就绪或启动失败时完成的future
+     */
+    private CompletableFuture<ExecResult> startJmeterServer(Session session) {
+        // [A]的写法避免匹配到执行pkill的shell自身
+        String running = "pgrep -f '[A]pacheJMeter.jar' >/dev/null || (ss -ltn 2>/dev/null || netstat -ltn 2>/dev/null) | grep -q ':"
+                + JMETER_SERVER_PORT + " '";
+        // 每0.2秒检查一次，10秒后强制结束，20秒后仍未退出时失败
+        String stop = "pkill -f '[A]pacheJMeter.jar'; i=0; while " + running + "; do i=$((i+1)); "
+                + "if [ $i -eq 50 ]; then pkill -9 -f '[A]pacheJMeter.jar'; elif [ $i -ge 100 ]; then exit 1; fi; sleep 0.2; done";
+        return JschChannelPool.of(session).exec(stop).thenCompose(stopped -> {
+            if (!stopped.isSuccess()) {
+                return CompletableFuture.completedFuture(new ExecResult(session.getHost(), -1, "",
+                        "旧的jmeter-server未退出或" + JMETER_SERVER_PORT + "端口被占用", stopped.getStartTime(), stopped.getDurationMillis()));
             }
+            return JschExecUtil.startDaemon(session, "cd apache-jmeter/bin && ./jmeter-server",
+                    "apache-jmeter/bin/jmeter-server.out", JMETER_SERVER_PORT, JMETER_SERVER_START_TIMEOUT);
+        });
+    }
+
+    /**
+     * 生成master以JMeter命令行方式运行的command，JMeter已在准备阶段安装和配置
+     *
+     * @param slaveHosts 写入remote_hosts的slave压测机
+     * @return JMeter运行命令
+     */
+    private String generateCommand(List<String> slaveHosts) {
+        StringBuilder cmd = new StringBuilder();
+        cmd.append("cd ").append(REMOTE_JMETER_ROOT).append("apache-jmeter/bin\n");
+        cmd.append("sed -i 's/remote_hosts=.*/remote_hosts=");
+        for (String host : slaveHosts) {
+            cmd.append(host).append(":1099,");
         }
-        threadPool.shutdown();
-        try {
-            while (true) {
-                if (threadPool.awaitTermination(10, TimeUnit.SECONDS)) {
-                    break;
-                }
-            }
-        } catch (InterruptedException e) {
-            LOG.info(e.getMessage());
+        cmd.append("/g' jmeter.properties\n");
+        if (null == params) {
+            params = defaultParams();
+        }
+        cmd.append("./jmeter");
+        for (String param : params.keySet()) {
+            cmd.append(" ").append(param).append(" ").append(params.get(param));
         }
+        cmd.append("\n");
+        cmd.append("cd ").append(REMOTE_CASE_ROOT).append("\n");
+        cmd.append("tar -cf ").append(START_TIME).append(".tar ").append(START_TIME).append("\n");
+        LOG.info("master机的命令为");
+        System.out.println(cmd.toString());
+        return cmd.toString();
+    }
 
-        LOG.info("启动slave机的jmeter-server");
-        ExecutorService threadPool2 = Executors.newCachedThreadPool();
-        channelSessionHashMap = JschExecUtil.getExecChannel(sessions);
-        assert channelSessionHashMap != null;
-        for (Channel channelExec : channelSessionHashMap.keySet()) {
-            if (!master.equals(channelSessionHashMap.get(channelExec))) {
-                threadPool2.execute(() -> JschExecUtil.execCmd((ChannelExec) channelExec, "cd apache-jmeter/bin\n" + "./jmeter-server\n"));
-            }
+    /**
+     * 安装和配置JMeter的命令，在JMeter的上级目录执行，全部成功后写入配置指纹
+     *
+     * @param isMaster 是否为master的配置
+     * @param artifactPaths 制品的本地路径，用于计算配置指纹
+     * @return 以 && 连接的命令
+     */
+    private String provisionCommand(boolean isMaster, List<String> artifactPaths) {
+        List<String> commands = new ArrayList<>(installCommands());
+        commands.add("cd apache-jmeter/bin");
+        commands.addAll(configureCommands(isMaster));
+        commands.add(recordFingerprintCommand(isMaster, artifactPaths));
+        commands.add("cd ../..");
+        return String.join(" && ", commands);
+    }
+
+    /**
+     * 写入配置指纹的命令，在apache-jmeter/bin目录执行
+     *
+     * @param isMaster 是否为master的配置
+     * @param artifactPaths 制品的本地路径，用于计算配置指纹
+     * @return 写入命令
+     */
+    private String recordFingerprintCommand(boolean isMaster, List<String> artifactPaths) {
+        return "echo " + fingerprint(isMaster, artifactPaths) + " > ../" + FINGERPRINT_FILE;
+    }
+
+    /**
+     * 在apache-jmeter/bin目录执行的JVM和jmeter.properties配置命令
+     *
+     * @param isMaster 是否为master的配置
+     * @return 配置命令
+     */
+    private List<String> configureCommands(boolean isMaster) {
+        List<String> commands = new ArrayList<>();
+        commands.add("sed -i 's/: \"${HEAP:=\"-Xms1g -Xmx1g -XX:MaxMetaspaceSize=256m\"}/: \"${HEAP:=\"-Xms8g -Xmx8g -XX:MaxMetaspaceSize=256m\"}/g' jmeter");
+        if (!isMaster) {
+            commands.add("sed -i 's/#server_port=1099/server_port=1099/g' jmeter.properties");
+            commands.add("sed -i 's/#server.rmi.localport=4000/server.rmi.localport=4000/g' jmeter.properties");
+        }
+        commands.add("sed -i 's/#tcp.charset=/tcp.charset=UTF-8/g' jmeter.properties");
+        commands.add("sed -i 's/#server.rmi.ssl.disable=false/server.rmi.ssl.disable=true/g' jmeter.properties");
+        return commands;
+    }
+
+    /**
+     * 配置指纹：安装和配置命令以及所有制品内容的sha256，任何一项变化都会导致重新配置
+     *
+     * @param isMaster 是否为master的配置
+     * @param artifactPaths 制品的本地路径
+     * @return 十六进制指纹
+     */
+    private String fingerprint(boolean isMaster, List<String> artifactPaths) {
+        StringBuilder builder = new StringBuilder();
+        for (String command : installCommands()) {
+            builder.append(command).append('\n');
+        }
+        for (String command : configureCommands(isMaster)) {
+            builder.append(command).append('\n');
+        }
+        for (String path : artifactPaths) {
+            builder.append(IncrementalSync.getInstance().digest(path)).append('\n');
         }
-        threadPool2.shutdown();
         try {
-            while (true) {
-                if (threadPool2.awaitTermination(10, TimeUnit.SECONDS)) {
-                    break;
-                }
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(builder.toString().getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
             }
-        } catch (InterruptedException e) {
-            LOG.info(e.getMessage());
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new PerformanceException("不支持SHA-256");
         }
     }
 
     /**
-     * 生成JMeter命令行方式运行的command
+     * 所有需要安装的制品，第一个为JMeter安装包
      *
-     * @param masterHost master的IP
-     * @param isMaster 是否返回master的命令
-     * @param downloadFlag 是否需要下载安装JMeter true:需要下载安装
-     * @return JMeter运行命令
+     * @return 制品列表
      */
-    private String generateCommand(String masterHost, boolean isMaster, boolean downloadFlag) {
-        String downloadJmeterPackage = "wget -N http://mirror-hk.koddos.net/apache//jmeter/binaries/apache-jmeter-5.2.tgz\n";
-        String uncompressJmeterPackage = "tar -xf apache-jmeter-5.2.tgz\n";
-        String renameJmeterFile = "mv apache-jmeter-5.2 apache-jmeter\n";
-        String enterJmeterBin = "cd apache-jmeter/bin\n";
-        String downloadFastJson = "wget -N http://repo1.maven.org/maven2/com/alibaba/fastjson/1.2.58/fastjson-1.2.58.jar -P apache-jmeter/lib/\n";
-        String configureJvm = "sed -i 's/: \"${HEAP:=\"-Xms1g -Xmx1g -XX:MaxMetaspaceSize=256m\"}/: \"${HEAP:=\"-Xms8g -Xmx8g -XX:MaxMetaspaceSize=256m\"}/g' jmeter\n";
-        String removeDubboPlugin = "cp -f /root/jmeter-plugins-dubbo-2.7.1-jar-with-dependencies.jar /root/apache-jmeter/lib/ext/jmeter-plugins-dubbo-2.7.1-jar-with-dependencies.jar\n";
-        String configureJmeterSeverPort = "sed -i 's/#server_port=1099/server_port=1099/g' jmeter.properties\n";
-        String configureJmeterLocalPort = "sed -i 's/#server.rmi.localport=4000/server.rmi.localport=4000/g' jmeter.properties\n";
-        String configureJmeterTcpCharset = "sed -i 's/#tcp.charset=/tcp.charset=UTF-8/g' jmeter.properties\n";
-        String configureJmeterSeverSsl = "sed -i 's/#server.rmi.ssl.disable=false/server.rmi.ssl.disable=true/g' jmeter.properties\n";
-        StringBuilder cmd = new StringBuilder();
-        if (isMaster) {
-            cmd.append("cd ").append(REMOTE_JMETER_ROOT).append("\n");
-            if (downloadFlag) {
-                cmd.append(downloadJmeterPackage);
-                cmd.append(uncompressJmeterPackage);
-                cmd.append(renameJmeterFile);
-            }
-//            cmd.append(downloadFastJson);
-            cmd.append(enterJmeterBin);
-            cmd.append(configureJvm);
-//            cmd.append(removeDubboPlugin);
-            cmd.append(configureJmeterTcpCharset);
-            cmd.append(configureJmeterSeverSsl);
-            cmd.append("sed -i 's/remote_hosts=.*/remote_hosts=");
-            for (String host : hostList) {
-                if (!masterHost.equals(host)) {
-                    cmd.append(host).append(":1099,");
-                }
-            }
-            cmd.append("/g' jmeter.properties\n");
-            if (null == params) {
-                params = defaultParams();
-            }
-            cmd.append("./jmeter");
-            for (String param : params.keySet()) {
-                cmd.append(" ").append(param).append(" ").append(params.get(param));
-            }
-            cmd.append("\n");
-            cmd.append("cd ").append(REMOTE_CASE_ROOT).append("\n");
-            cmd.append("tar -cf ").append(START_TIME).append(".tar ").append(START_TIME).append("\n");
-            LOG.info("master机的命令为");
-            System.out.println(cmd.toString());
-            return cmd.toString();
-        } else {
-            if (downloadFlag) {
-                cmd.append(downloadJmeterPackage);
-                cmd.append(uncompressJmeterPackage);
-                cmd.append(renameJmeterFile);
+    private List<ArtifactCache.Artifact> artifacts() {
+        List<ArtifactCache.Artifact> artifacts = new ArrayList<>();
+        artifacts.add(ArtifactCache.Artifact.jmeter(jmeterSha256));
+        if (null != extraArtifacts) {
+            artifacts.addAll(extraArtifacts);
+        }
+        return artifacts;
+    }
+
+    /**
+     * 生成从压测机上的制品目录安装JMeter和额外制品的命令，在JMeter的上级目录执行
+     *
+     * @return 安装命令
+     */
+    private List<String> installCommands() {
+        List<String> commands = new ArrayList<>();
+        String unpacked = "apache-jmeter-" + ArtifactCache.JMETER_VERSION;
+        for (ArtifactCache.Artifact artifact : artifacts()) {
+            String remote = JschExecUtil.shellQuote(REMOTE_ARTIFACT_ROOT + artifact.getFileName());
+            if (null == artifact.getInstallDir()) {
+                // 重新安装时清除旧的安装目录，避免解压到已有目录中
+                commands.add("rm -rf apache-jmeter " + unpacked);
+                commands.add("tar -xf " + remote);
+                commands.add("mv " + unpacked + " apache-jmeter");
+            } else {
+                String dir = JschExecUtil.shellQuote("apache-jmeter/" + artifact.getInstallDir());
+                commands.add("mkdir -p " + dir);
+                commands.add("cp -f " + remote + " " + dir);
             }
-//            cmd.append(downloadFastJson);
-            cmd.append(enterJmeterBin);
-            cmd.append(configureJvm);
-//            cmd.append(removeDubboPlugin);
-            cmd.append(configureJmeterSeverPort);
-            cmd.append(configureJmeterLocalPort);
-            cmd.append(configureJmeterTcpCharset);
-            cmd.append(configureJmeterSeverSsl);
-            return cmd.toString();
         }
+        return commands;
     }
 
     /**
@@ -343,91 +611,368 @@ public class PerformanceApplication {
     }
 
     /**
-     * 上传文件至压测机
+     * 将path转换为本地的绝对路径
      *
-     * @param master   master压测机的session
-     * @param sessions 所有session的列表
-     * @param srcJmx   JMeter脚本本地路径
+     * @param path 路径
+     * @return 本地绝对路径
      */
-    private void uploadFiles(Session master, List<Session> sessions, String srcJmx) {
-        LOG.info("在master机器创建dstFile文件夹");
-        Channel channel = JschExecUtil.getOneExecChannel(master);
-        if (null == channel) {
-            throw new PerformanceException("channel创建失败");
+    private String localAbsolutePath(String path) {
+        if (FileUtils.isAbsolutePath(path)) {
+            LOG.error("{}路径不存在", path);
+            return null;
         }
-        String dstFile = REMOTE_CASE_ROOT + START_TIME + "/";
-        JschExecUtil.execCmdOld((ChannelExec) channel, "mkdir -p -v " + dstFile);
-        LOG.info("开始上传文件到实例");
-        List<String> masterSrcList = new ArrayList<>();
-        masterSrcList.add(srcJmx);
-        List<String> masterDstList = new ArrayList<>();
-        masterDstList.add(dstFile);
-        List<String> slaveSrcList = null;
-        List<String> slaveDstList = null;
-        if (null != resourceFilePath) {
-            slaveSrcList = new ArrayList<>();
-            slaveDstList = new ArrayList<>();
-            Set<Map.Entry<String, String>> entrySet = resourceFilePath.entrySet();
-            for (Map.Entry<String, String> entry : entrySet) {
-                masterSrcList.add(localAbsolutePath(entry.getKey()));
-                slaveSrcList.add(localAbsolutePath(entry.getKey()));
-                masterDstList.add(entry.getValue());
-                slaveDstList.add(entry.getValue());
+        return path;
+    }
+
+    /**
+     * 一次运行中所有压测机的准备流水线：每台压测机就绪后立即连接、上传和配置，不等待其它压测机
+     * <p>
+     * 配置指纹一致的压测机不需要制品，直接启动jmeter-server；第一台需要安装的压测机触发master作为种子节点上传制品，
+     * 其余需要安装的压测机陆续加入分发，准备时间取决于最慢的一台压测机。
+     * slave任一步骤失败时不参与压测，master失败时压测终止
+     */
+    private class NodePipeline {
+
+        private final boolean downloadFlag;
+
+        private final String jmxAbsolutePath;
+
+        private final LineSink outputSink;
+
+        /**
+         * 制品的本地路径，也用于计算配置指纹
+         */
+        private final List<String> artifactSrc = new ArrayList<>();
+
+        private final List<String> artifactDst = new ArrayList<>();
+
+        private final List<String> resourceSrc = new ArrayList<>();
+
+        private final List<String> resourceDst = new ArrayList<>();
+
+        /**
+         * 资源文件是否使用树形分发
+         */
+        private boolean tree;
+
+        /**
+         * 已借出的session，结束时归还
+         */
+        private final List<Session> sessions = Collections.synchronizedList(new ArrayList<>());
+
+        private final UploadScheduler scheduler = new UploadScheduler(uploadConcurrency, incrementalUpload, transferMode, fileTransferModes);
+
+        private final TreeDistributor artifactTree = new TreeDistributor(REMOTE_JMETER_ROOT + ".dist/artifacts",
+                TreeDistributor.DEFAULT_PORT, distributionFanout, transferMode, fileTransferModes);
+
+        /**
+         * 与制品同时分发，使用另一个端口
+         */
+        private final TreeDistributor resourceTree = new TreeDistributor(REMOTE_JMETER_ROOT + ".dist/" + START_TIME,
+                TreeDistributor.DEFAULT_PORT + 1, distributionFanout, transferMode, fileTransferModes);
+
+        private final ExecutorService connectPool = Executors.newFixedThreadPool(Math.max(1, connectParallelism), r -> {
+            Thread thread = new Thread(r, "node-connect");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        /**
+         * master创建目录并开始上传后完成，slave在此之后才能加入树形分发；master失败时以异常完成
+         */
+        private final CompletableFuture<Session> seeded = new CompletableFuture<>();
+
+        /**
+         * master上传制品结束时完成，没有压测机需要安装JMeter时为null
+         */
+        private CompletableFuture<Boolean> artifactSeed;
+
+        private volatile Session master;
+
+        NodePipeline(boolean downloadFlag, String jmxAbsolutePath, LineSink outputSink) {
+            this.downloadFlag = downloadFlag;
+            this.jmxAbsolutePath = jmxAbsolutePath;
+            this.outputSink = outputSink;
+        }
+
+        /**
+         * 启动所有压测机的流水线并等待全部结束
+         *
+         * @param readyHosts  每台压测机可以连接时完成的future
+         * @param masterIndex master的下标
+         * @return 准备成功的slave压测机，不修改配置的hostList，同一实例再次运行时仍使用原配置
+         */
+        List<String> run(List<CompletableFuture<String>> readyHosts, int masterIndex) {
+            resolveArtifacts();
+            if (null != resourceFilePath) {
+                for (Map.Entry<String, String> entry : resourceFilePath.entrySet()) {
+                    resourceSrc.add(localAbsolutePath(entry.getKey()));
+                    resourceDst.add(entry.getValue());
+                }
             }
+            tree = treeDistribution && !resourceSrc.isEmpty() && readyHosts.size() > 1;
+            CompletableFuture<Session> masterFuture = null;
+            List<CompletableFuture<Session>> slaveFutures = new ArrayList<>();
+            List<CompletableFuture<?>> all = new ArrayList<>();
+            for (int i = 0; i < readyHosts.size(); i++) {
+                CompletableFuture<Session> connected = connect(readyHosts.get(i));
+                if (i == masterIndex) {
+                    masterFuture = setupMaster(connected);
+                    all.add(masterFuture);
+                } else {
+                    CompletableFuture<Session> slave = setupSlave(connected);
+                    slaveFutures.add(slave);
+                    all.add(slave);
+                }
+            }
+            try {
+                Futures.allOf(all).exceptionally(e -> null).join();
+            } finally {
+                artifactTree.close();
+                resourceTree.close();
+            }
+            try {
+                masterFuture.join();
+            } catch (CompletionException e) {
+                LOG.error("master机准备失败", e.getCause());
+                throw e.getCause() instanceof PerformanceException ? (PerformanceException) e.getCause()
+                        : new PerformanceException("master机准备失败：" + e.getCause().getMessage());
+            }
+            // 只保留准备成功的slave，避免master将失败的slave写入remote_hosts
+            List<String> slaveHosts = new ArrayList<>();
+            for (CompletableFuture<Session> slave : slaveFutures) {
+                try {
+                    slaveHosts.add(slave.join().getHost());
+                } catch (CompletionException e) {
+                    LOG.warn("压测机准备失败，不参与压测：{}", e.getCause().getMessage());
+                }
+            }
+            LOG.info("[{}/{}]台压测机准备完成", slaveHosts.size() + 1, readyHosts.size());
+            return slaveHosts;
         }
-        // channel与session对应
-        Map<Channel, Session> channelSessionHashMap = JschSftpUtil.getSftpChannel(sessions);
-        if (null == channelSessionHashMap) {
-            throw new PerformanceException("channel创建失败");
-        }
-        ExecutorService threadPool = Executors.newCachedThreadPool();
-        for (Channel channelSftp : channelSessionHashMap.keySet()) {
-            String host = channelSessionHashMap.get(channelSftp).getHost();
-            if (host.equals(master.getHost())) {
-//                threadPool.execute(() -> JschSftpUtil.uploadFile((ChannelSftp) channelSftp, masterSrcList, masterDstList, host));
-                JschSftpUtil.uploadFile((ChannelSftp) channelSftp, masterSrcList, masterDstList, host);
-            } else if (!CollectionUtils.hasElements(slaveSrcList) && !CollectionUtils.hasElements(slaveDstList)) {
-                //                threadPool.execute(() -> JschSftpUtil.uploadFile((ChannelSftp) channelSftp, finalSlaveSrcList, finalSlaveDstList, host));
-                JschSftpUtil.uploadFile((ChannelSftp) channelSftp, slaveSrcList, slaveDstList, host);
+
+        /**
+         * 制品在本机缓存中获取，只上传一次到master，再由master通过内网分发到其余压测机
+         */
+        private void resolveArtifacts() {
+            ArtifactCache cache = new ArtifactCache(artifactCacheDir);
+            for (ArtifactCache.Artifact artifact : artifacts()) {
+                String local = cache.resolve(artifact);
+                if (null == local) {
+                    throw new PerformanceException("制品获取失败：" + artifact.getUrl());
+                }
+                artifactSrc.add(local);
+                // 使用完整的文件路径，与installCommands中的路径一致，不依赖目标为目录时的文件名推断
+                artifactDst.add(REMOTE_ARTIFACT_ROOT + artifact.getFileName());
             }
         }
-        threadPool.shutdown();
-        try {
-            while (true) {
-                if (threadPool.awaitTermination(10, TimeUnit.SECONDS)) {
-                    break;
+
+        private CompletableFuture<Session> connect(CompletableFuture<String> ready) {
+            return ready.thenApplyAsync(host -> {
+                long start = System.nanoTime();
+                try {
+                    Session session = JschSessionPool.getInstance().lease(host, userName, password, connectTimeout);
+                    sessions.add(session);
+                    MetricsRegistry.getInstance().observeSince(NODE_STAGE_METRIC, start, "stage", "connect");
+                    return session;
+                } catch (JSchException e) {
+                    throw new PerformanceException("[" + host + "] 连接失败：" + e.getMessage());
+                }
+            }, connectPool);
+        }
+
+        /**
+         * master：创建目录后读取配置指纹，同时上传jmx和资源文件；
+         * 指纹一致时跳过安装，需要安装时作为种子节点上传制品，与slave的准备同时进行
+         */
+        private CompletableFuture<Session> setupMaster(CompletableFuture<Session> connected) {
+            long[] stageStart = new long[1];
+            String dstFile = REMOTE_CASE_ROOT + START_TIME + "/";
+            return connected.thenCompose(session -> {
+                master = session;
+                stageStart[0] = System.nanoTime();
+                LOG.info("[{}] master已连接，开始上传文件", session.getHost());
+                return JschChannelPool.of(session).exec("mkdir -p " + JschExecUtil.shellQuote(dstFile) + " "
+                        + JschExecUtil.shellQuote(REMOTE_ARTIFACT_ROOT));
+            }).thenCompose(mkdir -> {
+                if (!mkdir.isSuccess()) {
+                    throw new PerformanceException("master机创建目录失败：" + mkdir.getStderr());
+                }
+                List<String> src = new ArrayList<>();
+                List<String> dst = new ArrayList<>();
+                src.add(jmxAbsolutePath);
+                dst.add(dstFile);
+                if (!tree) {
+                    src.addAll(resourceSrc);
+                    dst.addAll(resourceDst);
+                }
+                List<CompletableFuture<Boolean>> uploads = new ArrayList<>();
+                uploads.add(scheduler.submit(master, src, dst));
+                if (tree) {
+                    uploads.add(resourceTree.seed(master, resourceSrc, resourceDst));
                 }
+                seeded.complete(master);
+                CompletableFuture<Boolean> uploaded = allSucceeded(uploads).thenApply(ok -> {
+                    if (!ok) {
+                        throw new PerformanceException("master机文件上传失败");
+                    }
+                    MetricsRegistry.getInstance().observeSince(NODE_STAGE_METRIC, stageStart[0], "stage", "upload");
+                    return true;
+                });
+                long configureStart = System.nanoTime();
+                return probeFingerprint(master, true)
+                        .thenCompose(this::provisionMaster)
+                        .thenApply(provisioned -> {
+                            if (!provisioned) {
+                                throw new PerformanceException("master机JMeter安装和配置失败");
+                            }
+                            MetricsRegistry.getInstance().observeSince(NODE_STAGE_METRIC, configureStart, "stage", "configure");
+                            return true;
+                        }).thenCombine(uploaded, (provisioned, done) -> master);
+            }).whenComplete((session, e) -> {
+                if (null != e) {
+                    seeded.completeExceptionally(e);
+                }
+            });
+        }
+
+        /**
+         * 指纹一致时跳过；没有安装JMeter或由本次运行申请实例时上传制品并重新安装，
+         * 否则只更新已有JMeter的配置，两种情况都写入配置指纹
+         *
+         * @param remote master上的配置指纹
+         * @return true：安装和配置成功
+         */
+        private CompletableFuture<Boolean> provisionMaster(String remote) {
+            if (fingerprint(true, artifactSrc).equals(remote)) {
+                LOG.info("[{}] master配置指纹一致，跳过安装", master.getHost());
+                return CompletableFuture.completedFuture(true);
+            }
+            if (JMETER_MISSING.equals(remote) || downloadFlag) {
+                LOG.info("[{}] master需要安装和配置JMeter", master.getHost());
+                return seedArtifacts(master).thenCompose(uploaded -> {
+                    if (!uploaded) {
+                        throw new PerformanceException("master机制品上传失败");
+                    }
+                    return JschChannelPool.of(master).exec("cd " + REMOTE_JMETER_ROOT + " && "
+                            + provisionCommand(true, artifactSrc), outputSink).thenApply(ExecResult::isSuccess);
+                });
             }
-        } catch (InterruptedException e) {
-            LOG.warn(e.getMessage());
+            LOG.info("[{}] master使用已有的JMeter，只更新配置", master.getHost());
+            List<String> commands = new ArrayList<>(configureCommands(true));
+            commands.add(recordFingerprintCommand(true, artifactSrc));
+            return JschChannelPool.of(master).exec("cd " + REMOTE_JMETER_ROOT + "apache-jmeter/bin && "
+                    + String.join(" && ", commands), outputSink).thenApply(ExecResult::isSuccess);
         }
-    }
 
-    /**
-     * 连接压测机，创建session
-     *
-     * @param hosts 压测机ip列表
-     * @return session列表
-     */
-    private List<Session> connectInstances(List<String> hosts) {
-        if (!CollectionUtils.hasElements(hosts)) {
-            throw new PerformanceException("hosts不能为空");
+        /**
+         * slave：创建目录后读取配置指纹，指纹一致时直接启动jmeter-server，
+         * 否则从树形分发获取制品后重新安装和配置JMeter；资源文件同时上传
+         */
+        private CompletableFuture<Session> setupSlave(CompletableFuture<Session> connected) {
+            return connected.thenCompose(session -> {
+                String host = session.getHost();
+                long stageStart = System.nanoTime();
+                return JschChannelPool.of(session).exec("mkdir -p " + JschExecUtil.shellQuote(REMOTE_ARTIFACT_ROOT))
+                        .thenCompose(mkdir -> {
+                            if (!mkdir.isSuccess()) {
+                                throw new PerformanceException("[" + host + "] 创建目录失败：" + mkdir.getStderr());
+                            }
+                            CompletableFuture<Boolean> uploaded = uploadResources(session).thenApply(ok -> {
+                                if (!ok) {
+                                    throw new PerformanceException("[" + host + "] 文件上传失败");
+                                }
+                                MetricsRegistry.getInstance().observeSince(NODE_STAGE_METRIC, stageStart, "stage", "upload");
+                                return true;
+                            });
+                            long configureStart = System.nanoTime();
+                            return probeFingerprint(session, false).thenCompose(remote -> {
+                                if (fingerprint(false, artifactSrc).equals(remote)) {
+                                    LOG.info("[{}] 配置指纹一致，直接启动jmeter-server", host);
+                                    return CompletableFuture.completedFuture(true);
+                                }
+                                LOG.info("[{}] 配置指纹不一致，重新安装和配置JMeter", host);
+                                return seeded.thenCompose(seed -> {
+                                    seedArtifacts(seed);
+                                    return artifactTree.add(session);
+                                }).thenCompose(distributed -> {
+                                    if (!distributed) {
+                                        throw new PerformanceException("[" + host + "] 制品上传失败");
+                                    }
+                                    return JschChannelPool.of(session).exec(provisionCommand(false, artifactSrc), outputSink)
+                                            .thenApply(ExecResult::isSuccess);
+                                });
+                            }).thenCompose(provisioned -> {
+                                if (!provisioned) {
+                                    throw new PerformanceException("[" + host + "] JMeter安装和配置失败");
+                                }
+                                return startJmeterServer(session);
+                            }).thenApply(server -> {
+                                if (!server.isSuccess()) {
+                                    throw new PerformanceException("[" + host + "] jmeter-server启动失败：" + server.getStderr());
+                                }
+                                MetricsRegistry.getInstance().observeSince(NODE_STAGE_METRIC, configureStart, "stage", "configure");
+                                return server;
+                            }).thenCombine(uploaded, (server, done) -> {
+                                LOG.info("[{}] slave准备完成", host);
+                                return session;
+                            });
+                        });
+            });
+        }
+
+        /**
+         * 上传slave的资源文件，树形分发时等master开始上传后加入分发
+         *
+         * @param session slave压测机session
+         * @return 上传结束时完成的future，true：上传成功
+         */
+        private CompletableFuture<Boolean> uploadResources(Session session) {
+            if (tree) {
+                return seeded.thenCompose(seed -> resourceTree.add(session));
+            }
+            if (resourceSrc.isEmpty()) {
+                return CompletableFuture.completedFuture(true);
+            }
+            return scheduler.submit(session, resourceSrc, resourceDst);
+        }
+
+        /**
+         * 第一台需要安装JMeter的压测机调用时上传制品到master并开始树形分发，
+         * 所有压测机的配置指纹都一致时不上传制品
+         *
+         * @param seed master压测机session
+         * @return master上传制品结束时完成的future，true：上传成功
+         */
+        private synchronized CompletableFuture<Boolean> seedArtifacts(Session seed) {
+            if (null == artifactSeed) {
+                artifactSeed = artifactTree.seed(seed, artifactSrc, artifactDst);
+            }
+            return artifactSeed;
+        }
+
+        /**
+         * 归还连接，同一批压测机再次运行时复用
+         */
+        void close() {
+            scheduler.awaitAll();
+            connectPool.shutdown();
+            synchronized (sessions) {
+                for (Session session : sessions) {
+                    JschSessionPool.getInstance().release(session);
+                }
+            }
         }
-        return JschUtil.getSession(hosts, userName, password);
     }
 
     /**
-     * 将path转换为本地的绝对路径
-     *
-     * @param path 路径
-     * @return 本地绝对路径
+     * @param futures 上传任务
+     * @return 全部成功时为true的future，任一失败时为false
      */
-    private String localAbsolutePath(String path) {
-        if (FileUtils.isAbsolutePath(path)) {
-            LOG.error("{}路径不存在", path);
-            return null;
-        }
-        return path;
+    private static CompletableFuture<Boolean> allSucceeded(List<CompletableFuture<Boolean>> futures) {
+        return Futures.allOf(futures)
+                .thenApply(v -> futures.stream().allMatch(CompletableFuture::join))
+                .exceptionally(e -> false);
     }
 
 }
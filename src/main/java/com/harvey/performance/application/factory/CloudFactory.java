@@ -11,12 +11,22 @@ import com.harvey.performance.application.service.AliyunCloudServiceImpl;
 public class CloudFactory {
 
     public static BaseCloudService createCloudService(CloudTypeEnum cloudTypeEnum, String regionName){
+        return createCloudService(cloudTypeEnum, regionName, 0);
+    }
+
+    /**
+     * @param cloudTypeEnum   云平台类型
+     * @param regionName      地域名称
+     * @param poolIdleMinutes 实例池中空闲实例保留的分钟数，小于等于0时不使用实例池，否则不能少于30
+     * @return 云服务
+     */
+    public static BaseCloudService createCloudService(CloudTypeEnum cloudTypeEnum, String regionName, int poolIdleMinutes){
         if (null == cloudTypeEnum) {
             throw new PerformanceException("cloudTypeEnum不能为空");
         }
         switch (cloudTypeEnum) {
             case aliyun:
-                return new AliyunCloudServiceImpl(regionName);
+                return new AliyunCloudServiceImpl(regionName, poolIdleMinutes);
             default:
                 throw new PerformanceException("cloudType不存在");
         }
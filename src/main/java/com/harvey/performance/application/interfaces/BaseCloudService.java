@@ -3,6 +3,7 @@ package com.harvey.performance.application.interfaces;
 import com.aliyuncs.exceptions.ClientException;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author harvey
@@ -12,7 +13,7 @@ public interface BaseCloudService {
     /**
      * 创建一台或多台云平台ECS实例
      *
-     * @param count      指定创建ECS实例的数量。（阿里云取值范围：1~100，）
+     * @param count      指定创建ECS实例的数量。（阿里云单次调用最多100台，超过时分批创建）
      * @param expireHour 实例过期时间
      * @return 由一个或多个实例ID组成一个JSON数组
      */
@@ -26,4 +27,19 @@ public interface BaseCloudService {
      */
     List<String> ipAddressQuery(String idList);
 
+    /**
+     * 逐台等待一台或多台云平台ECS实例可用，每台实例可用后立即完成对应的future
+     *
+     * @param idList 由一个或多个实例ID组成一个JSON数组。可使用runInstances的返回值。
+     * @return 与idList顺序一致的future，值为实例的内网ip
+     */
+    List<CompletableFuture<String>> awaitInstances(String idList);
+
+    /**
+     * 压测结束后释放实例：使用实例池时归还到池中，否则立即删除实例并确认删除完成
+     *
+     * @param idList 由一个或多个实例ID组成一个JSON数组。可使用runInstances的返回值。
+     */
+    void releaseInstances(String idList);
+
 }
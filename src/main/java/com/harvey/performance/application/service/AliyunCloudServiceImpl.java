@@ -9,7 +9,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author harvey
@@ -31,12 +33,33 @@ public class AliyunCloudServiceImpl implements BaseCloudService {
      */
     private String regionName;
 
+    /**
+     * 等待实例可以建立ssh连接的最长时间（毫秒）
+     */
+    private long readyTimeout = InstanceReadiness.DEFAULT_TIMEOUT;
+
+    /**
+     * 预热实例池，为空时每次都创建新实例
+     */
+    private InstancePool instancePool = null;
+
     public AliyunCloudServiceImpl(String regionName) {
+        this(regionName, 0);
+    }
+
+    /**
+     * @param regionName      地域名称
+     * @param poolIdleMinutes 实例池中空闲实例保留的分钟数，小于等于0时不使用实例池，否则不能少于InstancePool.MIN_IDLE_MINUTES
+     */
+    public AliyunCloudServiceImpl(String regionName, int poolIdleMinutes) {
         if (null == RegionEnum.getRegionId(regionName)) {
             throw new PerformanceException("不支持的regionName");
         }
         this.regionName = regionName;
         initAliyunCloudService();
+        if (poolIdleMinutes > 0) {
+            this.instancePool = new InstancePool(InstancePool.DEFAULT_STATE_PATH, RegionEnum.getRegionId(regionName), poolIdleMinutes, aliEcsUtils);
+        }
     }
 
     private void initAliyunCloudService() {
@@ -55,6 +78,9 @@ public class AliyunCloudServiceImpl implements BaseCloudService {
     @Override
     public String runInstances(int count, int expireHour) {
         checkService();
+        if (null != instancePool) {
+            return leaseInstances(count, expireHour);
+        }
         String idList;
         idList = aliEcsUtils.runInstances(count, expireHour);
         if (null == idList) {
@@ -64,30 +90,49 @@ public class AliyunCloudServiceImpl implements BaseCloudService {
         return idList;
     }
 
+    /**
+     * 优先从实例池租用空闲实例，不足的部分创建新实例并登记到池中
+     */
+    private String leaseInstances(int count, int expireHour) {
+        List<String> ids = new ArrayList<>(instancePool.lease(count, expireHour));
+        int leased = ids.size();
+        if (leased < count) {
+            String created = aliEcsUtils.runInstances(count - leased, expireHour,
+                    Collections.singletonMap(InstancePool.POOL_TAG_KEY, "warm"));
+            if (null == created) {
+                instancePool.giveBack(ids);
+                throw new PerformanceException("AliEcsUtils.runInstances()失败");
+            }
+            List<String> createdIds = JSONArray.parseArray(created, String.class);
+            instancePool.add(createdIds, expireHour);
+            ids.addAll(createdIds);
+        }
+        LOG.info("从实例池租用[{}]台实例，新建[{}]台，实例id：{}", leased, count - leased, ids);
+        return JSONArray.toJSONString(ids);
+    }
+
     @Override
-    public List<String> ipAddressQuery(String idList) {
+    public void releaseInstances(String idList) {
         checkService();
-        LOG.info("等待实例就绪，将等待30s");
-        try {
-            Thread.sleep(1000 * 30);
-        } catch (InterruptedException e) {
-            LOG.error("调用Thread.sleep()失败", e);
-        }
-        int retryTime = 3 + idList.split(",").length;
-        JSONArray jsonArray = JSONArray.parseArray(idList);
-        List<String> ipAddress = new ArrayList<>();
-        for (int i = 0; i < retryTime; i++) {
-            if (aliEcsUtils.getInstancesStatusById(idList, ipAddress, jsonArray.size())) {
-                return ipAddress;
-            }
-            LOG.info("部分实例没有处于running状态，需继续等待，10s后开始查询实例运行状态");
-            try {
-                Thread.sleep(1000 * 10);
-            } catch (InterruptedException e) {
-                LOG.error("调用Thread.sleep()失败", e);
-            }
+        if (null != instancePool) {
+            instancePool.giveBack(JSONArray.parseArray(idList, String.class));
+        } else if (!aliEcsUtils.deleteInstances(idList)) {
+            LOG.warn("部分实例未能立即释放，将按自动释放时间释放：{}", idList);
         }
-        throw new PerformanceException("查询实例信息失败，已尝试查询{" + retryTime + "}次");
+    }
+
+    @Override
+    public List<String> ipAddressQuery(String idList) {
+        checkService();
+        LOG.info("等待实例就绪，最长等待[{}]s", readyTimeout / 1000);
+        return new InstanceReadiness(aliEcsUtils).await(JSONArray.parseArray(idList, String.class), readyTimeout);
+    }
+
+    @Override
+    public List<CompletableFuture<String>> awaitInstances(String idList) {
+        checkService();
+        LOG.info("逐台等待实例就绪，最长等待[{}]s", readyTimeout / 1000);
+        return new InstanceReadiness(aliEcsUtils).watch(JSONArray.parseArray(idList, String.class), readyTimeout);
     }
 
 }
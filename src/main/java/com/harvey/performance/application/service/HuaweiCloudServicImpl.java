@@ -3,6 +3,7 @@ package com.harvey.performance.application.service;
 import com.harvey.performance.application.interfaces.BaseCloudService;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author harvey
@@ -18,4 +19,14 @@ public class HuaweiCloudServicImpl implements BaseCloudService {
         return null;
     }
 
+    @Override
+    public List<CompletableFuture<String>> awaitInstances(String idList) {
+        return null;
+    }
+
+    @Override
+    public void releaseInstances(String idList) {
+
+    }
+
 }
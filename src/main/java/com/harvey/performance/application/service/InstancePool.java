@@ -0,0 +1,336 @@
+package com.harvey.performance.application.service;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.harvey.performance.cloudUtils.AliEcsUtils;
+import com.harvey.performance.exception.PerformanceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * 预热实例池：压测结束后实例不立即释放，而是归还到池中供后续压测租用
+ * <p>
+ * 池的状态保存在本地json文件中，读写时加文件锁，多个进程可以共用同一个池。
+ * 租出的实例自动释放时间延长为本次压测的过期时间；归还的实例自动释放时间改为空闲TTL之后，
+ * 即使之后不再运行压测，空闲实例也会由云平台按时释放
+ *
+ * @author harvey
+ */
+public class InstancePool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InstancePool.class);
+
+    /**
+     * 默认的池状态文件
+     */
+    public static final String DEFAULT_STATE_PATH = System.getProperty("user.home") + "/.performance/instance-pool.json";
+
+    /**
+     * 池中实例的标签，便于在控制台区分
+     */
+    public static final String POOL_TAG_KEY = "performance-pool";
+
+    /**
+     * 空闲实例保留的最少分钟数，云平台不接受30分钟以内的自动释放时间
+     */
+    public static final int MIN_IDLE_MINUTES = 30;
+
+    private static final String LEASED = "leased";
+
+    private static final String IDLE = "idle";
+
+    /**
+     * 已选为租用候选，正在锁外查询状态和修改自动释放时间
+     */
+    private static final String LEASING = "leasing";
+
+    /**
+     * 租用中的标记超过该时间未更新时视为租用过程已中断
+     */
+    private static final long LEASING_TIMEOUT = 1000 * 60 * 10;
+
+    /**
+     * 同一进程内的读写互斥，文件锁只能在进程间互斥
+     */
+    private static final Object LOCK = new Object();
+
+    private final File stateFile;
+
+    private final String regionId;
+
+    private final int idleMinutes;
+
+    private final AliEcsUtils aliEcsUtils;
+
+    /**
+     * @param stateFile   池状态文件
+     * @param regionId    地域ID，只租用同一地域的实例
+     * @param idleMinutes 空闲实例保留的分钟数，不能少于MIN_IDLE_MINUTES
+     * @param aliEcsUtils 调用云服务API的工具
+     */
+    public InstancePool(String stateFile, String regionId, int idleMinutes, AliEcsUtils aliEcsUtils) {
+        if (idleMinutes < MIN_IDLE_MINUTES) {
+            throw new PerformanceException("空闲实例保留的分钟数不能少于" + MIN_IDLE_MINUTES + "：" + idleMinutes);
+        }
+        this.stateFile = new File(stateFile);
+        this.regionId = regionId;
+        this.idleMinutes = idleMinutes;
+        this.aliEcsUtils = aliEcsUtils;
+    }
+
+    /**
+     * 从池中租用空闲实例，只租用仍处于Running状态且延长自动释放时间成功的实例
+     * <p>
+     * 加锁时只将需要数量的空闲实例标记为租用中，查询状态和修改自动释放时间在锁外并发进行，完成后再加锁写回结果，
+     * 调用API期间其它进程和线程仍可以读写实例池并租用其余实例；不可用的实例移除后再从剩余的空闲实例中补足
+     *
+     * @param count      需要的实例数量
+     * @param expireHour 本次压测的过期时间
+     * @return 租到的实例id，可能少于count
+     */
+    public List<String> lease(int count, int expireHour) {
+        List<String> leased = new ArrayList<>();
+        Set<String> tried = new HashSet<>();
+        while (leased.size() < count) {
+            int needed = count - leased.size();
+            Map<String, JSONObject> candidates = update(instances -> reserve(instances, needed, tried));
+            if (candidates.isEmpty()) {
+                break;
+            }
+            tried.addAll(candidates.keySet());
+            Set<String> removed = new HashSet<>();
+            List<String> running = new ArrayList<>();
+            Map<String, String> status = aliEcsUtils.describeInstanceStatus(new ArrayList<>(candidates.keySet()));
+            if (null != status) {
+                for (String id : candidates.keySet()) {
+                    if ("Running".equals(status.get(id))) {
+                        running.add(id);
+                    } else {
+                        LOG.info("[{}] 实例状态为[{}]，从池中移除", id, status.get(id));
+                        removed.add(id);
+                    }
+                }
+            }
+            List<String> modified = running.isEmpty() ? running : aliEcsUtils.modifyAutoReleaseTime(running, expireHour * 60);
+            leased.addAll(modified);
+            for (String id : running) {
+                if (!modified.contains(id)) {
+                    removed.add(id);
+                }
+            }
+            update(instances -> {
+                for (Map.Entry<String, JSONObject> candidate : candidates.entrySet()) {
+                    String id = candidate.getKey();
+                    if (modified.contains(id)) {
+                        instances.put(id, entry(LEASED, expireHour * 60));
+                    } else if (removed.contains(id)) {
+                        instances.remove(id);
+                    } else if (instances.containsKey(id)) {
+                        // 未使用的实例恢复为空闲，已过期被移除的不再放回
+                        instances.put(id, candidate.getValue());
+                    }
+                }
+                return null;
+            });
+            if (null == status) {
+                break;
+            }
+        }
+        return leased;
+    }
+
+    /**
+     * 将最多count个同地域的空闲实例标记为租用中，调用方需持有锁
+     *
+     * @return key：实例id，value：恢复为空闲时写回的记录
+     */
+    private Map<String, JSONObject> reserve(JSONObject instances, int count, Set<String> excluded) {
+        Map<String, JSONObject> reserved = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Object> entry : instances.entrySet()) {
+            if (reserved.size() >= count) {
+                break;
+            }
+            JSONObject instance = (JSONObject) entry.getValue();
+            if (!excluded.contains(entry.getKey()) && regionId.equals(instance.getString("regionId")) && isAvailable(instance, now)) {
+                JSONObject idle = new JSONObject(true);
+                idle.putAll(instance);
+                idle.put("state", IDLE);
+                reserved.put(entry.getKey(), idle);
+            }
+        }
+        for (Map.Entry<String, JSONObject> entry : reserved.entrySet()) {
+            JSONObject leasing = new JSONObject(true);
+            leasing.putAll(entry.getValue());
+            leasing.put("state", LEASING);
+            leasing.put("owner", ManagementFactory.getRuntimeMXBean().getName());
+            leasing.put("updateTime", now);
+            instances.put(entry.getKey(), leasing);
+        }
+        return reserved;
+    }
+
+    /**
+     * 空闲的实例可以租用；租用中的实例如果标记超时或标记它的进程已退出，说明租用过程异常中断，也可以租用
+     */
+    private static boolean isAvailable(JSONObject instance, long now) {
+        String state = instance.getString("state");
+        if (IDLE.equals(state)) {
+            return true;
+        }
+        if (!LEASING.equals(state)) {
+            return false;
+        }
+        if (now - instance.getLongValue("updateTime") > LEASING_TIMEOUT) {
+            return true;
+        }
+        return !isOwnerAlive(instance.getString("owner"));
+    }
+
+    /**
+     * @param owner 形如 pid@hostname 的进程名
+     * @return 无法判断时视为存活
+     */
+    private static boolean isOwnerAlive(String owner) {
+        String self = ManagementFactory.getRuntimeMXBean().getName();
+        if (null == owner || owner.equals(self)) {
+            return true;
+        }
+        int at = owner.indexOf('@');
+        if (at <= 0 || !owner.substring(at).equals(self.substring(self.indexOf('@')))) {
+            // 其它机器上的进程只能等待标记超时
+            return true;
+        }
+        File proc = new File("/proc");
+        if (!proc.isDirectory()) {
+            return true;
+        }
+        return new File(proc, owner.substring(0, at)).exists();
+    }
+
+    /**
+     * 将新创建的实例登记为已租出
+     *
+     * @param ids        实例id
+     * @param expireHour 本次压测的过期时间
+     */
+    public void add(List<String> ids, int expireHour) {
+        update(instances -> {
+            for (String id : ids) {
+                instances.put(id, entry(LEASED, expireHour * 60));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 归还实例，自动释放时间改为空闲TTL之后；修改失败的实例不再放回池中并立即释放
+     *
+     * @param ids 实例id
+     */
+    public void giveBack(List<String> ids) {
+        List<String> pooled = update(instances -> {
+            List<String> found = new ArrayList<>();
+            for (String id : ids) {
+                if (instances.containsKey(id)) {
+                    found.add(id);
+                }
+            }
+            return found;
+        });
+        List<String> modified = pooled.isEmpty() ? pooled : aliEcsUtils.modifyAutoReleaseTime(pooled, idleMinutes);
+        List<String> failed = new ArrayList<>();
+        update(instances -> {
+            for (String id : pooled) {
+                if (modified.contains(id)) {
+                    instances.put(id, entry(IDLE, idleMinutes));
+                } else {
+                    instances.remove(id);
+                    failed.add(id);
+                }
+            }
+            return null;
+        });
+        // 修改失败的实例不释放会一直运行到本次压测的过期时间
+        if (!failed.isEmpty() && !aliEcsUtils.deleteInstances(failed)) {
+            LOG.warn("修改自动释放时间失败的实例未能立即释放，将按原定时间释放：{}", failed);
+        }
+        LOG.info("[{}]台实例已归还到实例池，空闲[{}]分钟后自动释放", modified.size(), idleMinutes);
+    }
+
+    /**
+     * @return 池中所有实例id
+     */
+    public List<String> list() {
+        return update(instances -> new ArrayList<>(instances.keySet()));
+    }
+
+    private JSONObject entry(String state, int expireMinute) {
+        JSONObject instance = new JSONObject(true);
+        instance.put("regionId", regionId);
+        instance.put("state", state);
+        instance.put("owner", ManagementFactory.getRuntimeMXBean().getName());
+        instance.put("updateTime", System.currentTimeMillis());
+        instance.put("expireTime", System.currentTimeMillis() + expireMinute * 60 * 1000L);
+        return instance;
+    }
+
+    /**
+     * 加锁读取池状态，移除已过自动释放时间的实例，执行修改后写回
+     */
+    private <T> T update(Function<JSONObject, T> action) {
+        synchronized (LOCK) {
+            File dir = stateFile.getAbsoluteFile().getParentFile();
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new PerformanceException("[" + dir + "]创建失败！");
+            }
+            File lockFile = new File(stateFile.getPath() + ".lock");
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    JSONObject state = stateFile.isFile()
+                            ? JSON.parseObject(new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8)) : null;
+                    JSONObject instances = null == state || null == state.getJSONObject("instances")
+                            ? new JSONObject(true) : state.getJSONObject("instances");
+                    long now = System.currentTimeMillis();
+                    for (Iterator<Map.Entry<String, Object>> it = instances.entrySet().iterator(); it.hasNext(); ) {
+                        if (((JSONObject) it.next().getValue()).getLongValue("expireTime") <= now) {
+                            it.remove();
+                        }
+                    }
+                    T result = action.apply(instances);
+                    JSONObject updated = new JSONObject(true);
+                    updated.put("instances", instances);
+                    File tmp = new File(stateFile.getPath() + ".tmp");
+                    Files.write(tmp.toPath(), JSON.toJSONString(updated, SerializerFeature.PrettyFormat).getBytes(StandardCharsets.UTF_8));
+                    Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    return result;
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                LOG.error("[{}] 读写实例池状态失败", stateFile, e);
+                throw new PerformanceException("读写实例池状态失败：" + stateFile);
+            }
+        }
+    }
+}
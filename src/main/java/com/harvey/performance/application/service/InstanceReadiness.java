@@ -0,0 +1,229 @@
+package com.harvey.performance.application.service;
+
+import com.alibaba.fastjson.JSONObject;
+import com.harvey.performance.cloudUtils.AliEcsUtils;
+import com.harvey.performance.exception.PerformanceException;
+import com.harvey.performance.jschutils.JschUtil;
+import com.harvey.performance.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 等待实例可用：轮询云服务API直到实例处于Running状态，同时直接探测实例的sshd端口，
+ * 每台实例的sshd返回版本标识后即视为就绪，所有实例就绪后立即返回
+ * <p>
+ * API的查询间隔从POLL_INTERVAL_INITIAL开始逐渐增大，只查询尚未Running的实例；
+ * 已Running的实例每PROBE_INTERVAL探测一次，探测在独立线程中进行，不阻塞API轮询。
+ * watch返回每台实例各自的future，不必等待最慢的实例
+ *
+ * @author harvey
+ */
+public class InstanceReadiness {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InstanceReadiness.class);
+
+    /**
+     * 默认等待所有实例就绪的最长时间
+     */
+    public static final long DEFAULT_TIMEOUT = 1000 * 60 * 5;
+
+    private static final long POLL_INTERVAL_INITIAL = 1000 * 2;
+
+    private static final long POLL_INTERVAL_MAX = 1000 * 10;
+
+    private static final double POLL_INTERVAL_FACTOR = 1.5;
+
+    /**
+     * 同一台实例两次探测的最小间隔
+     */
+    private static final long PROBE_INTERVAL = 1000;
+
+    /**
+     * 单次探测的超时时间
+     */
+    private static final int PROBE_TIMEOUT = 1000 * 3;
+
+    /**
+     * 主循环的检查间隔
+     */
+    private static final long TICK = 200;
+
+    private static final ExecutorService PROBES = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "ssh-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AliEcsUtils aliEcsUtils;
+
+    /**
+     * 探测的sshd端口
+     */
+    private final int sshPort;
+
+    public InstanceReadiness(AliEcsUtils aliEcsUtils) {
+        this(aliEcsUtils, JschUtil.DEFAULT_PORT);
+    }
+
+    /**
+     * @param aliEcsUtils 查询实例状态
+     * @param sshPort     探测的sshd端口
+     */
+    InstanceReadiness(AliEcsUtils aliEcsUtils, int sshPort) {
+        this.aliEcsUtils = aliEcsUtils;
+        this.sshPort = sshPort;
+    }
+
+    /**
+     * 等待所有实例可以建立ssh连接
+     *
+     * @param ids           实例id列表
+     * @param timeoutMillis 最长等待时间（毫秒）
+     * @return 与ids顺序一致的内网ip列表
+     */
+    public List<String> await(List<String> ids, long timeoutMillis) {
+        List<String> ipAddress = new ArrayList<>();
+        for (CompletableFuture<String> future : watch(ids, timeoutMillis)) {
+            try {
+                ipAddress.add(future.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof PerformanceException ? (PerformanceException) e.getCause() : e;
+            }
+        }
+        return ipAddress;
+    }
+
+    /**
+     * 在后台线程中等待实例就绪，每台实例就绪后立即完成对应的future，调用方可以逐台开始后续操作
+     *
+     * @param ids           实例id列表
+     * @param timeoutMillis 最长等待时间（毫秒）
+     * @return 与ids顺序一致的future，值为内网ip；超时未就绪的实例以PerformanceException异常完成
+     */
+    public List<CompletableFuture<String>> watch(List<String> ids, long timeoutMillis) {
+        Map<String, CompletableFuture<String>> futures = new LinkedHashMap<>();
+        for (String id : ids) {
+            futures.put(id, new CompletableFuture<>());
+        }
+        Thread watcher = new Thread(() -> {
+            try {
+                run(futures, timeoutMillis);
+            } catch (RuntimeException e) {
+                LOG.error("等待实例就绪失败", e);
+                PerformanceException failure = e instanceof PerformanceException ? (PerformanceException) e
+                        : new PerformanceException("等待实例就绪失败：" + e.getMessage());
+                futures.values().forEach(future -> future.completeExceptionally(failure));
+            }
+        }, "instance-readiness");
+        watcher.setDaemon(true);
+        watcher.start();
+        return new ArrayList<>(futures.values());
+    }
+
+    private void run(Map<String, CompletableFuture<String>> futures, long timeoutMillis) {
+        long start = System.currentTimeMillis();
+        long deadline = start + timeoutMillis;
+        int total = futures.size();
+        Set<String> pending = new LinkedHashSet<>(futures.keySet());
+        // key：实例id，value：内网ip，已Running的实例
+        Map<String, String> running = new HashMap<>();
+        Set<String> ready = new HashSet<>();
+        Map<String, CompletableFuture<Boolean>> probing = new HashMap<>();
+        Map<String, Long> lastProbe = new HashMap<>();
+        long pollInterval = POLL_INTERVAL_INITIAL;
+        long nextPoll = start;
+        int polls = 0;
+        while (ready.size() < total) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                List<String> unready = new ArrayList<>(futures.keySet());
+                unready.removeAll(ready);
+                PerformanceException timeout = new PerformanceException("等待实例就绪超时，未就绪的实例：" + unready);
+                LOG.error("[{}/{}]台实例就绪，未就绪的实例：{}", ready.size(), total, unready);
+                for (String id : unready) {
+                    futures.get(id).completeExceptionally(timeout);
+                }
+                return;
+            }
+            if (!pending.isEmpty() && now >= nextPoll) {
+                polls++;
+                poll(pending, running);
+                nextPoll = now + pollInterval;
+                pollInterval = Math.min((long) (pollInterval * POLL_INTERVAL_FACTOR), POLL_INTERVAL_MAX);
+            }
+            for (Map.Entry<String, String> entry : running.entrySet()) {
+                String id = entry.getKey();
+                if (ready.contains(id)) {
+                    continue;
+                }
+                CompletableFuture<Boolean> probe = probing.get(id);
+                if (null != probe && probe.isDone()) {
+                    probing.remove(id);
+                    if (probe.join()) {
+                        ready.add(id);
+                        long elapsed = System.currentTimeMillis() - start;
+                        MetricsRegistry.getInstance().observe("instance_ready_seconds", elapsed / 1000.0);
+                        LOG.info("[{}] 实例[{}]已就绪，耗时[{}]ms，[{}/{}]", entry.getValue(), id, elapsed, ready.size(), total);
+                        futures.get(id).complete(entry.getValue());
+                    }
+                } else if (null == probe && now - lastProbe.getOrDefault(id, 0L) >= PROBE_INTERVAL) {
+                    String host = entry.getValue();
+                    lastProbe.put(id, now);
+                    probing.put(id, CompletableFuture.supplyAsync(() -> JschUtil.isSshReady(host, sshPort, PROBE_TIMEOUT), PROBES)
+                            .exceptionally(e -> false));
+                }
+            }
+            if (ready.size() < total) {
+                sleep(TICK);
+            }
+        }
+        LOG.info("[{}]台实例全部就绪，耗时[{}]ms，查询API[{}]次", total, System.currentTimeMillis() - start, polls);
+    }
+
+    /**
+     * 查询尚未Running的实例，Running且已分配ip的实例移入running
+     */
+    private void poll(Set<String> pending, Map<String, String> running) {
+        Map<String, JSONObject> instances = aliEcsUtils.describeInstances(new ArrayList<>(pending));
+        if (null == instances) {
+            return;
+        }
+        Map<String, Integer> states = new HashMap<>();
+        for (String id : new ArrayList<>(pending)) {
+            JSONObject instance = instances.get(id);
+            String status = null == instance ? "NotFound" : instance.getString("Status");
+            String ip = null == instance ? null : AliEcsUtils.primaryIpAddress(instance);
+            if ("Running".equals(status) && null != ip) {
+                pending.remove(id);
+                running.put(id, ip);
+            } else {
+                states.merge(status, 1, Integer::sum);
+            }
+        }
+        if (!pending.isEmpty()) {
+            LOG.info("[{}]台实例尚未处于running状态：{}", pending.size(), states);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PerformanceException("等待实例就绪时被中断");
+        }
+    }
+}
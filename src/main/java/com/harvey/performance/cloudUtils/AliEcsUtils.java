@@ -5,18 +5,20 @@ import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.aliyuncs.CommonRequest;
 import com.aliyuncs.CommonResponse;
-import com.aliyuncs.DefaultAcsClient;
-import com.aliyuncs.IAcsClient;
 import com.aliyuncs.exceptions.ClientException;
 import com.aliyuncs.http.MethodType;
-import com.aliyuncs.profile.DefaultProfile;
+import com.aliyuncs.http.ProtocolType;
+import com.harvey.performance.metrics.MetricsRegistry;
+import com.harvey.performance.utils.Futures;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.testng.annotations.Test;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author harvey
@@ -49,15 +51,54 @@ public class AliEcsUtils {
     private String launchTemplateId;
 
     /**
-     * 单次创建实例数上限
+     * 单次RunInstances创建实例数的上限，超过时分批创建
      */
-    private static final int INSTANCES_COUNT_LIMIT = 50;
+    private static final int RUN_BATCH_SIZE = 100;
+
+    /**
+     * 单次DescribeInstances的InstanceIds数量和每页结果数的上限
+     */
+    private static final int DESCRIBE_BATCH_SIZE = 100;
+
+    /**
+     * 单次DeleteInstances释放实例数的上限
+     */
+    private static final int DELETE_BATCH_SIZE = 100;
+
+    /**
+     * 等待实例释放完成的最长时间，刚创建的实例需要先完成启动才能释放
+     */
+    private static final long DELETE_TIMEOUT = 1000 * 60 * 3;
+
+    /**
+     * 确认实例是否已释放的查询间隔
+     */
+    private static final long DELETE_CHECK_INTERVAL = 1000 * 3;
+
+    /**
+     * 同时进行的分批API调用数
+     */
+    private static final int API_PARALLELISM = 4;
+
+    /**
+     * 分批调用API的线程池
+     */
+    private static final ExecutorService API_POOL = Executors.newFixedThreadPool(API_PARALLELISM, r -> {
+        Thread thread = new Thread(r, "ecs-api");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * 通过sdk调用云服务API的域名
      */
     private static final String DOMAIN = "ecs.aliyuncs.com";
 
+    /**
+     * 指定API地址的系统属性，例如 http://127.0.0.1:8080，用于连接本地的模拟服务
+     */
+    public static final String ENDPOINT_PROPERTY = "performance.ecs.endpoint";
+
     /**
      * 版本格式
      */
@@ -74,9 +115,9 @@ public class AliEcsUtils {
     private static final String VERSION = "2014-05-26";
 
     /**
-     * 通过sdk调用云服务API的client
+     * 通过sdk调用云服务API的client，同一地域和用户共用
      */
-    private IAcsClient client = null;
+    private EcsApiClient client = null;
 
     /**
      * @param regionId         地域ID
@@ -103,9 +144,11 @@ public class AliEcsUtils {
     /**
      * 初始化调用云服务API的client
      */
-    private void initClient() {
-        DefaultProfile profile = DefaultProfile.getProfile(regionId, accessKeyId, accessKeySecret);
-        this.client = new DefaultAcsClient(profile);
+    private synchronized void initClient() {
+        if (null != client) {
+            return;
+        }
+        this.client = EcsApiClient.getInstance(regionId, accessKeyId, accessKeySecret);
     }
 
     /**
@@ -116,39 +159,86 @@ public class AliEcsUtils {
      * @return 由一个或多个实例ID组成一个JSON数组
      */
     public String runInstances(int count, int expireHour) {
-        if (count > INSTANCES_COUNT_LIMIT) {
-            LOG.warn("实例数量超过允许上限：{}", count);
-            return null;
-        }
+        return runInstances(count, expireHour, Collections.emptyMap());
+    }
+
+    /**
+     * 创建一台或多台按量付费定时释放的ECS实例，并附加额外的标签
+     *
+     * @param count      实例数量
+     * @param expireHour 过期时间
+     * @param tags       额外的标签
+     * @return 由一个或多个实例ID组成一个JSON数组
+     */
+    public String runInstances(int count, int expireHour, Map<String, String> tags) {
         if (client == null) {
             initClient();
         }
-        CommonRequest request = new CommonRequest();
-        request.setMethod(MethodType.POST);
-        request.setDomain(DOMAIN);
-        request.setVersion(VERSION);
-        request.setAction("RunInstances");
+        String autoReleaseTime = getAutoReleaseTime(expireHour);
+        List<CompletableFuture<List<String>>> batches = new ArrayList<>();
+        for (int created = 0; created < count; created += RUN_BATCH_SIZE) {
+            int amount = Math.min(RUN_BATCH_SIZE, count - created);
+            batches.add(CompletableFuture.supplyAsync(() -> runBatch(amount, autoReleaseTime, tags), API_POOL));
+        }
+        if (batches.size() > 1) {
+            LOG.info("[{}]台实例分[{}]批创建", count, batches.size());
+        }
+        List<String> ids = new ArrayList<>();
+        boolean failed = false;
+        for (CompletableFuture<List<String>> batch : batches) {
+            List<String> batchIds = batch.join();
+            if (null == batchIds) {
+                failed = true;
+            } else {
+                ids.addAll(batchIds);
+            }
+        }
+        if (failed) {
+            // 部分批次失败时释放已创建的实例，避免数量不足的实例一直保留到自动释放
+            if (!ids.isEmpty()) {
+                LOG.warn("部分批次创建失败，释放已创建的[{}]台实例", ids.size());
+                deleteInstances(JSON.toJSONString(ids));
+            }
+            return null;
+        }
+        return JSON.toJSONString(ids);
+    }
+
+    /**
+     * 调用一次RunInstances
+     *
+     * @return 创建的实例id，失败时返回null
+     */
+    private List<String> runBatch(int amount, String autoReleaseTime, Map<String, String> tags) {
+        CommonRequest request = newRequest("RunInstances");
         request.putQueryParameter("Tag.1.Key", "type");
         request.putQueryParameter("Tag.1.Value", "jmeter");
-        request.putQueryParameter("RegionId", regionId);
+        int tagIndex = 2;
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            request.putQueryParameter("Tag." + tagIndex + ".Key", tag.getKey());
+            request.putQueryParameter("Tag." + tagIndex + ".Value", tag.getValue());
+            tagIndex++;
+        }
         request.putQueryParameter("LaunchTemplateId", launchTemplateId);
         request.putQueryParameter("HostName", "quautotest");
         request.putQueryParameter("UniqueSuffix", "true");
         request.putQueryParameter("InstanceName", "quautotest_");
         request.putQueryParameter("PasswordInherit", "true");
-        request.putQueryParameter("Amount", count + "");
+        request.putQueryParameter("Amount", amount + "");
         request.putQueryParameter("DeletionProtection", "false");
         request.putQueryParameter("Description", "测试压测机器");
-        request.putQueryParameter("AutoReleaseTime", getAutoReleaseTime(expireHour));
+        request.putQueryParameter("AutoReleaseTime", autoReleaseTime);
+        // 被限流重试时使用相同的ClientToken，避免重复创建
+        request.putQueryParameter("ClientToken", UUID.randomUUID().toString());
         CommonResponse response;
         try {
-            response = client.getCommonResponse(request);
+            response = client.call(request);
         } catch (ClientException e) {
-            LOG.error("创建实例失败，异常如下：", e);
+            LOG.error("创建[{}]台实例失败，异常如下：", amount, e);
             return null;
         }
         JSONObject jsonObject = JSON.parseObject(response.getData());
-        return jsonObject.getJSONObject("InstanceIdSets").getJSONArray("InstanceIdSet").toJSONString();
+        return jsonObject.getJSONObject("InstanceIdSets").getJSONArray("InstanceIdSet").toJavaList(String.class);
     }
 
     /**
@@ -158,33 +248,20 @@ public class AliEcsUtils {
      * @return false：有实例没有处于running状态；true：所有实例已处于running状态
      */
     public boolean getInstancesStatusById(String idList, List<String> ipAddress, int size) {
-        if (client == null) {
-            initClient();
-        }
         ipAddress.clear();
-        CommonRequest request = new CommonRequest();
-        request.setMethod(MethodType.POST);
-        request.setDomain(DOMAIN);
-        request.setVersion(VERSION);
-        request.setAction("DescribeInstances");
-        request.putQueryParameter("RegionId", regionId);
-        request.putQueryParameter("PageNumber", 1 + "");
-        request.putQueryParameter("PageSize", size + "");
-        request.putQueryParameter("InstanceIds", idList);
-        CommonResponse response;
-        try {
-            response = client.getCommonResponse(request);
-        } catch (ClientException e) {
-            LOG.error("查询实例失败，异常如下：", e);
+        List<String> ids = JSONArray.parseArray(idList, String.class);
+        Map<String, JSONObject> instances = describeInstances(ids);
+        if (null == instances) {
             return false;
         }
-        JSONObject jsonObject = JSON.parseObject(response.getData());
-        JSONArray jsonArray = jsonObject.getJSONObject("Instances").getJSONArray("Instance");
-        for (int i = 0; i < jsonArray.size(); i++) {
-            jsonObject = jsonArray.getJSONObject(i);
-            String primaryIpAddress = jsonObject.getJSONObject("NetworkInterfaces").getJSONArray("NetworkInterface").getJSONObject(0).getString("PrimaryIpAddress");
-            String status = jsonObject.getString("Status");
-            LOG.info("ip:" + primaryIpAddress + " 当前状态为：" + jsonObject.getString("Status"));
+        for (String id : ids) {
+            JSONObject instance = instances.get(id);
+            if (null == instance) {
+                continue;
+            }
+            String primaryIpAddress = primaryIpAddress(instance);
+            String status = instance.getString("Status");
+            LOG.info("ip:" + primaryIpAddress + " 当前状态为：" + status);
             if ("Running".equals(status)) {
                 ipAddress.add(primaryIpAddress);
             } else {
@@ -196,27 +273,276 @@ public class AliEcsUtils {
 
     /**
      * @param idList 实例id列表
+     * @return true：所有实例已释放
+     */
+    public boolean deleteInstances(String idList) {
+        return deleteInstances(JSONArray.parseArray(idList, String.class));
+    }
+
+    /**
+     * 强制释放实例并确认释放完成：每DELETE_BATCH_SIZE台并发调用一次DeleteInstances，
+     * 批量调用失败时改为逐台并发调用DeleteInstance；之后查询剩余的实例，仍存在的重新释放，直到全部释放或超时
+     *
+     * @param ids 实例id列表
+     * @return true：所有实例已释放
      */
-    public void deleteInstances(String idList) {
+    public boolean deleteInstances(List<String> ids) {
         if (client == null) {
             initClient();
         }
-        JSONArray jsonArray = JSONArray.parseArray(idList);
-        CommonRequest request = new CommonRequest();
-        request.setMethod(MethodType.POST);
-        request.setDomain(DOMAIN);
-        request.setVersion(VERSION);
-        request.setAction("DeleteInstance");
-        request.putQueryParameter("RegionId", regionId);
+        long startNanos = System.nanoTime();
+        long deadline = System.currentTimeMillis() + DELETE_TIMEOUT;
+        List<String> remaining = new ArrayList<>(ids);
+        while (!remaining.isEmpty()) {
+            deleteAll(remaining);
+            client.getStateCache().invalidate(remaining);
+            try {
+                Thread.sleep(DELETE_CHECK_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.error("等待实例释放时被中断，未确认释放的实例：{}", remaining);
+                return false;
+            }
+            Map<String, JSONObject> instances = describeInstances(remaining);
+            if (null != instances) {
+                remaining = new ArrayList<>(instances.keySet());
+            }
+            if (!remaining.isEmpty() && System.currentTimeMillis() >= deadline) {
+                LOG.error("[{}]台实例在[{}]s内未释放：{}", remaining.size(), DELETE_TIMEOUT / 1000, remaining);
+                MetricsRegistry.getInstance().observeSince("instance_delete_seconds", startNanos, "result", "failure");
+                return false;
+            }
+        }
+        LOG.info("[{}]台实例已释放，耗时[{}]ms", ids.size(), (System.nanoTime() - startNanos) / 1000000);
+        MetricsRegistry.getInstance().observeSince("instance_delete_seconds", startNanos, "result", "success");
+        return true;
+    }
+
+    /**
+     * 分批并发调用DeleteInstances，失败批次中的实例逐台并发调用DeleteInstance
+     */
+    private void deleteAll(List<String> ids) {
+        List<CompletableFuture<List<String>>> batches = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += DELETE_BATCH_SIZE) {
+            List<String> batch = new ArrayList<>(ids.subList(from, Math.min(ids.size(), from + DELETE_BATCH_SIZE)));
+            batches.add(CompletableFuture.supplyAsync(() -> deleteBatch(batch) ? Collections.<String>emptyList() : batch, API_POOL));
+        }
+        List<String> failed = new ArrayList<>();
+        for (CompletableFuture<List<String>> batch : batches) {
+            failed.addAll(batch.join());
+        }
+        if (failed.isEmpty()) {
+            return;
+        }
+        LOG.warn("[{}]台实例批量释放失败，改为逐台释放", failed.size());
+        List<CompletableFuture<Boolean>> singles = new ArrayList<>();
+        for (String id : failed) {
+            singles.add(CompletableFuture.supplyAsync(() -> deleteInstance(id), API_POOL));
+        }
+        Futures.allOf(singles).join();
+    }
+
+    private boolean deleteBatch(List<String> ids) {
+        CommonRequest request = newRequest("DeleteInstances");
         request.putQueryParameter("Force", "true");
-        for (Object aJsonArray : jsonArray) {
-            request.putQueryParameter("InstanceId", String.valueOf(aJsonArray));
+        for (int i = 0; i < ids.size(); i++) {
+            request.putQueryParameter("InstanceId." + (i + 1), ids.get(i));
+        }
+        try {
+            client.call(request);
+            return true;
+        } catch (ClientException e) {
+            LOG.warn("批量释放[{}]台实例失败：[{}] {}", ids.size(), e.getErrCode(), e.getErrMsg());
+            return false;
+        }
+    }
+
+    private boolean deleteInstance(String instanceId) {
+        CommonRequest request = newRequest("DeleteInstance");
+        request.putQueryParameter("Force", "true");
+        request.putQueryParameter("InstanceId", instanceId);
+        try {
+            client.call(request);
+            return true;
+        } catch (ClientException e) {
+            LOG.warn("[{}] 释放实例失败：[{}] {}", instanceId, e.getErrCode(), e.getErrMsg());
+            return false;
+        }
+    }
+
+    /**
+     * 查询实例的状态
+     *
+     * @param ids 实例id列表
+     * @return key：实例id，value：实例状态，例如Running；已释放的实例不在结果中；查询失败时返回null
+     */
+    public Map<String, String> describeInstanceStatus(List<String> ids) {
+        Map<String, JSONObject> instances = describeInstances(ids);
+        if (null == instances) {
+            return null;
+        }
+        Map<String, String> status = new HashMap<>();
+        for (Map.Entry<String, JSONObject> entry : instances.entrySet()) {
+            status.put(entry.getKey(), entry.getValue().getString("Status"));
+        }
+        return status;
+    }
+
+    /**
+     * 查询实例的详细信息
+     *
+     * @param ids 实例id列表
+     * @return key：实例id，value：实例信息；已释放的实例不在结果中；查询失败时返回null
+     */
+    public Map<String, JSONObject> describeInstances(List<String> ids) {
+        if (client == null) {
+            initClient();
+        }
+        if (ids.isEmpty()) {
+            return new HashMap<>();
+        }
+        // 并发的查询合并为一次，短时间内重复查询同一实例时使用缓存
+        return client.getStateCache().get(ids, this::fetchInstances);
+    }
+
+    /**
+     * 调用DescribeInstances查询实例，InstanceIds最多100个，超过时分组并发查询
+     *
+     * @param ids 实例id列表
+     * @return key：实例id，value：实例信息；查询失败时返回null
+     */
+    private Map<String, JSONObject> fetchInstances(List<String> ids) {
+        if (ids.size() <= DESCRIBE_BATCH_SIZE) {
+            return describeChunk(ids);
+        }
+        Map<String, JSONObject> instances = new HashMap<>();
+        List<CompletableFuture<Map<String, JSONObject>>> chunks = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += DESCRIBE_BATCH_SIZE) {
+            List<String> chunk = new ArrayList<>(ids.subList(from, Math.min(ids.size(), from + DESCRIBE_BATCH_SIZE)));
+            chunks.add(CompletableFuture.supplyAsync(() -> describeChunk(chunk), API_POOL));
+        }
+        for (CompletableFuture<Map<String, JSONObject>> chunk : chunks) {
+            Map<String, JSONObject> result = chunk.join();
+            if (null == result) {
+                return null;
+            }
+            instances.putAll(result);
+        }
+        return instances;
+    }
+
+    /**
+     * 查询不超过DESCRIBE_BATCH_SIZE台实例，按NextToken翻页直到没有下一页
+     *
+     * @return key：实例id，value：实例信息；查询失败时返回null
+     */
+    private Map<String, JSONObject> describeChunk(List<String> ids) {
+        Map<String, JSONObject> instances = new HashMap<>();
+        String nextToken = null;
+        do {
+            CommonRequest request = newRequest("DescribeInstances");
+            request.putQueryParameter("MaxResults", DESCRIBE_BATCH_SIZE + "");
+            request.putQueryParameter("InstanceIds", JSON.toJSONString(ids));
+            if (null != nextToken) {
+                request.putQueryParameter("NextToken", nextToken);
+            }
+            CommonResponse response;
             try {
-                client.getCommonResponse(request);
+                response = client.call(request);
             } catch (ClientException e) {
-                LOG.error("释放实例失败，异常如下：", e);
+                LOG.error("查询实例失败，异常如下：", e);
+                return null;
+            }
+            JSONObject data = JSON.parseObject(response.getData());
+            JSONArray jsonArray = data.getJSONObject("Instances").getJSONArray("Instance");
+            for (int i = 0; i < jsonArray.size(); i++) {
+                JSONObject instance = jsonArray.getJSONObject(i);
+                instances.put(instance.getString("InstanceId"), instance);
             }
+            nextToken = data.getString("NextToken");
+        } while (null != nextToken && !nextToken.isEmpty());
+        return instances;
+    }
+
+    /**
+     * @param instance DescribeInstances返回的实例信息
+     * @return 实例的内网ip，尚未分配时返回null
+     */
+    public static String primaryIpAddress(JSONObject instance) {
+        JSONObject interfaces = instance.getJSONObject("NetworkInterfaces");
+        JSONArray list = null == interfaces ? null : interfaces.getJSONArray("NetworkInterface");
+        if (null == list || list.isEmpty()) {
+            return null;
+        }
+        return list.getJSONObject(0).getString("PrimaryIpAddress");
+    }
+
+    /**
+     * 修改实例的自动释放时间
+     *
+     * @param instanceId   实例id
+     * @param expireMinute 从现在起多少分钟后释放
+     * @return true：修改成功
+     */
+    public boolean modifyAutoReleaseTime(String instanceId, int expireMinute) {
+        if (client == null) {
+            initClient();
+        }
+        CommonRequest request = newRequest("ModifyInstanceAutoReleaseTime");
+        request.putQueryParameter("InstanceId", instanceId);
+        request.putQueryParameter("AutoReleaseTime", getReleaseTime(expireMinute));
+        try {
+            client.call(request);
+            return true;
+        } catch (ClientException e) {
+            LOG.error("[{}] 修改自动释放时间失败，异常如下：", instanceId, e);
+            return false;
+        }
+    }
+
+    /**
+     * 并发修改多台实例的自动释放时间，ModifyInstanceAutoReleaseTime每次只能修改一台
+     *
+     * @param ids          实例id
+     * @param expireMinute 从现在起多少分钟后释放
+     * @return 修改成功的实例id
+     */
+    public List<String> modifyAutoReleaseTime(List<String> ids, int expireMinute) {
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (String id : ids) {
+            results.add(CompletableFuture.supplyAsync(() -> modifyAutoReleaseTime(id, expireMinute), API_POOL));
+        }
+        List<String> modified = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (results.get(i).join()) {
+                modified.add(ids.get(i));
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * 创建指定API的请求，API地址可以通过系统属性ENDPOINT_PROPERTY替换
+     *
+     * @param action API名称
+     * @return 请求
+     */
+    private CommonRequest newRequest(String action) {
+        CommonRequest request = new CommonRequest();
+        request.setMethod(MethodType.POST);
+        String endpoint = System.getProperty(ENDPOINT_PROPERTY, DOMAIN);
+        if (endpoint.startsWith("http://")) {
+            request.setProtocol(ProtocolType.HTTP);
+            endpoint = endpoint.substring("http://".length());
+        } else if (endpoint.startsWith("https://")) {
+            request.setProtocol(ProtocolType.HTTPS);
+            endpoint = endpoint.substring("https://".length());
         }
+        request.setDomain(endpoint);
+        request.setVersion(VERSION);
+        request.setAction(action);
+        request.putQueryParameter("RegionId", regionId);
+        return request;
     }
 
     /**
@@ -241,6 +567,16 @@ public class AliEcsUtils {
      * @return 时间字符串
      */
     private static String getAutoReleaseTime(int expireHour) {
+        return getReleaseTime(expireHour * 60);
+    }
+
+    /**
+     * 根据当前时间，返回expireMinute分钟后的UTC时间
+     *
+     * @param expireMinute 过期时间（分钟）
+     * @return 时间字符串
+     */
+    private static String getReleaseTime(int expireMinute) {
         // 1、取得本地时间： 　　
         Calendar cal = Calendar.getInstance();
         // 2、取得时间偏移量： 　　
@@ -249,13 +585,10 @@ public class AliEcsUtils {
         int dstOffset = cal.get(Calendar.DST_OFFSET);
         // 4、从本地时间里扣除这些差量，即可以取得UTC时间： 　　
         cal.add(Calendar.MILLISECOND, -(zoneOffset + dstOffset));
-        cal.add(Calendar.HOUR, expireHour);
-        return DATE_FORMAT.format(cal.getTime());
-    }
-
-    @Test
-    void test1() {
-        LOG.info(runInstances(2, 1));
+        cal.add(Calendar.MINUTE, expireMinute);
+        synchronized (DATE_FORMAT) {
+            return DATE_FORMAT.format(cal.getTime());
+        }
     }
 
 }
@@ -0,0 +1,155 @@
+package com.harvey.performance.cloudUtils;
+
+import com.aliyuncs.CommonRequest;
+import com.aliyuncs.CommonResponse;
+import com.aliyuncs.DefaultAcsClient;
+import com.aliyuncs.IAcsClient;
+import com.aliyuncs.exceptions.ClientException;
+import com.aliyuncs.profile.DefaultProfile;
+import com.harvey.performance.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 共享的云服务API客户端：同一地域和用户的所有AliEcsUtils共用一个client、限流器和实例状态缓存
+ * <p>
+ * 每个API按名称使用独立的令牌桶限流；被限流（Throttling开头的错误码）或服务暂时不可用时，
+ * 按指数退避加随机抖动重试，避免大量并发调用在同一时刻再次触发限流
+ *
+ * @author harvey
+ */
+public class EcsApiClient {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EcsApiClient.class);
+
+    /**
+     * 未单独配置的API每秒允许的调用数
+     */
+    private static final double DEFAULT_RATE = 10;
+
+    /**
+     * 令牌桶最多积累的令牌数
+     */
+    private static final int BURST = 10;
+
+    /**
+     * 单独配置的API每秒允许的调用数
+     */
+    private static final Map<String, Double> RATES = new HashMap<>();
+
+    static {
+        RATES.put("RunInstances", 5.0);
+        RATES.put("DescribeInstances", 20.0);
+        RATES.put("DeleteInstance", 20.0);
+        // 释放和归还大量实例时集中调用
+        RATES.put("DeleteInstances", 5.0);
+        RATES.put("ModifyInstanceAutoReleaseTime", 20.0);
+    }
+
+    /**
+     * 被限流时的最大重试次数
+     */
+    private static final int RETRY_TIME = 5;
+
+    private static final long BACKOFF_BASE = 200;
+
+    private static final long BACKOFF_MAX = 1000 * 5;
+
+    /**
+     * key：地域ID|用户标识
+     */
+    private static final Map<String, EcsApiClient> CLIENTS = new ConcurrentHashMap<>();
+
+    private final IAcsClient client;
+
+    /**
+     * key：API名称
+     */
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private final InstanceStateCache stateCache = new InstanceStateCache(InstanceStateCache.DEFAULT_TTL);
+
+    private EcsApiClient(String regionId, String accessKeyId, String accessKeySecret) {
+        DefaultProfile profile = DefaultProfile.getProfile(regionId, accessKeyId, accessKeySecret);
+        this.client = new DefaultAcsClient(profile);
+    }
+
+    /**
+     * @param regionId        地域ID
+     * @param accessKeyId     用户标识
+     * @param accessKeySecret 用户秘钥
+     * @return 该地域和用户共用的客户端
+     */
+    public static EcsApiClient getInstance(String regionId, String accessKeyId, String accessKeySecret) {
+        return CLIENTS.computeIfAbsent(regionId + "|" + accessKeyId, k -> new EcsApiClient(regionId, accessKeyId, accessKeySecret));
+    }
+
+    /**
+     * @return 实例状态缓存
+     */
+    public InstanceStateCache getStateCache() {
+        return stateCache;
+    }
+
+    /**
+     * 限流后调用API，被限流时退避重试，并记录耗时
+     *
+     * @param request 请求
+     * @return 响应
+     * @throws ClientException 调用失败，或重试RETRY_TIME次后仍被限流
+     */
+    public CommonResponse call(CommonRequest request) throws ClientException {
+        String action = request.getAction();
+        TokenBucket bucket = buckets.computeIfAbsent(action, k -> new TokenBucket(RATES.getOrDefault(k, DEFAULT_RATE), BURST));
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                long waited = bucket.acquire();
+                if (waited > 0) {
+                    metrics.add("cloud_api_throttle_wait_millis_total", waited, "action", action);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClientException("SDK.Interrupted", "等待限流时被中断");
+            }
+            long startNanos = System.nanoTime();
+            String result = "failure";
+            ClientException throttled;
+            try {
+                CommonResponse response = client.getCommonResponse(request);
+                result = "success";
+                return response;
+            } catch (ClientException e) {
+                if (!isRetryable(e) || attempt >= RETRY_TIME) {
+                    throw e;
+                }
+                result = "throttled";
+                throttled = e;
+            } finally {
+                metrics.observeSince("cloud_api_seconds", startNanos, "action", action, "result", result);
+            }
+            long backoff = ThreadLocalRandom.current().nextLong(Math.min(BACKOFF_MAX, BACKOFF_BASE << attempt) + 1);
+            LOG.warn("[{}] 被限流[{}]，[{}]ms后第[{}]次重试", action, throttled.getErrCode(), backoff, attempt + 1);
+            metrics.increment("cloud_api_retries_total", "action", action);
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw throttled;
+            }
+        }
+    }
+
+    /**
+     * @return true：被限流或服务暂时不可用，可以重试
+     */
+    private static boolean isRetryable(ClientException e) {
+        String errCode = e.getErrCode();
+        return null != errCode && (errCode.startsWith("Throttling") || "ServiceUnavailable".equals(errCode));
+    }
+}
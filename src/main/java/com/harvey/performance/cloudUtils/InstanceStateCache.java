@@ -0,0 +1,165 @@
+package com.harvey.performance.cloudUtils;
+
+import com.alibaba.fastjson.JSONObject;
+import com.harvey.performance.metrics.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 实例状态的短时缓存，并合并并发的DescribeInstances查询
+ * <p>
+ * TTL内查询过的实例直接返回缓存（已释放的实例也会缓存为不存在）；
+ * 其余实例同一时刻只有一个查询在进行，查询期间到达的请求合并为下一次查询，
+ * 轮询实例状态、实例池和释放确认等调用方同时查询时只消耗一次API调用
+ *
+ * @author harvey
+ */
+public class InstanceStateCache {
+
+    /**
+     * 默认缓存时间
+     */
+    public static final long DEFAULT_TTL = 1000;
+
+    private final long ttlMillis;
+
+    /**
+     * key：实例id，value：查询结果，实例不存在时instance为null
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 等待下一次查询的实例
+     */
+    private Set<String> nextIds = null;
+
+    private CompletableFuture<Map<String, JSONObject>> nextResult = null;
+
+    private boolean inFlight = false;
+
+    /**
+     * @param ttlMillis 缓存时间（毫秒）
+     */
+    public InstanceStateCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * 查询实例信息，优先使用缓存，其余实例与并发的查询合并
+     *
+     * @param ids   实例id列表
+     * @param fetch 实际查询的方法，查询失败时返回null
+     * @return key：实例id，value：实例信息；已释放的实例不在结果中；查询失败时返回null
+     */
+    public Map<String, JSONObject> get(Collection<String> ids, Function<List<String>, Map<String, JSONObject>> fetch) {
+        Map<String, JSONObject> instances = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (String id : ids) {
+            Entry entry = entries.get(id);
+            if (null != entry && now - entry.time < ttlMillis) {
+                if (null != entry.instance) {
+                    instances.put(id, entry.instance);
+                }
+            } else {
+                missing.add(id);
+            }
+        }
+        MetricsRegistry.getInstance().add("cloud_api_cache_hits_total", ids.size() - missing.size());
+        if (missing.isEmpty()) {
+            return instances;
+        }
+        Map<String, JSONObject> fetched = coalesce(missing, fetch);
+        if (null == fetched) {
+            return null;
+        }
+        for (String id : missing) {
+            JSONObject instance = fetched.get(id);
+            if (null != instance) {
+                instances.put(id, instance);
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * 移除缓存，实例状态发生变化（例如已调用释放）后调用
+     *
+     * @param ids 实例id列表
+     */
+    public void invalidate(Collection<String> ids) {
+        for (String id : ids) {
+            entries.remove(id);
+        }
+    }
+
+    /**
+     * 加入下一次查询；没有查询在进行时由当前线程执行查询，否则等待
+     */
+    private Map<String, JSONObject> coalesce(List<String> ids, Function<List<String>, Map<String, JSONObject>> fetch) {
+        CompletableFuture<Map<String, JSONObject>> result;
+        List<String> batch;
+        synchronized (this) {
+            if (null == nextResult) {
+                nextIds = new LinkedHashSet<>();
+                nextResult = new CompletableFuture<>();
+            }
+            nextIds.addAll(ids);
+            result = nextResult;
+            while (inFlight && !result.isDone()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            if (result.isDone()) {
+                MetricsRegistry.getInstance().increment("cloud_api_coalesced_total");
+                return result.join();
+            }
+            inFlight = true;
+            batch = new ArrayList<>(nextIds);
+            nextIds = null;
+            nextResult = null;
+        }
+        long start = System.currentTimeMillis();
+        Map<String, JSONObject> fetched = null;
+        try {
+            fetched = fetch.apply(batch);
+            if (null != fetched) {
+                for (String id : batch) {
+                    entries.put(id, new Entry(fetched.get(id), start));
+                }
+            }
+        } finally {
+            result.complete(fetched);
+            synchronized (this) {
+                inFlight = false;
+                notifyAll();
+            }
+        }
+        return fetched;
+    }
+
+    private static class Entry {
+
+        private final JSONObject instance;
+
+        private final long time;
+
+        Entry(JSONObject instance, long time) {
+            this.instance = instance;
+            this.time = time;
+        }
+    }
+}
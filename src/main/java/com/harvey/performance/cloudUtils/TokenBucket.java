@@ -0,0 +1,55 @@
+package com.harvey.performance.cloudUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 令牌桶限流：令牌按固定速率补充，最多积累capacity个，允许短时间的突发调用
+ * <p>
+ * 令牌不足时预先扣除并计算需要等待的时间，等待在锁外进行，后到的调用按顺序排在更晚的时间
+ *
+ * @author harvey
+ */
+public class TokenBucket {
+
+    private final double permitsPerSecond;
+
+    private final double capacity;
+
+    private double tokens;
+
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * @param permitsPerSecond 每秒补充的令牌数
+     * @param capacity         最多积累的令牌数
+     */
+    public TokenBucket(double permitsPerSecond, int capacity) {
+        if (permitsPerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond和capacity必须大于0");
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity;
+    }
+
+    /**
+     * 获取一个令牌，令牌不足时等待
+     *
+     * @return 等待的毫秒数
+     * @throws InterruptedException 等待时被中断
+     */
+    public long acquire() throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+            lastRefillNanos = now;
+            tokens -= 1;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+    }
+}
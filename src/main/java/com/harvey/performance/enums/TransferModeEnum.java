@@ -0,0 +1,37 @@
+package com.harvey.performance.enums;
+
+/**
+ * 文件上传方式的枚举类
+ *
+ * @author harvey
+ */
+public enum TransferModeEnum {
+
+    /**
+     * 通过sftp原样上传
+     */
+    RAW("原样上传"),
+
+    /**
+     * 本机边读边gzip压缩，通过exec管道传到压测机边收边解压
+     */
+    GZIP("gzip压缩上传"),
+
+    /**
+     * 按文件开头的采样压缩率自动选择RAW或GZIP
+     */
+    AUTO("自动选择"),
+
+    ;
+
+    private String content;
+
+    TransferModeEnum(String content) {
+        this.content = content;
+    }
+
+    public String getContent() {
+        return this.content;
+    }
+
+}
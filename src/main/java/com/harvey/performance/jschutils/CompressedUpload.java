@@ -0,0 +1,222 @@
+package com.harvey.performance.jschutils;
+
+import com.harvey.performance.enums.TransferModeEnum;
+import com.harvey.performance.metrics.MetricsRegistry;
+import com.jcraft.jsch.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 压缩上传：本机边读边gzip压缩，通过exec管道写入压测机上的 gzip -dc，解压结果直接写到目标路径
+ * <p>
+ * 文件按固定大小的缓冲区流式读取，本机和压测机都不保存完整的压缩文件。
+ * 远程端先写入临时文件，解压成功后再替换目标文件
+ *
+ * @author harvey
+ */
+public class CompressedUpload {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompressedUpload.class);
+
+    /**
+     * 小于该大小的文件压缩收益不抵exec管道的开销，直接原样上传
+     */
+    private static final long MIN_COMPRESS_SIZE = 1024 * 64;
+
+    /**
+     * 采样压缩率时读取的文件开头字节数
+     */
+    private static final int SAMPLE_SIZE = 1024 * 256;
+
+    /**
+     * 采样压缩率（原始大小/压缩后大小）达到该值时选择压缩上传
+     */
+    private static final double MIN_RATIO = 1.5;
+
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    private CompressedUpload() {
+
+    }
+
+    /**
+     * 确定文件的上传方式，AUTO时按文件开头的采样压缩率选择
+     *
+     * @param localPath 本地文件路径
+     * @param mode      指定的上传方式
+     * @return RAW或GZIP
+     */
+    public static TransferModeEnum resolve(String localPath, TransferModeEnum mode) {
+        if (TransferModeEnum.AUTO != mode) {
+            return null == mode ? TransferModeEnum.RAW : mode;
+        }
+        File file = new File(localPath);
+        if (file.length() < MIN_COMPRESS_SIZE) {
+            return TransferModeEnum.RAW;
+        }
+        double ratio = sampleRatio(file);
+        LOG.debug("[{}] 采样压缩率[{}]", localPath, ratio);
+        return ratio >= MIN_RATIO ? TransferModeEnum.GZIP : TransferModeEnum.RAW;
+    }
+
+    /**
+     * 单个文件的上传方式，fileModes中指定了该文件时优先使用，否则使用统一的上传方式
+     *
+     * @param localPath 本地文件路径
+     * @param mode      统一的上传方式
+     * @param fileModes key：本地文件路径，value：该文件的上传方式，可以为null
+     * @return 该文件的上传方式
+     */
+    public static TransferModeEnum modeOf(String localPath, TransferModeEnum mode, Map<String, TransferModeEnum> fileModes) {
+        TransferModeEnum fileMode = null == fileModes ? null : fileModes.get(localPath);
+        return null == fileMode ? mode : fileMode;
+    }
+
+    /**
+     * @param mode      统一的上传方式
+     * @param fileModes key：本地文件路径，value：该文件的上传方式，可以为null
+     * @return true：所有文件都原样上传，不需要采样和压缩
+     */
+    static boolean allRaw(TransferModeEnum mode, Map<String, TransferModeEnum> fileModes) {
+        if (TransferModeEnum.RAW != mode) {
+            return false;
+        }
+        return null == fileModes || fileModes.values().stream().allMatch(fileMode -> TransferModeEnum.RAW == fileMode);
+    }
+
+    /**
+     * 按上传方式拆分文件：需要压缩的文件逐个压缩上传，其余文件和压缩上传失败的文件放入rawSrc/rawDst，由调用方通过sftp上传
+     *
+     * @param session   压测机的session
+     * @param src       本地源文件路径
+     * @param dst       压测机上的目标路径
+     * @param mode      统一的上传方式
+     * @param fileModes key：本地文件路径，value：该文件的上传方式，可以为null
+     * @param rawSrc    输出参数，需要原样上传的源文件路径
+     * @param rawDst    输出参数，需要原样上传的目标路径
+     */
+    static void uploadCompressible(Session session, List<String> src, List<String> dst, TransferModeEnum mode,
+                                   Map<String, TransferModeEnum> fileModes, List<String> rawSrc, List<String> rawDst) {
+        for (int i = 0; i < src.size(); i++) {
+            TransferModeEnum fileMode = modeOf(src.get(i), mode, fileModes);
+            if (TransferModeEnum.GZIP != resolve(src.get(i), fileMode) || !upload(session, src.get(i), dst.get(i))) {
+                rawSrc.add(src.get(i));
+                rawDst.add(dst.get(i));
+            }
+        }
+    }
+
+    /**
+     * 压缩上传单个文件，使用session的channel池中的exec管道
+     *
+     * @param session   压测机的session
+     * @param localPath 本地文件路径
+     * @param dst       压测机上的目标路径，可以是目录
+     * @return 判断是否上传成功
+     */
+    public static boolean upload(Session session, String localPath, String dst) {
+        File file = new File(localPath);
+        String host = session.getHost();
+        String cmd = "f=" + IncrementalSync.remoteFile(dst, localPath)
+                + " && gzip -dc > \"$f.gz-tmp\" && mv -f \"$f.gz-tmp\" \"$f\" || { rm -f \"$f.gz-tmp\"; exit 1; }";
+        long[] wireBytes = new long[1];
+        long start = System.currentTimeMillis();
+        ExecResult result = JschChannelPool.of(session).execWithInput(cmd, out -> {
+            CountingOutputStream counting = new CountingOutputStream(out);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = new FileInputStream(file);
+                 GZIPOutputStream gzip = new GZIPOutputStream(counting, BUFFER_SIZE)) {
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    gzip.write(buffer, 0, len);
+                }
+            }
+            wireBytes[0] = counting.count;
+        }, LineSink.DISCARD);
+        if (!result.isSuccess()) {
+            LOG.warn("[{}] [{}]压缩上传失败，退出码[{}]: [{}]", host, localPath, result.getExitCode(), result.getStderr());
+            return false;
+        }
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        long raw = file.length();
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.add("transfer_bytes_total", raw, "mode", "gzip");
+        metrics.add("transfer_wire_bytes_total", wireBytes[0], "mode", "gzip");
+        metrics.observe("transfer_seconds", millis / 1000.0, "mode", "gzip");
+        metrics.histogram("transfer_throughput_bytes_per_second", TransferProgress.THROUGHPUT_BOUNDS, "mode", "gzip")
+                .observe(raw * 1000.0 / millis);
+        LOG.info("[{}] [{}]压缩上传结束，原始[{}] KB，传输[{}] KB，有效速度[{}] KB/s，线路速度[{}] KB/s", host, file.getName(),
+                raw >> 10, wireBytes[0] >> 10, (raw >> 10) * 1000 / millis, (wireBytes[0] >> 10) * 1000 / millis);
+        return true;
+    }
+
+    /**
+     * 用最快的压缩级别压缩文件开头的一段数据，估算压缩率
+     */
+    private static double sampleRatio(File file) {
+        byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, file.length())];
+        int read = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int len;
+            while (read < sample.length && (len = in.read(sample, read, sample.length - read)) != -1) {
+                read += len;
+            }
+        } catch (IOException e) {
+            LOG.warn("[{}] 读取失败", file, e);
+            return 0;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, read);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(buffer);
+            }
+            return (double) read / Math.max(1, compressed);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 统计写入的字节数；关闭时只刷新，stdin由调用方关闭
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
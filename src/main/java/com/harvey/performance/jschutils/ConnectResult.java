@@ -0,0 +1,63 @@
+package com.harvey.performance.jschutils;
+
+import com.jcraft.jsch.Session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量连接压测机的结果，同时记录连接成功和失败的host
+ *
+ * @author harvey
+ */
+public class ConnectResult {
+
+    /**
+     * key：host，value：已连接的session，按传入host的顺序排列
+     */
+    private final Map<String, Session> connected = new LinkedHashMap<>();
+
+    /**
+     * key：host，value：失败原因
+     */
+    private final Map<String, String> failed = new LinkedHashMap<>();
+
+    void addConnected(String host, Session session) {
+        connected.put(host, session);
+    }
+
+    void addFailed(String host, String reason) {
+        failed.put(host, reason);
+    }
+
+    /**
+     * @return 已连接的session列表，顺序与传入的host列表一致
+     */
+    public List<Session> getSessions() {
+        return new ArrayList<>(connected.values());
+    }
+
+    /**
+     * @return 已连接的host列表
+     */
+    public List<String> getConnectedHosts() {
+        return new ArrayList<>(connected.keySet());
+    }
+
+    /**
+     * @return key：连接失败的host，value：失败原因
+     */
+    public Map<String, String> getFailedHosts() {
+        return Collections.unmodifiableMap(failed);
+    }
+
+    /**
+     * @return true：所有host均已连接
+     */
+    public boolean isAllConnected() {
+        return failed.isEmpty();
+    }
+}
@@ -0,0 +1,309 @@
+package com.harvey.performance.jschutils;
+
+import com.jcraft.jsch.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.harvey.performance.jschutils.JschExecUtil.shellQuote;
+
+/**
+ * rsync方式的差量上传：压测机计算已有文件的分块签名，本机只发送变化的数据，由压测机重建文件
+ * <p>
+ * 压测机端是一段通过exec管道启动的python脚本（兼容python2和python3）：
+ * sig模式按块输出 adler32、长度、md5；patch模式从stdin读取 复制块/字面数据 指令重建文件，
+ * 校验sha256后替换原文件。本机用滚动adler32在任意偏移查找相同的块，命中后用md5确认
+ *
+ * @author harvey
+ */
+public class DeltaSync {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeltaSync.class);
+
+    /**
+     * 小于该大小的文件直接完整上传
+     */
+    public static final long MIN_DELTA_SIZE = 1024 * 1024 * 8;
+
+    private static final int MIN_BLOCK_SIZE = 1024 * 4;
+
+    private static final int MAX_BLOCK_SIZE = 1024 * 256;
+
+    /**
+     * 单条字面数据指令的最大字节数
+     */
+    private static final int MAX_LITERAL = 1024 * 1024;
+
+    private static final int ADLER_MOD = 65521;
+
+    private static final int WRITE_BUFFER_SIZE = 1024 * 64;
+
+    /**
+     * 压测机端的签名计算和文件重建脚本
+     */
+    private static final String HELPER = String.join("\n",
+            "import sys,os,zlib,hashlib,struct",
+            "m,p,bs=sys.argv[1],sys.argv[2],int(sys.argv[3])",
+            "if m=='sig':",
+            "    f=open(p,'rb')",
+            "    while True:",
+            "        b=f.read(bs)",
+            "        if not b: break",
+            "        sys.stdout.write('%d %d %s\\n'%(zlib.adler32(b)&0xffffffff,len(b),hashlib.md5(b).hexdigest()))",
+            "    sys.exit(0)",
+            "i=getattr(sys.stdin,'buffer',sys.stdin)",
+            "def rd(n):",
+            "    d=i.read(n)",
+            "    if len(d)!=n: sys.exit(3)",
+            "    return d",
+            "f=open(p,'rb')",
+            "t=p+'.delta-tmp'",
+            "w=open(t,'wb')",
+            "h=hashlib.sha256()",
+            "while True:",
+            "    c=rd(1)",
+            "    if c==b'C':",
+            "        f.seek(struct.unpack('>Q',rd(8))[0]*bs)",
+            "        d=f.read(bs)",
+            "    elif c==b'L':",
+            "        d=rd(struct.unpack('>I',rd(4))[0])",
+            "    elif c==b'E':",
+            "        e=rd(64).decode()",
+            "        break",
+            "    else: sys.exit(3)",
+            "    w.write(d)",
+            "    h.update(d)",
+            "w.close()",
+            "if h.hexdigest()!=e:",
+            "    os.remove(t)",
+            "    sys.exit(2)",
+            "os.chmod(t,os.stat(p).st_mode&0o7777)",
+            "os.rename(t,p)",
+            "");
+
+    private DeltaSync() {
+
+    }
+
+    /**
+     * 差量上传单个文件，压测机上的目标文件需已存在
+     *
+     * @param session   压测机的session
+     * @param localPath 本地源文件路径
+     * @param dst       压测机上的目标路径，可以是目录
+     * @return true：上传成功；false：差量上传不可用或失败，需要完整上传
+     */
+    public static boolean sync(Session session, String localPath, String dst) {
+        String host = session.getHost();
+        File file = new File(localPath);
+        long length = file.length();
+        // 内存映射和块下标按int处理
+        if (length < MIN_DELTA_SIZE || length >= Integer.MAX_VALUE) {
+            return false;
+        }
+        String sha256 = IncrementalSync.getInstance().digest(localPath);
+        if (null == sha256) {
+            return false;
+        }
+        int blockSize = blockSize(length);
+        String remoteFile = IncrementalSync.remoteFile(dst, localPath);
+        long start = System.currentTimeMillis();
+        JschChannelPool pool = JschChannelPool.of(session);
+
+        List<String> lines = new ArrayList<>();
+        ExecResult sig;
+        try {
+            sig = pool.exec(helperCommand("sig", remoteFile, blockSize), (h, error, line) -> {
+                if (!error) {
+                    lines.add(line.toString());
+                }
+            }).join();
+        } catch (RuntimeException e) {
+            LOG.warn("[{}] 获取[{}]的分块签名失败", host, localPath, e);
+            return false;
+        }
+        if (!sig.isSuccess()) {
+            LOG.warn("[{}] 获取[{}]的分块签名失败，退出码[{}]: [{}]", host, localPath, sig.getExitCode(), sig.getStderr());
+            return false;
+        }
+        Map<Integer, List<Block>> signatures = parseSignatures(lines, blockSize);
+
+        long[] stats = new long[2];
+        ExecResult patch;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            patch = pool.execWithInput(helperCommand("patch", remoteFile, blockSize),
+                    out -> writeDelta(out, buffer, blockSize, signatures, sha256, stats), LineSink.DISCARD);
+        } catch (IOException e) {
+            LOG.warn("[{}] 读取[{}]失败", host, localPath, e);
+            return false;
+        }
+        if (!patch.isSuccess()) {
+            LOG.warn("[{}] [{}]差量重建失败，退出码[{}]: [{}]", host, localPath, patch.getExitCode(), patch.getStderr());
+            return false;
+        }
+        LOG.info("[{}] [{}]差量上传完成，块大小[{}]，复用[{}] KB，发送[{}] KB，耗时[{}]ms", host, file.getName(), blockSize,
+                stats[0] >> 10, stats[1] >> 10, System.currentTimeMillis() - start);
+        return true;
+    }
+
+    /**
+     * 块大小取文件大小的平方根，签名数量和字面数据量之间取得平衡
+     */
+    private static int blockSize(long length) {
+        int size = (int) Math.sqrt(length);
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    private static String helperCommand(String mode, String remoteFile, int blockSize) {
+        return "PY=$(command -v python3 || command -v python) && \"$PY\" -c " + shellQuote(HELPER)
+                + " " + mode + " " + remoteFile + " " + blockSize;
+    }
+
+    /**
+     * 解析签名，只保留完整的块
+     *
+     * @return key：adler32，value：校验和相同的块
+     */
+    private static Map<Integer, List<Block>> parseSignatures(List<String> lines, int blockSize) {
+        Map<Integer, List<Block>> signatures = new HashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String[] fields = lines.get(i).trim().split(" ");
+            if (fields.length != 3 || Integer.parseInt(fields[1]) != blockSize) {
+                continue;
+            }
+            int adler = (int) Long.parseLong(fields[0]);
+            signatures.computeIfAbsent(adler, k -> new ArrayList<>()).add(new Block(i, fields[2]));
+        }
+        return signatures;
+    }
+
+    /**
+     * 生成差量指令：C+块下标 复制压测机上已有的块，L+长度+数据 发送字面数据，E+sha256 结束
+     *
+     * @param stats 输出参数，[0]：复用的字节数，[1]：发送的字面数据字节数
+     */
+    private static void writeDelta(OutputStream stdin, ByteBuffer buffer, int blockSize, Map<Integer, List<Block>> signatures,
+                                   String sha256, long[] stats) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stdin, WRITE_BUFFER_SIZE));
+        byte[] window = new byte[blockSize];
+        byte[] literal = new byte[WRITE_BUFFER_SIZE];
+        int length = buffer.limit();
+        int pos = 0;
+        int literalStart = 0;
+        long a = 0;
+        long b = 0;
+        boolean fresh = true;
+        while (pos + blockSize <= length) {
+            if (fresh) {
+                a = 1;
+                b = 0;
+                for (int i = pos; i < pos + blockSize; i++) {
+                    a = (a + (buffer.get(i) & 0xff)) % ADLER_MOD;
+                    b = (b + a) % ADLER_MOD;
+                }
+                fresh = false;
+            }
+            List<Block> candidates = signatures.get((int) ((b << 16) | a));
+            Block match = null;
+            if (null != candidates) {
+                ByteBuffer slice = buffer.duplicate();
+                slice.position(pos);
+                slice.get(window);
+                String digest = IncrementalSync.toHex(md5.digest(window));
+                for (Block candidate : candidates) {
+                    if (candidate.md5.equals(digest)) {
+                        match = candidate;
+                        break;
+                    }
+                }
+            }
+            if (null != match) {
+                stats[1] += writeLiteral(out, buffer, literalStart, pos, literal);
+                out.writeByte('C');
+                out.writeLong(match.index);
+                stats[0] += blockSize;
+                pos += blockSize;
+                literalStart = pos;
+                fresh = true;
+                continue;
+            }
+            if (pos - literalStart >= MAX_LITERAL) {
+                stats[1] += writeLiteral(out, buffer, literalStart, pos, literal);
+                literalStart = pos;
+            }
+            if (pos + blockSize < length) {
+                int removed = buffer.get(pos) & 0xff;
+                int added = buffer.get(pos + blockSize) & 0xff;
+                a = Math.floorMod(a - removed + added, ADLER_MOD);
+                b = Math.floorMod(b - (long) blockSize * removed + a - 1, ADLER_MOD);
+            }
+            pos++;
+        }
+        stats[1] += writeLiteral(out, buffer, literalStart, length, literal);
+        out.writeByte('E');
+        out.write(sha256.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * 按MAX_LITERAL分段发送[from, to)范围内的字面数据
+     *
+     * @return 发送的字节数
+     */
+    private static long writeLiteral(DataOutputStream out, ByteBuffer buffer, int from, int to, byte[] copyBuffer) throws IOException {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(from);
+        int pos = from;
+        while (pos < to) {
+            int chunk = Math.min(MAX_LITERAL, to - pos);
+            out.writeByte('L');
+            out.writeInt(chunk);
+            for (int left = chunk; left > 0; ) {
+                int len = Math.min(left, copyBuffer.length);
+                slice.get(copyBuffer, 0, len);
+                out.write(copyBuffer, 0, len);
+                left -= len;
+            }
+            pos += chunk;
+        }
+        return to - from;
+    }
+
+    /**
+     * 压测机上已有文件的一个块
+     */
+    private static class Block {
+
+        private final long index;
+
+        private final String md5;
+
+        Block(long index, String md5) {
+            this.index = index;
+            this.md5 = md5;
+        }
+    }
+}
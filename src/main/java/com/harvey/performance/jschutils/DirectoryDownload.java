@@ -0,0 +1,276 @@
+package com.harvey.performance.jschutils;
+
+import com.harvey.performance.utils.Futures;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 并发下载远程目录：一个线程边遍历目录边把文件放入有界队列，多个sftp管道同时从队列取文件下载
+ * <p>
+ * 遍历和下载同时进行，内存中只保留待遍历的目录和队列中的文件；
+ * 大量小文件时多个管道的请求交错进行，下载速度受带宽而不是往返延迟限制
+ *
+ * @author harvey
+ */
+public class DirectoryDownload {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryDownload.class);
+
+    /**
+     * 默认同时下载的文件数
+     */
+    public static final int DEFAULT_WORKERS = 8;
+
+    /**
+     * 等待下载的最大文件数，队列写满时遍历暂停
+     */
+    private static final int QUEUE_CAPACITY = 1024;
+
+    /**
+     * 单个文件的最大重试次数
+     */
+    private static final int RETRY_TIME = 3;
+
+    private static final long BACKOFF_INITIAL = 500;
+
+    private static final long BACKOFF_MAX = 1000 * 8;
+
+    private static final RemoteFile POISON = new RemoteFile(null, null);
+
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "sftp-dir");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Session session;
+
+    private final JschChannelPool pool;
+
+    private final BlockingQueue<RemoteFile> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private final AtomicInteger foundFiles = new AtomicInteger();
+
+    private final AtomicInteger downloadedFiles = new AtomicInteger();
+
+    private final TransferProgress.Transfer transferred;
+
+    /**
+     * 下载失败的文件和遍历失败的目录
+     */
+    private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+    private DirectoryDownload(Session session) {
+        this.session = session;
+        this.pool = JschChannelPool.of(session);
+        this.transferred = TransferProgress.getInstance().start(session.getHost(), "目录", 0);
+    }
+
+    /**
+     * 下载目录，本地目录结构为 dstDir/源目录名/...
+     *
+     * @param session ssh连接的session
+     * @param srcDir  压测机上的目录
+     * @param dstDir  本地目标目录
+     * @param workers 同时下载的文件数，受channel池上限限制
+     * @return 判断是否所有文件都下载成功
+     */
+    public static boolean download(Session session, String srcDir, String dstDir, int workers) {
+        return new DirectoryDownload(session).run(srcDir, dstDir, workers);
+    }
+
+    private boolean run(String srcDir, String dstDir, int workers) {
+        String host = session.getHost();
+        // 遍历占用一个管道
+        int count = Math.max(1, Math.min(workers, pool.getMaxChannels() - 1));
+        File root = new File(dstDir, new File(srcDir).getName());
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            futures.add(CompletableFuture.runAsync(this::drain, WORKERS));
+        }
+        futures.add(CompletableFuture.runAsync(() -> walk(srcDir, root, count), WORKERS));
+        try {
+            Futures.allOf(futures).get();
+        } catch (ExecutionException e) {
+            LOG.error("[{}] 下载目录[{}]失败", host, srcDir, e.getCause());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("[{}] 等待目录下载结束时被中断", host);
+            return false;
+        } finally {
+            transferred.end();
+        }
+        if (0 == foundFiles.get() && failures.isEmpty()) {
+            LOG.warn("源文件夹为空");
+            return true;
+        }
+        LOG.info("[{}] [{}]下载结束，[{}/{}]个文件，[{}] KB，耗时[{}]ms", host, srcDir, downloadedFiles.get(), foundFiles.get(),
+                transferred.getBytes() >> 10, System.currentTimeMillis() - start);
+        if (!failures.isEmpty()) {
+            LOG.warn("[{}] 以下文件或目录下载失败：{}", host, failures);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 逐个目录遍历，文件放入队列，遍历结束后为每个下载线程放入结束标记
+     */
+    private void walk(String srcDir, File root, int workers) {
+        Deque<RemoteFile> dirs = new ArrayDeque<>();
+        dirs.push(new RemoteFile(srcDir, root));
+        ChannelSftp channel = null;
+        try {
+            channel = pool.borrowSftp();
+            while (!dirs.isEmpty()) {
+                RemoteFile dir = dirs.pop();
+                if (!dir.local.exists() && !dir.local.mkdirs()) {
+                    LOG.warn("[{}]创建失败！", dir.local);
+                }
+                Vector<?> entries;
+                try {
+                    entries = channel.ls(dir.remote);
+                } catch (SftpException e) {
+                    LOG.error("调用channelSftp.ls()失败", e);
+                    failures.add(dir.remote);
+                    continue;
+                }
+                for (Object entry : entries) {
+                    ChannelSftp.LsEntry lsEntry = (ChannelSftp.LsEntry) entry;
+                    String filename = lsEntry.getFilename();
+                    if ("..".equals(filename) || ".".equals(filename)) {
+                        continue;
+                    }
+                    SftpATTRS attrs = lsEntry.getAttrs();
+                    RemoteFile file = new RemoteFile(dir.remote + "/" + filename, new File(dir.local, filename));
+                    if (attrs.isDir()) {
+                        dirs.push(file);
+                    } else {
+                        foundFiles.incrementAndGet();
+                        queue.put(file);
+                    }
+                }
+            }
+        } catch (JSchException e) {
+            LOG.error("[{}] sftp管道创建失败", session.getHost(), e);
+            failures.add(srcDir);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.returnSftp(channel);
+            for (int i = 0; i < workers; i++) {
+                try {
+                    queue.put(POISON);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 从队列取文件下载，直到取到结束标记
+     */
+    private void drain() {
+        ChannelSftp channel = null;
+        try {
+            RemoteFile file;
+            while ((file = queue.take()) != POISON) {
+                long backoff = BACKOFF_INITIAL;
+                for (int attempt = 1; ; attempt++) {
+                    ProgressCounter counter = new ProgressCounter();
+                    try {
+                        if (null == channel) {
+                            channel = pool.borrowSftp();
+                        }
+                        channel.get(file.remote, file.local.getPath(), counter);
+                        downloadedFiles.incrementAndGet();
+                        break;
+                    } catch (JSchException | SftpException e) {
+                        // 失败的文件会重新完整下载，扣除已计入的字节数
+                        transferred.count(-counter.count);
+                        pool.returnSftp(channel);
+                        channel = null;
+                        if (attempt > RETRY_TIME) {
+                            LOG.warn("[{}]下载失败，已重试{}次", file.remote, RETRY_TIME, e);
+                            failures.add(file.remote);
+                            break;
+                        }
+                        LOG.warn("[{}]下载失败，{}ms后进行第{}次重试: {}", file.remote, backoff, attempt, e.getMessage());
+                        Thread.sleep(backoff);
+                        backoff = Math.min(backoff * 2, BACKOFF_MAX);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.returnSftp(channel);
+        }
+    }
+
+    /**
+     * 统计单个文件已下载的字节数，同时累加到总进度
+     */
+    private class ProgressCounter implements SftpProgressMonitor {
+
+        private long count;
+
+        @Override
+        public void init(int op, String src, String dest, long max) {
+
+        }
+
+        @Override
+        public boolean count(long count) {
+            this.count += count;
+            transferred.count(count);
+            return true;
+        }
+
+        @Override
+        public void end() {
+
+        }
+    }
+
+    /**
+     * 远程路径和对应的本地路径
+     */
+    private static class RemoteFile {
+
+        private final String remote;
+
+        private final File local;
+
+        RemoteFile(String remote, File local) {
+            this.remote = remote;
+            this.local = local;
+        }
+    }
+}
@@ -6,16 +6,16 @@ import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.Session;
 import org.apache.tools.ant.util.FileUtils;
-import org.apache.tools.tar.TarEntry;
-import org.apache.tools.tar.TarInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
+import java.util.zip.GZIPInputStream;
 
 /**
  * @author harvey
@@ -24,6 +24,11 @@ public class DownloadFiles {
 
     private static Logger LOG = LoggerFactory.getLogger(DownloadFiles.class);
 
+    /**
+     * 读取和解压的缓冲区大小
+     */
+    private static final int BUFFER_SIZE = 1024 * 64;
+
     /**
      * 通过JSch的sftp工具类下载远端文件
      *
@@ -42,31 +47,91 @@ public class DownloadFiles {
         }
         String filename = array[array.length - 1];
         StringBuilder packagePath = new StringBuilder();
-        Session session = JschUtil.getOneSession(host, username, password);
-        Channel channel = JschExecUtil.getOneExecChannel(session);
-        int execResult = -1;
-        if (channel != null) {
-            execResult = JschExecUtil.execCmdOld((ChannelExec) channel, generateCommand(remotePath, filename));
-            for (String file : array) {
-                if (StringUtils.isNotEmpty(file)) {
-                    packagePath.append("/").append(file);
+        Session session = JschSessionPool.getInstance().lease(host, username, password);
+        try {
+            Channel channel = JschExecUtil.getOneExecChannel(session);
+            int execResult = -1;
+            if (channel != null) {
+                execResult = JschExecUtil.execCmdOld((ChannelExec) channel, generateCommand(remotePath, filename));
+                for (String file : array) {
+                    if (StringUtils.isNotEmpty(file)) {
+                        packagePath.append("/").append(file);
+                    }
                 }
+                packagePath.append(".tar");
             }
-            packagePath.append(".tar");
-        }
-        if (execResult == 0) {
-            channel = JschSftpUtil.getOneSftpChannel(session);
-            if (channel != null) {
-                if (JschSftpUtil.downloadFile((ChannelSftp) channel, Collections.singletonList(packagePath.toString()), Collections.singletonList(localPath), host)) {
-                    LOG.info("已成功下载文件至\n[{}]\n请前往查看", localPath);
-                    unTarFile(localPath + "/" + filename + ".tar", localPath);
-                    return true;
+            if (execResult == 0) {
+                channel = JschSftpUtil.getOneSftpChannel(session);
+                if (channel != null) {
+                    if (JschSftpUtil.downloadFile((ChannelSftp) channel, Collections.singletonList(packagePath.toString()), Collections.singletonList(localPath), host)) {
+                        LOG.info("已成功下载文件至\n[{}]\n请前往查看", localPath);
+                        unTarFile(localPath + "/" + filename + ".tar", localPath);
+                        return true;
+                    }
                 }
             }
+        } finally {
+            JschSessionPool.getInstance().release(session);
         }
         return false;
     }
 
+    /**
+     * 流式下载远端目录：远端 tar -czf - 的输出直接从exec管道读取并在本地边收边解压，两端都不生成临时压缩包
+     *
+     * @param host       ip地址
+     * @param username   ssh用户名
+     * @param password   ssh密码
+     * @param remotePath 远端路径（必须使用绝对路径）
+     * @param localPath  本地路径（必须使用绝对路径）
+     * @return true：下载成功；false：下载失败
+     */
+    public static boolean streamRemoteFiles(String host, String username, String password, String remotePath, String localPath) {
+        return streamRemoteFiles(host, username, password, remotePath, localPath, null);
+    }
+
+    /**
+     * 流式下载远端目录，只解压路径匹配glob的条目
+     *
+     * @param host       ip地址
+     * @param username   ssh用户名
+     * @param password   ssh密码
+     * @param remotePath 远端路径（必须使用绝对路径）
+     * @param localPath  本地路径（必须使用绝对路径）
+     * @param glob       条目路径的glob，为空时解压全部
+     * @return true：下载成功；false：下载失败
+     */
+    public static boolean streamRemoteFiles(String host, String username, String password, String remotePath, String localPath, String glob) {
+        File remote = new File(remotePath);
+        String parent = null == remote.getParent() ? "/" : remote.getParent();
+        String cmd = "tar -C " + JschExecUtil.shellQuote(parent) + " -czf - " + JschExecUtil.shellQuote(remote.getName());
+        Session session = JschSessionPool.getInstance().lease(host, username, password);
+        if (null == session) {
+            return false;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            long[] received = new long[1];
+            ExecResult result = JschChannelPool.of(session).execWithOutput(cmd, in -> {
+                CountingInputStream counting = new CountingInputStream(in);
+                boolean extracted = new TarExtractor(localPath, TarExtractor.DEFAULT_WRITERS, glob)
+                        .extract(new GZIPInputStream(counting, BUFFER_SIZE));
+                received[0] = counting.count;
+                if (!extracted) {
+                    throw new IOException("[" + remotePath + "]解压失败");
+                }
+            }, LineSink.DISCARD);
+            if (!result.isSuccess()) {
+                LOG.error("[{}] 流式下载[{}]失败，退出码[{}]: [{}]", host, remotePath, result.getExitCode(), result.getStderr());
+                return false;
+            }
+            LOG.info("已成功下载文件至\n[{}]\n接收[{}] KB，耗时[{}]ms", localPath, received[0] >> 10, System.currentTimeMillis() - start);
+            return true;
+        } finally {
+            JschSessionPool.getInstance().release(session);
+        }
+    }
+
     /**
      * tar解压
      *
@@ -74,31 +139,53 @@ public class DownloadFiles {
      * @param destination 目标文件夹
      */
     private static void unTarFile(String tarPath, String destination) {
-        File targetFile = new File(destination);
-        // 如果目录不存在，则创建
-        targetFile.mkdirs();
-        try (TarInputStream tarInputStream = new TarInputStream(new FileInputStream(new File(tarPath)))) {
-            TarEntry entry;
-            while ((entry = tarInputStream.getNextEntry()) != null) {
-                if (entry.isDirectory()) {
-                    continue;
-                }
-                String name = destination + "/" + entry.getName();
-                // 需要判断文件所在的目录是否存在，处理压缩包里面有文件夹的情况
-                File tempFile = new File(name.substring(0, name.lastIndexOf("/")));
-                tempFile.mkdirs();
-                try (BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(new File(name)))) {
-                    int len;
-                    byte[] buffer = new byte[1024];
-                    while ((len = tarInputStream.read(buffer)) > 0) {
-                        outputStream.write(buffer, 0, len);
-                    }
-                }
+        unTarFile(tarPath, destination, null);
+    }
+
+    /**
+     * tar解压，只解压路径匹配glob的条目
+     *
+     * @param tarPath     压缩包文件路径
+     * @param destination 目标文件夹
+     * @param glob        条目路径的glob，例如只解压统计数据时使用 "**&#47;statistics.json"，为空时解压全部
+     * @return true：所有匹配的条目都解压成功
+     */
+    public static boolean unTarFile(String tarPath, String destination, String glob) {
+        try (InputStream in = new FileInputStream(new File(tarPath))) {
+            return new TarExtractor(destination, TarExtractor.DEFAULT_WRITERS, glob).extract(in);
+        } catch (IOException e) {
+            LOG.error("[{}]读取失败", tarPath, e);
+            return false;
+        }
+    }
+
+    /**
+     * 统计读取的字节数
+     */
+    private static class CountingInputStream extends FilterInputStream {
 
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count++;
             }
+            return b;
+        }
 
-        } catch (Exception e) {
-            LOG.error("unTarFile exception", e);
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
         }
     }
 
@@ -0,0 +1,84 @@
+package com.harvey.performance.jschutils;
+
+/**
+ * 远程命令的执行结果
+ *
+ * @author harvey
+ */
+public class ExecResult {
+
+    /**
+     * 执行命令的host
+     */
+    private final String host;
+
+    /**
+     * 命令的退出码，执行失败时为-1
+     */
+    private final int exitCode;
+
+    /**
+     * 标准输出
+     */
+    private final String stdout;
+
+    /**
+     * 错误输出
+     */
+    private final String stderr;
+
+    /**
+     * 开始执行的时间戳（毫秒）
+     */
+    private final long startTime;
+
+    /**
+     * 执行耗时（毫秒）
+     */
+    private final long durationMillis;
+
+    public ExecResult(String host, int exitCode, String stdout, String stderr, long startTime, long durationMillis) {
+        this.host = host;
+        this.exitCode = exitCode;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.startTime = startTime;
+        this.durationMillis = durationMillis;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public String getStdout() {
+        return stdout;
+    }
+
+    public String getStderr() {
+        return stderr;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @return true：命令退出码为0
+     */
+    public boolean isSuccess() {
+        return 0 == exitCode;
+    }
+
+    @Override
+    public String toString() {
+        return "ExecResult{host=" + host + ", exitCode=" + exitCode + ", durationMillis=" + durationMillis + "}";
+    }
+}
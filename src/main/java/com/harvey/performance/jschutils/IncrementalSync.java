@@ -0,0 +1,319 @@
+package com.harvey.performance.jschutils;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import com.harvey.performance.enums.TransferModeEnum;
+import com.jcraft.jsch.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.harvey.performance.jschutils.JschExecUtil.shellQuote;
+
+/**
+ * 增量上传：按sha256比较本地文件与压测机上的文件，只上传缺失或有变化的文件
+ * <p>
+ * 本地文件的摘要按 路径+大小+修改时间 缓存在manifest文件中，文件未变化时不重复计算；
+ * 压测机上所有目标文件的摘要通过一次exec批量查询；已存在的大文件优先使用DeltaSync只发送变化的数据
+ *
+ * @author harvey
+ */
+public class IncrementalSync {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IncrementalSync.class);
+
+    /**
+     * 本地摘要缓存文件
+     */
+    private static final String MANIFEST_PATH = System.getProperty("user.home") + "/.performance/upload-manifest.json";
+
+    /**
+     * 计算摘要的缓冲区大小
+     */
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    private static final IncrementalSync INSTANCE = new IncrementalSync();
+
+    /**
+     * key：本地文件绝对路径，value：size、lastModified、sha256
+     */
+    private final JSONObject manifest;
+
+    /**
+     * 正在计算的摘要，key：本地文件绝对路径+大小+修改时间；多个压测机同时同步同一文件时只读取一次
+     */
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private IncrementalSync() {
+        manifest = loadManifest();
+    }
+
+    public static IncrementalSync getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 只上传压测机上缺失或内容不同的文件
+     *
+     * @param session 压测机的session
+     * @param src     本地源文件路径
+     * @param dst     压测机上的目标路径，可以是目录
+     * @return 判断是否有文件上传失败
+     */
+    public boolean sync(Session session, List<String> src, List<String> dst) {
+        return sync(session, src, dst, TransferModeEnum.AUTO);
+    }
+
+    /**
+     * 只上传压测机上缺失或内容不同的文件
+     *
+     * @param session 压测机的session
+     * @param src     本地源文件路径
+     * @param dst     压测机上的目标路径，可以是目录
+     * @param mode    需要完整上传的文件的上传方式
+     * @return 判断是否有文件上传失败
+     */
+    public boolean sync(Session session, List<String> src, List<String> dst, TransferModeEnum mode) {
+        return sync(session, src, dst, mode, Collections.emptyMap());
+    }
+
+    /**
+     * 只上传压测机上缺失或内容不同的文件
+     *
+     * @param session   压测机的session
+     * @param src       本地源文件路径
+     * @param dst       压测机上的目标路径，可以是目录
+     * @param mode      需要完整上传的文件的统一上传方式
+     * @param fileModes key：本地源文件路径，value：该文件完整上传时的上传方式
+     * @return 判断是否有文件上传失败
+     */
+    public boolean sync(Session session, List<String> src, List<String> dst, TransferModeEnum mode,
+                        Map<String, TransferModeEnum> fileModes) {
+        Map<Integer, String> remote = src.isEmpty() ? new HashMap<>() : remoteDigests(session, src, dst);
+        List<String> uploadSrc = new ArrayList<>();
+        List<String> uploadDst = new ArrayList<>();
+        long skippedBytes = 0;
+        for (int i = 0; i < src.size(); i++) {
+            String local = digest(src.get(i));
+            if (null != local && local.equals(remote.get(i))) {
+                skippedBytes += new File(src.get(i)).length();
+            } else if (null == local || !remote.containsKey(i) || !DeltaSync.sync(session, src.get(i), dst.get(i))) {
+                // 压测机上没有旧文件或差量上传失败时完整上传
+                uploadSrc.add(src.get(i));
+                uploadDst.add(dst.get(i));
+            }
+        }
+        if (uploadSrc.size() < src.size()) {
+            LOG.info("[{}] [{}]个文件未变化，跳过[{}] KB", session.getHost(), src.size() - uploadSrc.size(), skippedBytes >> 10);
+        }
+        return uploadSrc.isEmpty() || JschChannelPool.of(session).upload(uploadSrc, uploadDst, mode, fileModes);
+    }
+
+    /**
+     * 批量查询压测机上的文件摘要，返回需要上传的文件下标
+     *
+     * @param session 压测机的session
+     * @param src     本地源文件路径
+     * @param dst     压测机上的目标路径，可以是目录
+     * @return 缺失或内容不同的文件下标
+     */
+    public List<Integer> changedIndexes(Session session, List<String> src, List<String> dst) {
+        List<Integer> changed = new ArrayList<>();
+        if (src.isEmpty()) {
+            return changed;
+        }
+        Map<Integer, String> remote = remoteDigests(session, src, dst);
+        for (int i = 0; i < src.size(); i++) {
+            String local = digest(src.get(i));
+            if (null == local || !local.equals(remote.get(i))) {
+                changed.add(i);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return true：压测机上所有文件都与本地一致
+     */
+    public boolean isUpToDate(Session session, List<String> src, List<String> dst) {
+        return changedIndexes(session, src, dst).isEmpty();
+    }
+
+    /**
+     * 计算本地文件的sha256，文件大小和修改时间未变化时使用缓存；同一文件正在计算时等待该次结果
+     *
+     * @param localPath 本地文件路径
+     * @return 十六进制摘要，文件不存在、读取失败或计算期间被修改时返回null
+     */
+    public String digest(String localPath) {
+        File file = new File(localPath);
+        if (!file.isFile()) {
+            return null;
+        }
+        String key = file.getAbsolutePath();
+        // 先读取大小和修改时间，计算期间文件被修改时不会把旧的属性和新的摘要记录在一起
+        long size = file.length();
+        long lastModified = file.lastModified();
+        synchronized (manifest) {
+            JSONObject entry = manifest.getJSONObject(key);
+            if (null != entry && entry.getLongValue("size") == size && entry.getLongValue("lastModified") == lastModified) {
+                return entry.getString("sha256");
+            }
+        }
+        String flightKey = key + "|" + size + "|" + lastModified;
+        CompletableFuture<String> computing = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(flightKey, computing);
+        if (null != existing) {
+            return existing.join();
+        }
+        String sha256 = null;
+        try {
+            sha256 = computeDigest(file, key, size, lastModified);
+        } finally {
+            inFlight.remove(flightKey, computing);
+            computing.complete(sha256);
+        }
+        return sha256;
+    }
+
+    private String computeDigest(File file, String key, long size, long lastModified) {
+        String sha256;
+        try {
+            sha256 = sha256(file);
+        } catch (IOException e) {
+            LOG.warn("[{}] 计算摘要失败", key, e);
+            return null;
+        }
+        if (file.length() != size || file.lastModified() != lastModified) {
+            LOG.warn("[{}] 计算摘要期间文件被修改", key);
+            return null;
+        }
+        JSONObject entry = new JSONObject();
+        entry.put("size", size);
+        entry.put("lastModified", lastModified);
+        entry.put("sha256", sha256);
+        synchronized (manifest) {
+            manifest.put(key, entry);
+            saveManifest();
+        }
+        return sha256;
+    }
+
+    /**
+     * 生成shell表达式：dst是目录时返回 dst/文件名，否则返回dst，与sftp put的目标规则一致
+     *
+     * @param dst       压测机上的目标路径
+     * @param localPath 本地源文件路径
+     * @return shell表达式
+     */
+    static String remoteFile(String dst, String localPath) {
+        String quoted = shellQuote(dst);
+        String name = shellQuote(new File(localPath).getName());
+        return "\"$(if [ -d " + quoted + " ]; then echo " + quoted + "/" + name + "; else echo " + quoted + "; fi)\"";
+    }
+
+    /**
+     * 一次exec查询所有目标文件的sha256
+     * <p>
+     * 输出逐行解析，不经过ExecResult.getStdout()：stdout只保留末尾的行数，文件较多时会丢失前面的摘要
+     *
+     * @return key：文件下标，value：压测机上的摘要，文件不存在时没有对应的key
+     */
+    private Map<Integer, String> remoteDigests(Session session, List<String> src, List<String> dst) {
+        StringBuilder cmd = new StringBuilder();
+        for (int i = 0; i < src.size(); i++) {
+            cmd.append("echo ").append(i).append(" $(sha256sum ").append(remoteFile(dst.get(i), src.get(i)))
+                    .append(" 2>/dev/null | cut -c1-64)\n");
+        }
+        Map<Integer, String> digests = new ConcurrentHashMap<>();
+        LineSink parser = (host, error, line) -> {
+            String[] fields = line.toString().trim().split(" ");
+            if (!error && fields.length == 2 && fields[1].length() == 64) {
+                digests.put(Integer.valueOf(fields[0]), fields[1]);
+            }
+        };
+        try {
+            JschChannelPool.of(session).exec(cmd.toString(), parser).join();
+        } catch (RuntimeException e) {
+            LOG.warn("[{}] 查询文件摘要失败，将上传全部文件", session.getHost(), e);
+            return new HashMap<>();
+        }
+        return digests;
+    }
+
+    static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static JSONObject loadManifest() {
+        File file = new File(MANIFEST_PATH);
+        if (file.isFile()) {
+            try {
+                JSONObject json = JSON.parseObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+                if (null != json) {
+                    return json;
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("[{}] 读取失败，重新生成", MANIFEST_PATH, e);
+            }
+        }
+        return new JSONObject();
+    }
+
+    /**
+     * 保存manifest，调用前需持有manifest锁
+     */
+    private void saveManifest() {
+        File file = new File(MANIFEST_PATH);
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            LOG.warn("[{}]创建失败！", dir);
+            return;
+        }
+        try {
+            File tmp = new File(dir, file.getName() + ".tmp");
+            Files.write(tmp.toPath(), JSON.toJSONString(manifest, SerializerFeature.PrettyFormat).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOG.warn("[{}] 保存失败", MANIFEST_PATH, e);
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package com.harvey.performance.jschutils;
+
+import com.harvey.performance.enums.TransferModeEnum;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 单个session上的channel池，在一条ssh连接上同时打开多个exec和sftp管道
+ * <p>
+ * 同时打开的channel数量不超过服务端的MaxSessions（OpenSSH默认为10），
+ * sftp管道用完后保留复用，exec管道每条命令打开一次；
+ * 服务端拒绝打开新channel时自动下调上限
+ *
+ * @author harvey
+ */
+public class JschChannelPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JschChannelPool.class);
+
+    /**
+     * 默认同时打开的channel上限，与OpenSSH的MaxSessions默认值一致
+     */
+    public static final int DEFAULT_MAX_CHANNELS = 10;
+
+    /**
+     * 等待空闲channel的最长时间
+     */
+    private static final long BORROW_TIMEOUT = 1000 * 60 * 10;
+
+    /**
+     * key：session，value：该session的channel池
+     */
+    private static final Map<Session, JschChannelPool> POOLS = new ConcurrentHashMap<>();
+
+    private final Session session;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    /**
+     * 已连接且空闲的sftp管道
+     */
+    private final Deque<ChannelSftp> idleSftp = new ArrayDeque<>();
+
+    /**
+     * 同时打开的channel上限
+     */
+    private int maxChannels;
+
+    /**
+     * 当前打开的channel数量（包含空闲的sftp管道）
+     */
+    private int openChannels = 0;
+
+    private JschChannelPool(Session session, int maxChannels) {
+        this.session = session;
+        this.maxChannels = Math.max(1, maxChannels);
+    }
+
+    /**
+     * 获取session对应的channel池，不存在时按默认上限创建
+     *
+     * @param session ssh连接的session
+     * @return channel池
+     */
+    public static JschChannelPool of(Session session) {
+        return of(session, DEFAULT_MAX_CHANNELS);
+    }
+
+    /**
+     * 获取session对应的channel池，不存在时按指定上限创建
+     *
+     * @param session     ssh连接的session
+     * @param maxChannels 同时打开的channel上限，应不超过服务端的MaxSessions
+     * @return channel池
+     */
+    public static JschChannelPool of(Session session, int maxChannels) {
+        return POOLS.computeIfAbsent(session, s -> new JschChannelPool(s, maxChannels));
+    }
+
+    /**
+     * 关闭并移除session对应的channel池，session断开前调用
+     *
+     * @param session ssh连接的session
+     */
+    static void remove(Session session) {
+        JschChannelPool pool = POOLS.remove(session);
+        if (null != pool) {
+            pool.close();
+        }
+    }
+
+    /**
+     * 借出一个已连接的sftp管道，优先复用空闲管道
+     *
+     * @return sftp管道，用完后调用returnSftp归还
+     * @throws JSchException 等待超时或打开管道失败
+     */
+    public ChannelSftp borrowSftp() throws JSchException {
+        lock.lock();
+        try {
+            ChannelSftp idle;
+            while ((idle = idleSftp.pollFirst()) != null) {
+                if (idle.isConnected()) {
+                    return idle;
+                }
+                openChannels--;
+            }
+            acquireSlot();
+        } finally {
+            lock.unlock();
+        }
+        ChannelSftp channel = null;
+        try {
+            channel = (ChannelSftp) session.openChannel("sftp");
+            channel.connect();
+            return channel;
+        } catch (JSchException e) {
+            if (null != channel) {
+                channel.disconnect();
+            }
+            rejected(e);
+            throw e;
+        }
+    }
+
+    /**
+     * 归还sftp管道，仍处于连接状态的管道保留复用
+     *
+     * @param channel 通过borrowSftp借出的管道
+     */
+    public void returnSftp(ChannelSftp channel) {
+        if (null == channel) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (channel.isConnected()) {
+                idleSftp.offerFirst(channel);
+            } else {
+                openChannels--;
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 打开一个新的exec管道
+     * <p>
+     * JSch在channelExec.connect()时才向服务端请求打开管道，服务端的拒绝在执行命令时才会出现，
+     * 因此池内执行命令都经过run，连接失败时由rejected下调上限
+     *
+     * @return 未连接的exec管道，用完后调用returnExec归还
+     * @throws JSchException 等待超时或打开管道失败
+     */
+    public ChannelExec borrowExec() throws JSchException {
+        lock.lock();
+        try {
+            acquireSlot();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return (ChannelExec) session.openChannel("exec");
+        } catch (JSchException e) {
+            rejected(e);
+            throw e;
+        }
+    }
+
+    /**
+     * 关闭exec管道并释放占用的名额
+     *
+     * @param channel 通过borrowExec借出的管道
+     */
+    public void returnExec(ChannelExec channel) {
+        if (null == channel) {
+            return;
+        }
+        channel.disconnect();
+        release();
+    }
+
+    /**
+     * 使用池中的exec管道异步执行命令，命令结束后自动归还管道
+     * <p>
+     * 在执行线程池中等待空闲管道，调用线程不会因管道全部占用而阻塞
+     *
+     * @param cmd  shell命令
+     * @param sink 命令输出的逐行消费者
+     * @return 命令结束时完成的future，等待管道超时或打开管道失败时以异常结束
+     */
+    public CompletableFuture<ExecResult> exec(String cmd, LineSink sink) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return run(cmd, sink, null, null);
+            } catch (JSchException e) {
+                throw new CompletionException(e);
+            }
+        }, JschExecUtil.EXEC_POOL);
+    }
+
+    /**
+     * 使用池中的exec管道执行命令，同时向命令的stdin写入内容
+     *
+     * @param cmd   shell命令
+     * @param input 写入stdin的内容
+     * @param sink  命令输出的逐行消费者
+     * @return 执行结果，管道打开失败时exitCode为-1
+     */
+    public ExecResult execWithInput(String cmd, JschExecUtil.InputWriter input, LineSink sink) {
+        try {
+            return run(cmd, sink, input, null);
+        } catch (JSchException e) {
+            LOG.error("[{}] exec管道创建失败", session.getHost(), e);
+            return new ExecResult(session.getHost(), -1, "", String.valueOf(e.getMessage()), System.currentTimeMillis(), 0);
+        }
+    }
+
+    /**
+     * 使用池中的exec管道执行命令，stdout的原始字节交给output直接读取
+     *
+     * @param cmd    shell命令
+     * @param output 读取stdout的消费者
+     * @param sink   错误输出的逐行消费者
+     * @return 执行结果，管道打开失败时exitCode为-1
+     */
+    public ExecResult execWithOutput(String cmd, JschExecUtil.OutputReader output, LineSink sink) {
+        try {
+            return run(cmd, sink, null, output);
+        } catch (JSchException e) {
+            LOG.error("[{}] exec管道创建失败", session.getHost(), e);
+            return new ExecResult(session.getHost(), -1, "", String.valueOf(e.getMessage()), System.currentTimeMillis(), 0);
+        }
+    }
+
+    /**
+     * 使用池中的exec管道异步执行命令，只保留输出的最后若干行
+     *
+     * @param cmd shell命令
+     * @return 命令结束时完成的future
+     */
+    public CompletableFuture<ExecResult> exec(String cmd) {
+        return exec(cmd, LineSink.DISCARD);
+    }
+
+    /**
+     * 上传文件，按采样压缩率为每个文件自动选择原样上传或压缩上传
+     *
+     * @param src 源文件路径
+     * @param dst 目标路径
+     * @return 判断是否有文件上传失败
+     */
+    public boolean upload(List<String> src, List<String> dst) {
+        return upload(src, dst, TransferModeEnum.AUTO);
+    }
+
+    /**
+     * 上传文件，压缩上传使用池中的exec管道，原样上传和压缩上传失败的文件使用池中的sftp管道
+     *
+     * @param src  源文件路径
+     * @param dst  目标路径
+     * @param mode 上传方式
+     * @return 判断是否有文件上传失败
+     */
+    public boolean upload(List<String> src, List<String> dst, TransferModeEnum mode) {
+        return upload(src, dst, mode, Collections.emptyMap());
+    }
+
+    /**
+     * 上传文件，fileModes中指定了上传方式的文件按指定方式上传，其余文件按mode上传
+     *
+     * @param src       源文件路径
+     * @param dst       目标路径
+     * @param mode      统一的上传方式
+     * @param fileModes key：本地源文件路径，value：该文件的上传方式
+     * @return 判断是否有文件上传失败
+     */
+    public boolean upload(List<String> src, List<String> dst, TransferModeEnum mode, Map<String, TransferModeEnum> fileModes) {
+        List<String> rawSrc = src;
+        List<String> rawDst = dst;
+        if (!CompressedUpload.allRaw(mode, fileModes) && null != src && null != dst && src.size() == dst.size()) {
+            // 先完成压缩上传再借出sftp管道，避免channel上限为1时互相等待
+            rawSrc = new ArrayList<>();
+            rawDst = new ArrayList<>();
+            CompressedUpload.uploadCompressible(session, src, dst, mode, fileModes, rawSrc, rawDst);
+            if (rawSrc.isEmpty()) {
+                return true;
+            }
+        }
+        ChannelSftp channel = null;
+        try {
+            channel = borrowSftp();
+            return JschSftpUtil.transferUpload(channel, rawSrc, rawDst, session.getHost());
+        } catch (JSchException e) {
+            LOG.error("[{}] sftp管道创建失败", session.getHost(), e);
+            return false;
+        } finally {
+            returnSftp(channel);
+        }
+    }
+
+    /**
+     * 使用池中的sftp管道下载文件
+     *
+     * @param src 源文件路径
+     * @param dst 目标路径
+     * @return 判断是否有文件下载失败
+     */
+    public boolean download(List<String> src, List<String> dst) {
+        ChannelSftp channel = null;
+        try {
+            channel = borrowSftp();
+            return JschSftpUtil.transferDownload(channel, src, dst, session.getHost());
+        } catch (JSchException e) {
+            LOG.error("[{}] sftp管道创建失败", session.getHost(), e);
+            return false;
+        } finally {
+            returnSftp(channel);
+        }
+    }
+
+    /**
+     * 借出exec管道执行命令并归还，管道连接失败时释放名额并按服务端拒绝处理
+     */
+    private ExecResult run(String cmd, LineSink sink, JschExecUtil.InputWriter input, JschExecUtil.OutputReader output) throws JSchException {
+        ChannelExec channel = borrowExec();
+        try {
+            return JschExecUtil.runChecked(channel, cmd, sink, input, output);
+        } catch (JSchException e) {
+            // 管道已在runChecked中断开，名额由rejected释放
+            channel = null;
+            rejected(e);
+            throw e;
+        } finally {
+            returnExec(channel);
+        }
+    }
+
+    /**
+     * @return 同时打开的channel上限
+     */
+    public int getMaxChannels() {
+        lock.lock();
+        try {
+            return maxChannels;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭所有空闲的sftp管道
+     */
+    public void close() {
+        lock.lock();
+        try {
+            ChannelSftp idle;
+            while ((idle = idleSftp.pollFirst()) != null) {
+                idle.disconnect();
+                openChannels--;
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 占用一个channel名额，达到上限时先关闭空闲的sftp管道，否则等待归还；调用前需持有锁
+     */
+    private void acquireSlot() throws JSchException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(BORROW_TIMEOUT);
+        while (openChannels >= maxChannels) {
+            ChannelSftp idle = idleSftp.pollLast();
+            if (null != idle) {
+                idle.disconnect();
+                openChannels--;
+                break;
+            }
+            if (nanos <= 0) {
+                throw new JSchException("[" + session.getHost() + "] 等待空闲channel超时");
+            }
+            try {
+                nanos = available.awaitNanos(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JSchException("[" + session.getHost() + "] 等待空闲channel被中断");
+            }
+        }
+        openChannels++;
+    }
+
+    /**
+     * 释放一个channel名额
+     */
+    private void release() {
+        lock.lock();
+        try {
+            openChannels--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 打开channel失败时释放名额；如果已有其它channel打开，认为达到了服务端的MaxSessions，下调上限
+     */
+    private void rejected(JSchException e) {
+        lock.lock();
+        try {
+            openChannels--;
+            if (openChannels > 0 && openChannels < maxChannels && session.isConnected()) {
+                LOG.warn("[{}] 服务端拒绝打开新channel，同时打开的channel上限调整为[{}]: {}", session.getHost(), openChannels, e.getMessage());
+                maxChannels = openChannels;
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
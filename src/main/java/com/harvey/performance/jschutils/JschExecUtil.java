@@ -1,5 +1,6 @@
 package com.harvey.performance.jschutils;
 
+import com.harvey.performance.metrics.MetricsRegistry;
 import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.JSchException;
@@ -7,11 +8,16 @@ import com.jcraft.jsch.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author harvey
@@ -20,6 +26,44 @@ public class JschExecUtil {
 
     private static final Logger LOG = LoggerFactory.getLogger(JschExecUtil.class);
 
+    /**
+     * 读取命令输出的缓冲区大小
+     */
+    private static final int BUFFER_SIZE = 1024 * 8;
+
+    /**
+     * 输出流结束后等待channel关闭的最长时间
+     */
+    private static final long CLOSE_TIMEOUT = 1000 * 5;
+
+    /**
+     * 等待channel关闭的检查间隔
+     */
+    private static final long CLOSE_POLL_INTERVAL = 20;
+
+    /**
+     * 检查后台进程是否就绪的初始间隔，之后每次翻倍
+     */
+    private static final long PROBE_INTERVAL_INITIAL = 200;
+
+    /**
+     * 检查后台进程是否就绪的最大间隔
+     */
+    private static final long PROBE_INTERVAL_MAX = 1000 * 2;
+
+    private static final String PROBE_DEAD = "__DEAD__";
+
+    private static final String PROBE_UP = "__UP__";
+
+    /**
+     * 执行命令和读取错误输出的线程池
+     */
+    static final ExecutorService EXEC_POOL = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "jsch-exec");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public JschExecUtil() {
 
     }
@@ -69,86 +113,329 @@ public class JschExecUtil {
     }
 
     /**
-     * 执行shell命令
+     * 执行shell命令，等待命令结束并返回真实的退出码
      *
      * @param channelExec exec管道
      * @param cmd         shell命令
-     * @return 执行结果（暂未使用起来）
+     * @return 命令的退出码，执行失败时返回-1
      */
     public static int execCmd(ChannelExec channelExec, String cmd) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ByteArrayOutputStream error = new ByteArrayOutputStream();
-        channelExec.setCommand(cmd);
-        channelExec.setInputStream(null);
-        channelExec.setOutputStream(out);
-        channelExec.setErrStream(error);
-        int result = -1;
-        try {
-            channelExec.connect();
-            //确保能够执行完成及响应所有数据
-            result = channelExec.getExitStatus();
-            try {
-                Thread.sleep(5 * 1000);
-            } catch (InterruptedException e) {
-                LOG.error("调用Thread.sleep()失败", e);
-            }
-            if (error.size() != 0) {
-                LOG.warn("[{}]执行结果: [{}]", channelExec.getSession().getHost(), error.toString());
-            }
-            channelExec.disconnect();
-        } catch (JSchException e) {
-            LOG.error("调用channelExec.disconnect()失败", e);
+        ExecResult result = runCmd(channelExec, cmd, LineSink.DISCARD, null, null);
+        if (result.getStderr().length() != 0) {
+            LOG.warn("[{}]执行结果: [{}]", result.getHost(), result.getStderr());
         }
-        return result;
+        return result.getExitCode();
     }
 
     /**
-     * 执行shell命令，并等待命令结束
+     * 执行shell命令，并等待命令结束，输出打印到控制台
      *
      * @param channelExec exec管道
      * @param cmd         shell命令
-     * @return 执行结果（暂未使用）
+     * @return 命令的退出码，执行失败时返回-1
      */
     public static int execCmdOld(ChannelExec channelExec, String cmd) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ByteArrayOutputStream extOut = new ByteArrayOutputStream();
-        ByteArrayOutputStream error = new ByteArrayOutputStream();
+        return execCmdOld(channelExec, cmd, LineSink.CONSOLE);
+    }
+
+    /**
+     * 执行shell命令，并等待命令结束
+     *
+     * @param channelExec exec管道
+     * @param cmd         shell命令
+     * @param sink        命令输出的逐行消费者
+     * @return 命令的退出码，执行失败时返回-1
+     */
+    public static int execCmdOld(ChannelExec channelExec, String cmd, LineSink sink) {
+        return runCmd(channelExec, cmd, sink, null, null).getExitCode();
+    }
+
+    /**
+     * 异步执行shell命令，命令结束时完成返回的future，输出打印到控制台
+     *
+     * @param channelExec exec管道
+     * @param cmd         shell命令
+     * @return 命令的退出码，执行失败时为-1
+     */
+    public static CompletableFuture<Integer> execCmdAsync(ChannelExec channelExec, String cmd) {
+        return execCmdAsync(channelExec, cmd, LineSink.CONSOLE);
+    }
+
+    /**
+     * 异步执行shell命令，命令结束时完成返回的future
+     *
+     * @param channelExec exec管道
+     * @param cmd         shell命令
+     * @param sink        命令输出的逐行消费者
+     * @return 命令的退出码，执行失败时为-1
+     */
+    public static CompletableFuture<Integer> execCmdAsync(ChannelExec channelExec, String cmd, LineSink sink) {
+        return exec(channelExec, cmd, sink).thenApply(ExecResult::getExitCode);
+    }
+
+    /**
+     * 执行shell命令，同时将input的内容写入命令的stdin，写完后发送EOF
+     *
+     * @param channelExec exec管道
+     * @param cmd         shell命令
+     * @param input       写入stdin的内容
+     * @param sink        命令输出的逐行消费者
+     * @return 执行结果
+     */
+    public static ExecResult execWithInput(ChannelExec channelExec, String cmd, InputWriter input, LineSink sink) {
+        return runCmd(channelExec, cmd, sink, input, null);
+    }
+
+    /**
+     * 执行shell命令，stdout的原始字节交给output直接读取，适用于输出二进制数据的命令
+     *
+     * @param channelExec exec管道
+     * @param cmd         shell命令
+     * @param output      读取stdout的消费者
+     * @param sink        错误输出的逐行消费者
+     * @return 执行结果，stdout为空
+     */
+    public static ExecResult execWithOutput(ChannelExec channelExec, String cmd, OutputReader output, LineSink sink) {
+        return runCmd(channelExec, cmd, sink, null, output);
+    }
+
+    /**
+     * 异步执行shell命令，返回退出码、输出和耗时
+     *
+     * @param channelExec exec管道
+     * @param cmd         shell命令
+     * @return 命令结束时完成的future
+     */
+    public static CompletableFuture<ExecResult> exec(ChannelExec channelExec, String cmd) {
+        return exec(channelExec, cmd, LineSink.DISCARD);
+    }
+
+    /**
+     * 异步执行shell命令，输出逐行交给sink，ExecResult中只保留输出的最后若干行
+     *
+     * @param channelExec exec管道
+     * @param cmd         shell命令
+     * @param sink        命令输出的逐行消费者
+     * @return 命令结束时完成的future
+     */
+    public static CompletableFuture<ExecResult> exec(ChannelExec channelExec, String cmd, LineSink sink) {
+        return CompletableFuture.supplyAsync(() -> runCmd(channelExec, cmd, sink, null, null), EXEC_POOL);
+    }
+
+    /**
+     * 使用session的channel池打开exec管道并异步执行shell命令
+     *
+     * @param session ssh连接的session
+     * @param cmd     shell命令
+     * @return 命令结束时完成的future，管道打开失败时以异常结束
+     */
+    public static CompletableFuture<ExecResult> exec(Session session, String cmd) {
+        return JschChannelPool.of(session).exec(cmd);
+    }
+
+    /**
+     * 以后台进程方式启动命令，通过进程号和监听端口确认进程已就绪
+     *
+     * @param session       ssh连接的session
+     * @param cmd           启动命令，例如 cd apache-jmeter/bin && ./jmeter-server
+     * @param logFile       后台进程的输出文件
+     * @param port          进程就绪后监听的端口，小于等于0时只检查进程是否存活
+     * @param timeoutMillis 等待进程就绪的最长时间
+     * @return 进程就绪时完成的future，stdout为后台进程的pid；进程退出或超时时exitCode为-1，stderr为日志末尾
+     */
+    public static CompletableFuture<ExecResult> startDaemon(Session session, String cmd, String logFile, int port, long timeoutMillis) {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.currentTimeMillis();
+            String host = session.getHost();
+            ExecResult launch = exec(session, "(" + cmd + ") > " + logFile + " 2>&1 < /dev/null & echo $!").join();
+            String pid = launch.getStdout().trim();
+            if (!launch.isSuccess() || pid.isEmpty()) {
+                return new ExecResult(host, -1, "", launch.getStderr(), start, System.currentTimeMillis() - start);
+            }
+            String probe = "kill -0 " + pid + " 2>/dev/null || echo " + PROBE_DEAD + "\n";
+            if (port > 0) {
+                probe += "(ss -ltn 2>/dev/null || netstat -ltn 2>/dev/null) | grep -q ':" + port + " ' && echo " + PROBE_UP + "\n";
+            }
+            long deadline = start + timeoutMillis;
+            long backoff = PROBE_INTERVAL_INITIAL;
+            while (System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                String state = exec(session, probe).join().getStdout();
+                if (state.contains(PROBE_DEAD)) {
+                    String tail = exec(session, "tail -n 20 " + logFile).join().getStdout();
+                    LOG.warn("[{}] 后台进程已退出: [{}]", host, tail);
+                    return new ExecResult(host, -1, pid, tail, start, System.currentTimeMillis() - start);
+                }
+                if (port <= 0 || state.contains(PROBE_UP)) {
+                    LOG.info("[{}] 后台进程[{}]已就绪，耗时[{}]ms", host, pid, System.currentTimeMillis() - start);
+                    return new ExecResult(host, 0, pid, "", start, System.currentTimeMillis() - start);
+                }
+                backoff = Math.min(backoff * 2, PROBE_INTERVAL_MAX);
+            }
+            LOG.warn("[{}] 等待后台进程[{}]就绪超时", host, pid);
+            return new ExecResult(host, -1, pid, "等待就绪超时", start, System.currentTimeMillis() - start);
+        }, EXEC_POOL);
+    }
+
+    /**
+     * 以阻塞读取的方式消费stdout和stderr，直到远端关闭输出流
+     * <p>
+     * JSch的输入流在没有数据时阻塞等待，远端发送EOF后返回-1，因此等待期间不占用CPU。
+     * 输出按行交给sink，同时只保留最后若干行用于返回结果
+     *
+     * @param sink  命令输出的逐行消费者
+     * @param input  写入命令stdin的内容，为空时不提供stdin
+     * @param output 直接读取stdout的原始字节，为空时stdout按行交给sink
+     */
+    private static ExecResult runCmd(ChannelExec channelExec, String cmd, LineSink sink, InputWriter input, OutputReader output) {
+        try {
+            return runChecked(channelExec, cmd, sink, input, output);
+        } catch (JSchException e) {
+            LOG.error("调用channelExec.connect()失败", e);
+            return new ExecResult(hostOf(channelExec), -1, "", String.valueOf(e.getMessage()), System.currentTimeMillis(), 0);
+        }
+    }
+
+    /**
+     * 与runCmd相同，但channelExec.connect()失败时抛出异常，由channel池判断是否达到服务端的MaxSessions
+     *
+     * @throws JSchException 打开管道失败，此时管道已断开
+     */
+    static ExecResult runChecked(ChannelExec channelExec, String cmd, LineSink sink, InputWriter input, OutputReader output) throws JSchException {
+        long start = System.currentTimeMillis();
+        String host = hostOf(channelExec);
+        TailLineSink stdout = new TailLineSink(TailLineSink.DEFAULT_MAX_LINES);
+        TailLineSink stderr = new TailLineSink(TailLineSink.DEFAULT_MAX_LINES);
         channelExec.setCommand(cmd);
         channelExec.setInputStream(null);
-        channelExec.setOutputStream(out);
-        channelExec.setExtOutputStream(extOut);
-        channelExec.setErrStream(error);
         int res = -1;
         try {
             InputStream in = channelExec.getInputStream();
-            try {
-                channelExec.connect();
-                byte[] tmp = new byte[1024];
-                while (true) {
-                    while (in.available() > 0) {
-                        int i = in.read(tmp, 0, 1024);
-                        if (i < 0) {
-                            break;
-                        }
-                        System.out.println(new String(tmp, 0, i));
-                    }
-                    if (channelExec.isClosed()) {
-                        res = channelExec.getExitStatus();
-                        if (error.size() != 0 && 0 != res) {
-                            LOG.warn("[{}]执行命令失败: [{}]", channelExec.getSession().getHost(), error.toString());
-                        }
-                        break;
-                    }
+            InputStream err = channelExec.getErrStream();
+            channelExec.connect();
+            Future<?> errFuture = EXEC_POOL.submit(() -> pump(err, new LineFramer(host, true, LineSink.tee(stderr, sink))));
+            if (null != output) {
+                output.read(in);
+                drain(in);
+            } else if (null == input) {
+                pump(in, new LineFramer(host, false, LineSink.tee(stdout, sink)));
+            } else {
+                Future<?> outFuture = EXEC_POOL.submit(() -> pump(in, new LineFramer(host, false, LineSink.tee(stdout, sink))));
+                try (OutputStream out = channelExec.getOutputStream()) {
+                    input.write(out);
                 }
-                channelExec.disconnect();
-                return res;
-            } catch (JSchException e) {
-                LOG.error("调用channelExec.connect()失败", e);
+                outFuture.get();
+            }
+            errFuture.get();
+            waitForClose(channelExec);
+            res = channelExec.getExitStatus();
+            String error = stderr.text();
+            if (error.length() != 0 && 0 != res) {
+                LOG.warn("[{}]执行命令失败: [{}]", host, error);
             }
+        } catch (JSchException e) {
+            MetricsRegistry.getInstance().increment("ssh_exec_total", "exit_code", String.valueOf(res));
+            throw e;
         } catch (IOException e) {
-            LOG.error("调用channelExec.getInputStream()失败", e);
+            LOG.error("读取channelExec输出失败", e);
+        } catch (ExecutionException e) {
+            LOG.error("读取channelExec错误输出失败", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("等待命令结束时被中断");
+        } finally {
+            channelExec.disconnect();
         }
-        channelExec.disconnect();
-        return res;
+        long duration = System.currentTimeMillis() - start;
+        MetricsRegistry.getInstance().observe("ssh_exec_seconds", duration / 1000.0);
+        MetricsRegistry.getInstance().increment("ssh_exec_total", "exit_code", String.valueOf(res));
+        return new ExecResult(host, res, stdout.text(), stderr.text(), start, duration);
+    }
+
+    /**
+     * 使用固定的缓冲区读取流直到结束，逐行交给framer
+     */
+    private static Void pump(InputStream in, LineFramer framer) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                framer.write(buffer, 0, len);
+            }
+        } finally {
+            framer.flush();
+        }
+        return null;
+    }
+
+    /**
+     * 读完流中剩余的数据，使远端能够正常结束
+     */
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (in.read(buffer) != -1) {
+            // 丢弃
+        }
+    }
+
+    /**
+     * 将参数用单引号包裹，作为shell命令的一个参数
+     *
+     * @param arg 参数，例如文件路径
+     * @return 转义后的参数
+     */
+    public static String shellQuote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+
+    private static String hostOf(ChannelExec channelExec) {
+        try {
+            return channelExec.getSession().getHost();
+        } catch (JSchException e) {
+            return "";
+        }
+    }
+
+    /**
+     * 输出流结束后，exit-status和close消息紧随其后到达，短暂等待channel关闭
+     */
+    private static void waitForClose(ChannelExec channelExec) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        while (!channelExec.isClosed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(CLOSE_POLL_INTERVAL);
+        }
+    }
+
+    /**
+     * 向远程命令的stdin写入内容
+     */
+    public interface InputWriter {
+
+        /**
+         * 写入内容，返回后stdin会被关闭
+         *
+         * @param out 远程命令的stdin
+         * @throws IOException 写入失败
+         */
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * 读取远程命令的stdout
+     */
+    public interface OutputReader {
+
+        /**
+         * 读取输出，返回后剩余的输出会被丢弃
+         *
+         * @param in 远程命令的stdout
+         * @throws IOException 读取失败
+         */
+        void read(InputStream in) throws IOException;
     }
 }
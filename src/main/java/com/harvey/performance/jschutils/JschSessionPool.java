@@ -0,0 +1,265 @@
+package com.harvey.performance.jschutils;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ssh连接池，按 user@host 缓存已建立的session
+ * <p>
+ * 通过lease/release借出和归还session，归还的session保持心跳并在空闲超时后关闭，
+ * 同一批压测机的多次运行可以复用连接，不再重复握手
+ *
+ * @author harvey
+ */
+public class JschSessionPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JschSessionPool.class);
+
+    /**
+     * 空闲session的最大保留时间
+     */
+    private static final long IDLE_TIMEOUT = 1000 * 60 * 10;
+
+    /**
+     * 空闲session的检查间隔
+     */
+    private static final long EVICT_INTERVAL = 1000 * 30;
+
+    /**
+     * 心跳间隔
+     */
+    private static final int KEEP_ALIVE_INTERVAL = 1000 * 15;
+
+    /**
+     * 心跳无响应的最大次数，超过后session断开
+     */
+    private static final int KEEP_ALIVE_COUNT_MAX = 3;
+
+    private static final JschSessionPool INSTANCE = new JschSessionPool();
+
+    /**
+     * key：user@host，value：空闲的session
+     */
+    private final Map<String, Deque<IdleSession>> idleSessions = new ConcurrentHashMap<>();
+
+    /**
+     * 已借出的session
+     */
+    private final Set<Session> leasedSessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 空闲session的回收线程
+     */
+    private final ScheduledExecutorService evictor;
+
+    private volatile boolean closed = false;
+
+    private JschSessionPool() {
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "jsch-session-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdle, EVICT_INTERVAL, EVICT_INTERVAL, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "jsch-session-pool-shutdown"));
+    }
+
+    public static JschSessionPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 借出一个session，优先复用健康的空闲session，没有时新建连接
+     *
+     * @param host     ip地址
+     * @param username ssh用户名
+     * @param password ssh密码
+     * @return 已连接的session，连接失败时返回null
+     */
+    public Session lease(String host, String username, String password) {
+        try {
+            return lease(host, username, password, JschUtil.DEFAULT_CONNECT_DEADLINE);
+        } catch (JSchException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 借出一个session，优先复用健康的空闲session，没有时在截止时间内新建连接
+     *
+     * @param host          ip地址
+     * @param username      ssh用户名
+     * @param password      ssh密码
+     * @param timeoutMillis 新建连接的截止时间（毫秒）
+     * @return 已连接的session
+     * @throws JSchException 连接池已关闭或截止时间内未能建立连接
+     */
+    public Session lease(String host, String username, String password, long timeoutMillis) throws JSchException {
+        if (closed) {
+            throw new JSchException("连接池已关闭");
+        }
+        Deque<IdleSession> deque = idleSessions.get(key(username, host));
+        if (null != deque) {
+            IdleSession idle;
+            while ((idle = deque.pollFirst()) != null) {
+                if (isHealthy(idle.session)) {
+                    leasedSessions.add(idle.session);
+                    LOG.debug("[{}] 复用已有session", host);
+                    return idle.session;
+                }
+                disconnect(idle.session);
+            }
+        }
+        Session session = JschUtil.connectWithBackoff(host, username, password, timeoutMillis);
+        enableKeepAlive(session);
+        leasedSessions.add(session);
+        return session;
+    }
+
+    /**
+     * 并发借出多个host的session
+     *
+     * @param hostList      压测机ip列表
+     * @param username      ssh用户名
+     * @param password      ssh密码
+     * @param parallelism   最大并发连接数
+     * @param timeoutMillis 单个host新建连接的截止时间（毫秒）
+     * @return 连接成功和失败的host
+     */
+    public ConnectResult leaseAll(List<String> hostList, String username, String password, int parallelism, long timeoutMillis) {
+        return JschUtil.fanOut(hostList, parallelism, host -> lease(host, username, password, timeoutMillis));
+    }
+
+    /**
+     * 归还session，已断开的session直接丢弃
+     *
+     * @param session 通过lease借出的session
+     */
+    public void release(Session session) {
+        if (null == session) {
+            return;
+        }
+        leasedSessions.remove(session);
+        if (closed || !session.isConnected()) {
+            disconnect(session);
+            return;
+        }
+        idleSessions.computeIfAbsent(key(session.getUserName(), session.getHost()), k -> new ConcurrentLinkedDeque<>())
+                .offerFirst(new IdleSession(session, System.currentTimeMillis()));
+    }
+
+    /**
+     * 作废session，不再放回连接池
+     *
+     * @param session 通过lease借出的session
+     */
+    public void invalidate(Session session) {
+        if (null == session) {
+            return;
+        }
+        leasedSessions.remove(session);
+        disconnect(session);
+    }
+
+    /**
+     * 关闭连接池，断开所有session
+     */
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (Deque<IdleSession> deque : idleSessions.values()) {
+            IdleSession idle;
+            while ((idle = deque.pollFirst()) != null) {
+                disconnect(idle.session);
+            }
+        }
+        for (Session session : leasedSessions) {
+            disconnect(session);
+        }
+        leasedSessions.clear();
+    }
+
+    /**
+     * 关闭空闲超时或已断开的session
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Deque<IdleSession> deque : idleSessions.values()) {
+            Iterator<IdleSession> iterator = deque.iterator();
+            while (iterator.hasNext()) {
+                IdleSession idle = iterator.next();
+                if (now - idle.idleSince > IDLE_TIMEOUT || !idle.session.isConnected()) {
+                    if (deque.removeFirstOccurrence(idle)) {
+                        LOG.debug("[{}] 关闭空闲session", idle.session.getHost());
+                        disconnect(idle.session);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 健康检查：连接仍然存在且心跳能够发出
+     */
+    private boolean isHealthy(Session session) {
+        if (!session.isConnected()) {
+            return false;
+        }
+        try {
+            session.sendKeepAliveMsg();
+            return true;
+        } catch (Exception e) {
+            LOG.warn("[{}] session心跳失败，重新建立连接", session.getHost());
+            return false;
+        }
+    }
+
+    private void enableKeepAlive(Session session) {
+        try {
+            session.setServerAliveInterval(KEEP_ALIVE_INTERVAL);
+            session.setServerAliveCountMax(KEEP_ALIVE_COUNT_MAX);
+        } catch (JSchException e) {
+            LOG.warn("[{}] 设置session心跳失败", session.getHost(), e);
+        }
+    }
+
+    /**
+     * 关闭session上的channel池后断开session
+     */
+    private static void disconnect(Session session) {
+        JschChannelPool.remove(session);
+        session.disconnect();
+    }
+
+    private static String key(String username, String host) {
+        return username + "@" + host;
+    }
+
+    /**
+     * 空闲session及其进入空闲状态的时间
+     */
+    private static class IdleSession {
+
+        private final Session session;
+
+        private final long idleSince;
+
+        IdleSession(Session session, long idleSince) {
+            this.session = session;
+            this.idleSince = idleSince;
+        }
+    }
+}
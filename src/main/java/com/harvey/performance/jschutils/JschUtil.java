@@ -1,5 +1,6 @@
 package com.harvey.performance.jschutils;
 
+import com.harvey.performance.metrics.MetricsRegistry;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
@@ -7,9 +8,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.collections.CollectionUtils;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author harvey
@@ -18,10 +30,43 @@ public class JschUtil {
 
     private static final int TIMEOUT = 1000 * 60 * 10;
 
-    private static final int DEFAULT_PORT = 22;
+    /**
+     * sshd的默认端口
+     */
+    public static final int DEFAULT_PORT = 22;
 
     private static final int RETRY_TIME = 3;
 
+    /**
+     * 单次建立连接的超时时间
+     */
+    private static final int CONNECT_TIMEOUT = 1000 * 15;
+
+    /**
+     * 连接失败后首次重试的等待时间，之后每次翻倍
+     */
+    private static final long BACKOFF_INITIAL = 500;
+
+    /**
+     * 连接失败后重试的最大等待时间
+     */
+    private static final long BACKOFF_MAX = 1000 * 8;
+
+    /**
+     * 单个host建立连接的默认截止时间
+     */
+    public static final long DEFAULT_CONNECT_DEADLINE = 1000 * 60 * 2;
+
+    /**
+     * 并发建立连接的默认线程数
+     */
+    public static final int DEFAULT_CONNECT_PARALLELISM = 16;
+
+    /**
+     * sshd版本标识的前缀
+     */
+    private static final String SSH_BANNER = "SSH-";
+
     private static final Logger LOG = LoggerFactory.getLogger(JschUtil.class);
 
     public static Session getOneSession(String host, String username, String password) {
@@ -31,15 +76,7 @@ public class JschUtil {
             for (int retry = RETRY_TIME; retry > 0; ) {
                 retry--;
                 try {
-                    session = jSch.getSession(username, host, DEFAULT_PORT);
-                    // 设置密码
-                    session.setPassword(password);
-                    Properties config = new Properties();
-                    config.put("StrictHostKeyChecking", "no");
-                    // 为Session对象设置properties
-                    session.setConfig(config);
-                    // 设置timeout时间
-                    session.setTimeout(TIMEOUT);
+                    session = newSession(jSch, host, username, password);
                     // 通过Session建立链接
                     session.connect();
                     return session;
@@ -53,44 +90,174 @@ public class JschUtil {
 
     /**
      * 创建ssh连接，得到host列表和session列表
+     * <p>
+     * 使用默认并发数和截止时间并发连接，连接失败的host记录在日志中；需要知道哪些host失败时使用返回ConnectResult的重载
      *
      * @param hostList 阿里云查询实例状态的返回结果
      * @param username 实例的系统登录名
      * @param password 实例的登录密码
+     * @return 已连接的session列表，没有host连接成功时返回null
      */
     public static List<Session> getSession(List<String> hostList, String username, String password) {
-        if (!CollectionUtils.hasElements(hostList)) {
-            return null;
-        }
+        List<Session> sessionList = getSession(hostList, username, password, DEFAULT_CONNECT_PARALLELISM, DEFAULT_CONNECT_DEADLINE).getSessions();
+        return sessionList.isEmpty() ? null : sessionList;
+    }
+
+    /**
+     * 在截止时间内建立ssh连接，失败后按指数退避重试
+     *
+     * @param host          ip地址
+     * @param username      ssh用户名
+     * @param password      ssh密码
+     * @param timeoutMillis 该host建立连接的截止时间（毫秒）
+     * @return 已连接的session
+     * @throws JSchException 截止时间内仍未连接成功，返回最后一次的异常
+     */
+    public static Session connectWithBackoff(String host, String username, String password, long timeoutMillis) throws JSchException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long backoff = BACKOFF_INITIAL;
         JSch jSch = new JSch();
-        List<Session> sessionList = null;
-        Session session;
-        for (String host : hostList) {
-            for (int retry = RETRY_TIME; retry > 0; ) {
-                retry--;
+        for (int attempt = 1; ; attempt++) {
+            long remaining = deadline - System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            try {
+                Session session = newSession(jSch, host, username, password);
+                session.connect((int) Math.max(1000, Math.min(CONNECT_TIMEOUT, remaining)));
+                MetricsRegistry.getInstance().observeSince("ssh_connect_seconds", startNanos, "result", "success");
+                return session;
+            } catch (JSchException e) {
+                MetricsRegistry.getInstance().observeSince("ssh_connect_seconds", startNanos, "result", "failure");
+                remaining = deadline - System.currentTimeMillis();
+                if (remaining <= backoff) {
+                    LOG.error("[{}] 连接失败，已尝试{}次", host, attempt, e);
+                    throw e;
+                }
+                LOG.warn("[{}] 连接失败，{}ms后进行第{}次重试", host, backoff, attempt + 1);
                 try {
-                    session = jSch.getSession(username, host, DEFAULT_PORT);
-                    // 设置密码
-                    session.setPassword(password);
-                    Properties config = new Properties();
-                    config.put("StrictHostKeyChecking", "no");
-                    // 为Session对象设置properties
-                    session.setConfig(config);
-                    // 设置timeout时间
-                    session.setTimeout(TIMEOUT);
-                    // 通过Session建立链接
-                    session.connect();
-                    if (!CollectionUtils.hasElements(sessionList)) {
-                        sessionList = new ArrayList<>();
-                    }
-                    sessionList.add(session);
-                    break;
-                } catch (JSchException e) {
-                    holdException(retry, host, e);
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e1) {
+                    Thread.currentThread().interrupt();
+                    throw new JSchException("[" + host + "] 连接被中断");
+                }
+                backoff = Math.min(backoff * 2, BACKOFF_MAX);
+            }
+        }
+    }
+
+    /**
+     * 并发创建ssh连接，单个host连接失败或超时不会阻塞其它host
+     *
+     * @param hostList      压测机ip列表
+     * @param username      实例的系统登录名
+     * @param password      实例的登录密码
+     * @param parallelism   最大并发连接数
+     * @param timeoutMillis 单个host建立连接的截止时间（毫秒）
+     * @return 连接成功和失败的host
+     */
+    public static ConnectResult getSession(List<String> hostList, String username, String password, int parallelism, long timeoutMillis) {
+        return fanOut(hostList, parallelism, host -> connectWithBackoff(host, username, password, timeoutMillis));
+    }
+
+    /**
+     * 使用有界线程池对每个host执行connector，汇总成功和失败的结果
+     */
+    static ConnectResult fanOut(List<String> hostList, int parallelism, HostConnector connector) {
+        ConnectResult result = new ConnectResult();
+        if (!CollectionUtils.hasElements(hostList)) {
+            return result;
+        }
+        int threads = Math.max(1, Math.min(parallelism, hostList.size()));
+        ExecutorService threadPool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "jsch-connect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<String, Future<Session>> futures = new LinkedHashMap<>();
+        for (String host : new LinkedHashSet<>(hostList)) {
+            futures.put(host, threadPool.submit(() -> connector.connect(host)));
+        }
+        threadPool.shutdown();
+        for (Map.Entry<String, Future<Session>> entry : futures.entrySet()) {
+            try {
+                Session session = entry.getValue().get();
+                if (null == session) {
+                    result.addFailed(entry.getKey(), "session为空");
+                } else {
+                    result.addConnected(entry.getKey(), session);
+                }
+            } catch (ExecutionException e) {
+                result.addFailed(entry.getKey(), String.valueOf(e.getCause().getMessage()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.addFailed(entry.getKey(), "连接被中断");
+            }
+        }
+        if (!result.isAllConnected()) {
+            LOG.warn("以下host连接失败：{}", result.getFailedHosts());
+        }
+        return result;
+    }
+
+    /**
+     * 探测sshd是否已可以接受连接：建立TCP连接并读取ssh协议的版本标识
+     * <p>
+     * 只检查端口已监听不够，sshd启动过程中端口可能已打开但尚未发送版本标识
+     *
+     * @param host          ip地址
+     * @param timeoutMillis 建立连接和读取的超时时间（毫秒）
+     * @return true：已收到以SSH-开头的版本标识
+     */
+    public static boolean isSshReady(String host, int timeoutMillis) {
+        return isSshReady(host, DEFAULT_PORT, timeoutMillis);
+    }
+
+    /**
+     * 探测指定端口上的sshd是否已可以接受连接
+     *
+     * @param host          ip地址
+     * @param port          sshd端口
+     * @param timeoutMillis 建立连接和读取的超时时间（毫秒）
+     * @return true：已收到以SSH-开头的版本标识
+     */
+    public static boolean isSshReady(String host, int port, int timeoutMillis) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            InputStream in = socket.getInputStream();
+            byte[] banner = new byte[SSH_BANNER.length()];
+            int read = 0;
+            while (read < banner.length) {
+                int len = in.read(banner, read, banner.length - read);
+                if (-1 == len) {
+                    return false;
                 }
+                read += len;
             }
+            return SSH_BANNER.equals(new String(banner, StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            return false;
         }
-        return sessionList;
+    }
+
+    private static Session newSession(JSch jSch, String host, String username, String password) throws JSchException {
+        Session session = jSch.getSession(username, host, DEFAULT_PORT);
+        // 设置密码
+        session.setPassword(password);
+        Properties config = new Properties();
+        config.put("StrictHostKeyChecking", "no");
+        // 为Session对象设置properties
+        session.setConfig(config);
+        // 设置timeout时间
+        session.setTimeout(TIMEOUT);
+        return session;
+    }
+
+    /**
+     * 对单个host建立连接
+     */
+    interface HostConnector {
+
+        Session connect(String host) throws JSchException;
     }
 
     private static void holdException(int retry, String host, JSchException e) {
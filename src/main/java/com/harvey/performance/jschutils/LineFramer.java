@@ -0,0 +1,85 @@
+package com.harvey.performance.jschutils;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 将字节流按行切分后交给LineSink
+ * <p>
+ * 使用固定大小且复用的字节和字符缓冲区，超过MAX_LINE的行会被拆成多段输出，
+ * 因此内存占用与输出总量无关。非线程安全，每个流使用一个实例
+ *
+ * @author harvey
+ */
+class LineFramer {
+
+    /**
+     * 单行的最大字节数
+     */
+    static final int MAX_LINE = 1024 * 8;
+
+    private final String host;
+
+    private final boolean error;
+
+    private final LineSink sink;
+
+    private final byte[] lineBuffer = new byte[MAX_LINE];
+
+    private final CharBuffer charBuffer = CharBuffer.allocate(MAX_LINE);
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private int length = 0;
+
+    LineFramer(String host, boolean error, LineSink sink) {
+        this.host = host;
+        this.error = error;
+        this.sink = sink;
+    }
+
+    /**
+     * 写入一段字节，遇到换行符或缓冲区写满时输出一行
+     */
+    void write(byte[] bytes, int offset, int len) {
+        for (int i = offset; i < offset + len; i++) {
+            byte b = bytes[i];
+            if ('\n' == b) {
+                emit();
+            } else {
+                if (length == MAX_LINE) {
+                    emit();
+                }
+                lineBuffer[length++] = b;
+            }
+        }
+    }
+
+    /**
+     * 输出缓冲区中剩余的不完整行
+     */
+    void flush() {
+        if (length > 0) {
+            emit();
+        }
+    }
+
+    private void emit() {
+        int end = length;
+        if (end > 0 && '\r' == lineBuffer[end - 1]) {
+            end--;
+        }
+        charBuffer.clear();
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(lineBuffer, 0, end), charBuffer, true);
+        decoder.flush(charBuffer);
+        charBuffer.flip();
+        length = 0;
+        sink.onLine(host, error, charBuffer);
+    }
+}
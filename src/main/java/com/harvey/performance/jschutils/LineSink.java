@@ -0,0 +1,46 @@
+package com.harvey.performance.jschutils;
+
+/**
+ * 远程命令输出的逐行消费者
+ * <p>
+ * line在回调返回后会被复用，需要保留时应调用toString()复制；
+ * 同一命令的stdout和stderr在不同线程回调，实现类需要保证线程安全
+ *
+ * @author harvey
+ */
+public interface LineSink {
+
+    /**
+     * 打印到控制台
+     */
+    LineSink CONSOLE = (host, error, line) -> System.out.println(line);
+
+    /**
+     * 丢弃所有输出
+     */
+    LineSink DISCARD = (host, error, line) -> {
+    };
+
+    /**
+     * 消费一行输出
+     *
+     * @param host  执行命令的host
+     * @param error true：来自stderr；false：来自stdout
+     * @param line  不含换行符的一行内容
+     */
+    void onLine(String host, boolean error, CharSequence line);
+
+    /**
+     * 将输出同时交给两个消费者
+     *
+     * @param first  第一个消费者
+     * @param second 第二个消费者
+     * @return 组合后的消费者
+     */
+    static LineSink tee(LineSink first, LineSink second) {
+        return (host, error, line) -> {
+            first.onLine(host, error, line);
+            second.onLine(host, error, line);
+        };
+    }
+}
@@ -0,0 +1,283 @@
+package com.harvey.performance.jschutils;
+
+import com.harvey.performance.utils.Futures;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.harvey.performance.jschutils.JschExecUtil.shellQuote;
+
+/**
+ * 分段并行下载大文件：按偏移量把远程文件切成多个分段，通过同一session上的多个sftp管道同时下载
+ * <p>
+ * 各分段直接写入本地文件的对应位置，分段失败时按指数退避从断点续传；
+ * 全部完成后与压测机上的sha256比对，一致后再替换目标文件；
+ * 无法获取压测机上的sha256时默认下载失败，显式允许跳过校验时改为要求本地文件与下载前后远程文件的大小一致
+ *
+ * @author harvey
+ */
+public class RangedDownload {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RangedDownload.class);
+
+    /**
+     * 默认同时下载的分段数
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    /**
+     * 小于该大小的文件不切分，作为一个分段下载
+     */
+    private static final long MIN_RANGED_SIZE = 1024L * 1024 * 64;
+
+    /**
+     * 单个分段的大小
+     */
+    private static final long RANGE_SIZE = 1024L * 1024 * 32;
+
+    /**
+     * 单个分段的最大重试次数
+     */
+    private static final int RETRY_TIME = 5;
+
+    private static final long BACKOFF_INITIAL = 500;
+
+    private static final long BACKOFF_MAX = 1000 * 16;
+
+    private static final int BUFFER_SIZE = 1024 * 256;
+
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "sftp-range");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private RangedDownload() {
+
+    }
+
+    /**
+     * 下载单个文件，大文件分段并行下载，小文件作为一个分段下载；无法获取远程摘要时下载失败
+     *
+     * @param session     压测机的session
+     * @param src         压测机上的文件路径
+     * @param dst         本地目标路径，可以是目录
+     * @param parallelism 同时下载的分段数，受channel池上限限制
+     * @return 判断是否下载成功
+     */
+    public static boolean download(Session session, String src, String dst, int parallelism) {
+        return download(session, src, dst, parallelism, false);
+    }
+
+    /**
+     * 下载单个文件，大文件分段并行下载，小文件作为一个分段下载；都按相同的退避重试和摘要校验
+     *
+     * @param session       压测机的session
+     * @param src           压测机上的文件路径
+     * @param dst           本地目标路径，可以是目录
+     * @param parallelism   同时下载的分段数，受channel池上限限制
+     * @param allowNoDigest true：无法获取远程摘要时只校验文件大小；false：无法获取远程摘要时下载失败
+     * @return 判断是否下载成功
+     */
+    public static boolean download(Session session, String src, String dst, int parallelism, boolean allowNoDigest) {
+        String host = session.getHost();
+        JschChannelPool pool = JschChannelPool.of(session);
+        long size = stat(pool, host, src);
+        if (size < 0) {
+            return false;
+        }
+
+        File target = new File(dst);
+        if (target.isDirectory()) {
+            target = new File(target, new File(src).getName());
+        }
+        File part = new File(target.getPath() + ".part");
+        // 远程摘要与下载同时计算
+        CompletableFuture<ExecResult> remoteDigest = pool.exec("sha256sum " + shellQuote(src) + " | cut -c1-64");
+        long rangeSize = size < MIN_RANGED_SIZE ? Math.max(1, size) : RANGE_SIZE;
+        Deque<long[]> ranges = new ConcurrentLinkedDeque<>();
+        for (long offset = 0; offset < size; offset += rangeSize) {
+            ranges.add(new long[]{offset, Math.min(size, offset + rangeSize)});
+        }
+        TransferProgress.Transfer transferred = TransferProgress.getInstance().start(host, src, size);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        long start = System.currentTimeMillis();
+        LOG.info("[{}] 分段下载[{}]，大小[{}] MB，[{}]个分段，并发数[{}]", host, src, size >> 20, ranges.size(), parallelism);
+        try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+            raf.setLength(size);
+            FileChannel file = raf.getChannel();
+            int workers = Math.min(Math.max(1, parallelism), ranges.size());
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                futures.add(CompletableFuture.runAsync(() -> drain(pool, host, src, ranges, file, transferred, failed), WORKERS));
+            }
+            Futures.allOf(futures).get();
+        } catch (IOException | ExecutionException e) {
+            LOG.error("[{}] 写入[{}]失败", host, part, e);
+            failed.set(true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("[{}] 等待下载结束时被中断", host);
+            failed.set(true);
+        } finally {
+            transferred.end();
+        }
+        if (failed.get() || !verify(pool, host, src, part, size, remoteDigest, allowNoDigest)) {
+            deletePart(part);
+            return false;
+        }
+        try {
+            Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOG.error("[{}]重命名为[{}]失败", part, target, e);
+            return false;
+        }
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        LOG.info("[{}] [{}]下载结束，耗时[{}]ms，平均速度[{}] KB/s", host, src, millis, (size >> 10) * 1000 / millis);
+        return true;
+    }
+
+    /**
+     * 不断取出分段下载，直到没有剩余分段或其它分段已失败
+     */
+    private static void drain(JschChannelPool pool, String host, String src, Deque<long[]> ranges, FileChannel file,
+                              TransferProgress.Transfer transferred, AtomicBoolean failed) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ChannelSftp channel = null;
+        try {
+            long[] range;
+            while (!failed.get() && (range = ranges.pollFirst()) != null) {
+                long backoff = BACKOFF_INITIAL;
+                for (int attempt = 1; range[0] < range[1]; attempt++) {
+                    try {
+                        if (null == channel) {
+                            channel = pool.borrowSftp();
+                        }
+                        readRange(channel, src, range, file, buffer, transferred);
+                    } catch (JSchException | SftpException | IOException e) {
+                        // 归还后断开的管道会被丢弃，重试时重新借出
+                        pool.returnSftp(channel);
+                        channel = null;
+                        if (attempt > RETRY_TIME || failed.get()) {
+                            LOG.error("[{}] [{}]分段下载失败，已重试[{}]次", host, src, RETRY_TIME, e);
+                            failed.set(true);
+                            return;
+                        }
+                        LOG.warn("[{}] [{}]分段下载中断，{}ms后从偏移[{}]续传: {}", host, src, backoff, range[0], e.getMessage());
+                        Thread.sleep(backoff);
+                        backoff = Math.min(backoff * 2, BACKOFF_MAX);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.set(true);
+        } finally {
+            pool.returnSftp(channel);
+        }
+    }
+
+    /**
+     * 从range[0]读到range[1]并写入本地文件的相同偏移，range[0]随进度前移，中断后可从断点继续
+     */
+    private static void readRange(ChannelSftp channel, String src, long[] range, FileChannel file, byte[] buffer,
+                                  TransferProgress.Transfer transferred) throws SftpException, IOException {
+        try (InputStream in = channel.get(src, null, range[0])) {
+            while (range[0] < range[1]) {
+                int len = in.read(buffer, 0, (int) Math.min(buffer.length, range[1] - range[0]));
+                if (-1 == len) {
+                    throw new IOException("文件在偏移[" + range[0] + "]提前结束");
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, len);
+                long position = range[0];
+                while (data.hasRemaining()) {
+                    position += file.write(data, position);
+                }
+                range[0] += len;
+                transferred.count(len);
+            }
+        }
+    }
+
+    /**
+     * @return 远程文件的大小，获取失败时返回-1
+     */
+    private static long stat(JschChannelPool pool, String host, String src) {
+        ChannelSftp channel = null;
+        try {
+            channel = pool.borrowSftp();
+            return channel.stat(src).getSize();
+        } catch (JSchException | SftpException e) {
+            LOG.warn("[{}] 获取[{}]的文件大小失败", host, src, e);
+            return -1;
+        } finally {
+            pool.returnSftp(channel);
+        }
+    }
+
+    /**
+     * 比较本地文件和压测机上的sha256；压测机无法计算摘要时，只有allowNoDigest为true且本地文件、
+     * 下载前和下载后的远程文件大小都一致才通过
+     */
+    private static boolean verify(JschChannelPool pool, String host, String src, File part, long size,
+                                  CompletableFuture<ExecResult> remoteDigest, boolean allowNoDigest) {
+        String local;
+        try {
+            local = IncrementalSync.sha256(part);
+        } catch (IOException e) {
+            LOG.error("[{}] 计算摘要失败", part, e);
+            return false;
+        }
+        String remote;
+        try {
+            remote = remoteDigest.join().getStdout().trim();
+        } catch (RuntimeException e) {
+            remote = "";
+        }
+        if (remote.length() != 64) {
+            if (!allowNoDigest) {
+                LOG.error("[{}] 无法获取[{}]的摘要，下载失败", host, src);
+                return false;
+            }
+            long remoteSize = stat(pool, host, src);
+            if (part.length() != size || remoteSize != size) {
+                LOG.error("[{}] 无法获取[{}]的摘要且大小不一致，本地[{}]，下载前[{}]，下载后[{}]", host, src, part.length(), size, remoteSize);
+                return false;
+            }
+            LOG.warn("[{}] 无法获取[{}]的摘要，已按设置跳过摘要校验，仅校验大小[{}]", host, src, size);
+            return true;
+        }
+        if (!remote.equals(local)) {
+            LOG.error("[{}] [{}]校验失败，本地[{}]，远程[{}]", host, part, local, remote);
+            return false;
+        }
+        return true;
+    }
+
+    private static void deletePart(File part) {
+        if (part.exists() && !part.delete()) {
+            LOG.warn("[{}]删除失败", part);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.harvey.performance.jschutils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 将远程命令输出异步写入按host区分、按大小滚动的日志文件
+ * <p>
+ * 输出先放入有界队列，由单独的写线程落盘；队列写满时onLine阻塞，
+ * 背压会传递到ssh管道，orchestrator的内存占用不随输出量增长
+ *
+ * @author harvey
+ */
+public class RollingFileLineSink implements LineSink, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RollingFileLineSink.class);
+
+    /**
+     * 队列中等待写入的最大行数
+     */
+    private static final int QUEUE_CAPACITY = 1024 * 8;
+
+    /**
+     * 默认单个日志文件的最大字节数
+     */
+    private static final long DEFAULT_MAX_FILE_BYTES = 1024 * 1024 * 64;
+
+    /**
+     * 默认每个host保留的日志文件数
+     */
+    private static final int DEFAULT_MAX_FILES = 5;
+
+    private static final Record POISON = new Record(null, false, null);
+
+    private final File dir;
+
+    private final long maxFileBytes;
+
+    private final int maxFiles;
+
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /**
+     * key：host，value：该host当前的日志文件，只在写线程中访问
+     */
+    private final Map<String, HostWriter> writers = new HashMap<>();
+
+    private final Thread writerThread;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param dir 日志目录，每个host一个 host.log 文件
+     */
+    public RollingFileLineSink(String dir) {
+        this(dir, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * @param dir          日志目录，每个host一个 host.log 文件
+     * @param maxFileBytes 单个日志文件的最大字节数，超过后滚动为 host.log.1
+     * @param maxFiles     每个host保留的日志文件数（包含当前文件）
+     */
+    public RollingFileLineSink(String dir, long maxFileBytes, int maxFiles) {
+        this.dir = new File(dir);
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+        if (!this.dir.exists() && !this.dir.mkdirs()) {
+            LOG.warn("[{}]创建失败！", dir);
+        }
+        writerThread = new Thread(this::writeLoop, "remote-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void onLine(String host, boolean error, CharSequence line) {
+        if (closed) {
+            return;
+        }
+        try {
+            queue.put(new Record(host, error, line.toString()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 写完队列中剩余的输出并关闭所有日志文件
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(POISON);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Record record = queue.take();
+                if (POISON == record) {
+                    break;
+                }
+                write(record);
+                if (queue.isEmpty()) {
+                    for (HostWriter writer : writers.values()) {
+                        writer.flush();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (HostWriter writer : writers.values()) {
+                writer.close();
+            }
+            writers.clear();
+        }
+    }
+
+    private void write(Record record) {
+        HostWriter writer = writers.computeIfAbsent(record.host, HostWriter::new);
+        try {
+            if (writer.bytes >= maxFileBytes) {
+                writer.rotate();
+            }
+            writer.write(record.error ? "[ERR] " + record.line : record.line);
+        } catch (IOException e) {
+            LOG.warn("[{}] 写入命令输出日志失败", record.host, e);
+        }
+    }
+
+    /**
+     * 单个host的日志文件
+     */
+    private class HostWriter {
+
+        private final String host;
+
+        private Writer writer;
+
+        private long bytes;
+
+        HostWriter(String host) {
+            this.host = host;
+            open();
+        }
+
+        private File file(int index) {
+            return new File(dir, 0 == index ? host + ".log" : host + ".log." + index);
+        }
+
+        private void open() {
+            File file = file(0);
+            try {
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+                bytes = file.length();
+            } catch (IOException e) {
+                LOG.warn("[{}]打开失败", file, e);
+                writer = null;
+            }
+        }
+
+        void write(String line) throws IOException {
+            if (null == writer) {
+                return;
+            }
+            writer.write(line);
+            writer.write('\n');
+            bytes += line.length() + 1;
+        }
+
+        void rotate() {
+            close();
+            File oldest = file(maxFiles - 1);
+            if (oldest.exists() && !oldest.delete()) {
+                LOG.warn("[{}]删除失败", oldest);
+            }
+            for (int i = maxFiles - 2; i >= 0; i--) {
+                File file = file(i);
+                if (file.exists() && !file.renameTo(file(i + 1))) {
+                    LOG.warn("[{}]滚动失败", file);
+                }
+            }
+            open();
+        }
+
+        void flush() {
+            try {
+                if (null != writer) {
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                LOG.warn("[{}] 刷新命令输出日志失败", host, e);
+            }
+        }
+
+        void close() {
+            try {
+                if (null != writer) {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                LOG.warn("[{}] 关闭命令输出日志失败", host, e);
+            }
+        }
+    }
+
+    /**
+     * 等待写入的一行输出
+     */
+    private static class Record {
+
+        private final String host;
+
+        private final boolean error;
+
+        private final String line;
+
+        Record(String host, boolean error, String line) {
+            this.host = host;
+            this.error = error;
+            this.line = line;
+        }
+    }
+}
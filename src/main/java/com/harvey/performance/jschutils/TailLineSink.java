@@ -0,0 +1,44 @@
+package com.harvey.performance.jschutils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * 只保留最后若干行的输出，用于在ExecResult中返回命令输出
+ *
+ * @author harvey
+ */
+class TailLineSink implements LineSink {
+
+    /**
+     * 默认保留的最大行数
+     */
+    static final int DEFAULT_MAX_LINES = 1000;
+
+    private final int maxLines;
+
+    private final Deque<String> lines = new ArrayDeque<>();
+
+    TailLineSink(int maxLines) {
+        this.maxLines = maxLines;
+    }
+
+    @Override
+    public synchronized void onLine(String host, boolean error, CharSequence line) {
+        if (lines.size() == maxLines) {
+            lines.pollFirst();
+        }
+        lines.offerLast(line.toString());
+    }
+
+    /**
+     * @return 保留的输出，每行以换行符结尾
+     */
+    synchronized String text() {
+        StringBuilder builder = new StringBuilder();
+        for (String line : lines) {
+            builder.append(line).append('\n');
+        }
+        return builder.toString();
+    }
+}
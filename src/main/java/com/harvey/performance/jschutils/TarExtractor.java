@@ -0,0 +1,253 @@
+package com.harvey.performance.jschutils;
+
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * tar解压：一个线程解析tar流，多个线程并行写文件
+ * <p>
+ * 小文件整个读入直接内存缓冲区后交给写线程，缓冲区从固定大小的池中借出，池的大小限制了在途数据量；
+ * 超过缓冲区大小的文件由解析线程按顺序直接写入。已创建的目录会被缓存，不重复调用mkdirs。
+ * 单个文件失败不影响其它文件，失败的条目在结束时统一报告
+ *
+ * @author harvey
+ */
+public class TarExtractor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TarExtractor.class);
+
+    /**
+     * 默认写文件的线程数
+     */
+    public static final int DEFAULT_WRITERS = 4;
+
+    /**
+     * 单个缓冲区大小，不超过该大小的文件交给写线程
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * 从tar流读取数据的中转缓冲区大小
+     */
+    private static final int READ_SIZE = 1024 * 64;
+
+    private final Path destination;
+
+    private final int writers;
+
+    /**
+     * 需要解压的条目，为空时解压全部
+     */
+    private final PathMatcher matcher;
+
+    /**
+     * 空闲的直接内存缓冲区
+     */
+    private final BlockingQueue<ByteBuffer> buffers;
+
+    /**
+     * 已创建的目录
+     */
+    private final Set<Path> createdDirs = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 解压失败的条目及原因
+     */
+    private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger extracted = new AtomicInteger();
+
+    /**
+     * @param destination 目标文件夹
+     */
+    public TarExtractor(String destination) {
+        this(destination, DEFAULT_WRITERS, null);
+    }
+
+    /**
+     * @param destination 目标文件夹
+     * @param writers     写文件的线程数
+     * @param glob        只解压路径匹配该glob的条目，例如 "**&#47;statistics.json"，为空时解压全部
+     */
+    public TarExtractor(String destination, int writers, String glob) {
+        this.destination = Paths.get(destination).toAbsolutePath().normalize();
+        this.writers = Math.max(1, writers);
+        this.matcher = null == glob ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        this.buffers = new ArrayBlockingQueue<>(this.writers * 2);
+        for (int i = 0; i < this.writers * 2; i++) {
+            buffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+    }
+
+    /**
+     * 从输入流解压，读到tar结束标记后返回
+     *
+     * @param in tar数据流
+     * @return true：所有匹配的条目都解压成功
+     */
+    public boolean extract(InputStream in) {
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(writers, r -> {
+            Thread thread = new Thread(r, "tar-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        byte[] chunk = new byte[READ_SIZE];
+        try {
+            TarInputStream tar = new TarInputStream(in);
+            TarEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                Path relative = Paths.get(entry.getName()).normalize();
+                if (null != matcher && !matcher.matches(relative)) {
+                    continue;
+                }
+                Path target = destination.resolve(relative).normalize();
+                if (!target.startsWith(destination)) {
+                    failures.add(entry.getName() + ": 路径超出目标文件夹");
+                    continue;
+                }
+                if (entry.getSize() <= BUFFER_SIZE) {
+                    ByteBuffer buffer = buffers.take();
+                    buffer.clear();
+                    fill(tar, buffer, chunk);
+                    buffer.flip();
+                    String name = entry.getName();
+                    pool.execute(() -> {
+                        try {
+                            write(target, buffer);
+                        } catch (IOException e) {
+                            failures.add(name + ": " + e.getMessage());
+                        } finally {
+                            buffers.add(buffer);
+                        }
+                    });
+                } else {
+                    writeLarge(tar, target, entry.getName(), chunk);
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("读取tar流失败", e);
+            failures.add("tar: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.add("tar: 解压被中断");
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        LOG.info("解压至[{}]结束，[{}]个文件，耗时[{}]ms", destination, extracted.get(), System.currentTimeMillis() - start);
+        if (!failures.isEmpty()) {
+            LOG.error("[{}]个条目解压失败：{}", failures.size(), failures);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return 解压失败的条目及原因
+     */
+    public List<String> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    /**
+     * 读取当前条目的全部数据到缓冲区
+     */
+    private static void fill(TarInputStream tar, ByteBuffer buffer, byte[] chunk) throws IOException {
+        int len;
+        while (buffer.hasRemaining() && (len = tar.read(chunk, 0, Math.min(chunk.length, buffer.remaining()))) > 0) {
+            buffer.put(chunk, 0, len);
+        }
+    }
+
+    private void write(Path target, ByteBuffer buffer) throws IOException {
+        try (FileChannel channel = open(target)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        extracted.incrementAndGet();
+    }
+
+    /**
+     * 大文件在解析线程中边读边写，写入失败时跳过该条目剩余的数据
+     */
+    private void writeLarge(TarInputStream tar, Path target, String name, byte[] chunk) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        FileChannel channel = null;
+        try {
+            channel = open(target);
+        } catch (IOException e) {
+            failures.add(name + ": " + e.getMessage());
+        }
+        try {
+            int len;
+            while ((len = tar.read(chunk, 0, chunk.length)) > 0) {
+                if (null == channel) {
+                    continue;
+                }
+                buffer.clear().limit(len);
+                try {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } catch (IOException e) {
+                    failures.add(name + ": " + e.getMessage());
+                    channel.close();
+                    channel = null;
+                }
+            }
+            if (null != channel) {
+                extracted.incrementAndGet();
+            }
+        } finally {
+            if (null != channel) {
+                channel.close();
+            }
+        }
+    }
+
+    private FileChannel open(Path target) throws IOException {
+        Path dir = target.getParent();
+        if (!createdDirs.contains(dir)) {
+            File file = dir.toFile();
+            if (!file.isDirectory() && !file.mkdirs() && !file.isDirectory()) {
+                throw new IOException("[" + dir + "]创建失败");
+            }
+            createdDirs.add(dir);
+        }
+        return FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+}
@@ -0,0 +1,307 @@
+package com.harvey.performance.jschutils;
+
+import com.harvey.performance.metrics.MetricsRegistry;
+import com.jcraft.jsch.SftpProgressMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 传输进度汇总：所有上传下载共用一个定时线程打印进度
+ * <p>
+ * 每个传输只在回调中累加无锁计数器，定时线程按间隔计算每台压测机和总体的速度、剩余时间，
+ * 超过STALL_TIMEOUT没有进展的传输会被标记为停滞
+ *
+ * @author harvey
+ */
+public class TransferProgress {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransferProgress.class);
+
+    /**
+     * 打印进度的间隔
+     */
+    private static final long REPORT_INTERVAL = 1000 * 5;
+
+    /**
+     * 没有进展超过该时间的传输视为停滞
+     */
+    private static final long STALL_TIMEOUT = 1000 * 30;
+
+    /**
+     * 速度平滑系数，新速度所占的权重
+     */
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * 单个传输速度的分桶上限（字节/秒）：64KB/s ~ 1GB/s
+     */
+    static final double[] THROUGHPUT_BOUNDS = {1 << 16, 1 << 18, 1 << 20, 1 << 22, 1 << 24, 1 << 26, 1 << 28, 1 << 30};
+
+    private static final TransferProgress INSTANCE = new TransferProgress();
+
+    private final Set<Transfer> transfers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * key：host，value：该host的速度（字节/秒），每次统计后整体替换
+     */
+    private volatile Map<String, Long> hostRates = Collections.emptyMap();
+
+    /**
+     * key：host，value：该host的剩余时间（秒），无法估计时为-1
+     */
+    private volatile Map<String, Long> hostEtas = Collections.emptyMap();
+
+    private volatile long totalRate = 0;
+
+    private volatile long totalEta = -1;
+
+    private volatile List<String> stalled = Collections.emptyList();
+
+    private TransferProgress() {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "transfer-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(this::report, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public static TransferProgress getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 登记一个传输，返回的对象可直接作为sftp的进度监控
+     *
+     * @param host       host地址
+     * @param name       传输的文件名
+     * @param totalBytes 文件大小，未知时为0，下载时会在sftp的init回调中补充
+     * @return 传输进度
+     */
+    public Transfer start(String host, String name, long totalBytes) {
+        Transfer transfer = new Transfer(host, name, totalBytes);
+        transfers.add(transfer);
+        return transfer;
+    }
+
+    /**
+     * @return 所有传输的总速度（字节/秒）
+     */
+    public long getBytesPerSecond() {
+        return totalRate;
+    }
+
+    /**
+     * @return 该host的传输速度（字节/秒）
+     */
+    public long getBytesPerSecond(String host) {
+        return hostRates.getOrDefault(host, 0L);
+    }
+
+    /**
+     * @return 所有传输完成的预计剩余时间（秒），无法估计时为-1
+     */
+    public long getEtaSeconds() {
+        return totalEta;
+    }
+
+    /**
+     * @return 该host的传输完成的预计剩余时间（秒），无法估计时为-1
+     */
+    public long getEtaSeconds(String host) {
+        return hostEtas.getOrDefault(host, -1L);
+    }
+
+    /**
+     * @return 停滞的传输，格式为 host:文件名
+     */
+    public List<String> getStalledTransfers() {
+        return stalled;
+    }
+
+    /**
+     * 计算速度和剩余时间并按host打印进度，结束的传输在本次统计后移除
+     */
+    private void report() {
+        try {
+            long now = System.currentTimeMillis();
+            Map<String, HostSummary> hosts = new TreeMap<>();
+            List<String> stalledNow = new ArrayList<>();
+            for (Transfer transfer : transfers) {
+                long bytes = transfer.bytes.sum();
+                long elapsed = Math.max(1, now - transfer.lastReport);
+                long rate = (bytes - transfer.lastBytes) * 1000 / elapsed;
+                transfer.rate = 0 == transfer.lastBytes && transfer.rate == 0 ? rate
+                        : (long) (SMOOTHING * rate + (1 - SMOOTHING) * transfer.rate);
+                if (bytes != transfer.lastBytes) {
+                    transfer.lastChange = now;
+                }
+                transfer.lastBytes = bytes;
+                transfer.lastReport = now;
+                if (transfer.ended) {
+                    transfers.remove(transfer);
+                    continue;
+                }
+                if (now - transfer.lastChange >= STALL_TIMEOUT) {
+                    stalledNow.add(transfer.host + ":" + transfer.name);
+                }
+                hosts.computeIfAbsent(transfer.host, k -> new HostSummary()).add(transfer, bytes);
+            }
+            Map<String, Long> rates = new HashMap<>();
+            Map<String, Long> etas = new HashMap<>();
+            HostSummary all = new HostSummary();
+            for (Map.Entry<String, HostSummary> entry : hosts.entrySet()) {
+                HostSummary host = entry.getValue();
+                rates.put(entry.getKey(), host.rate);
+                etas.put(entry.getKey(), host.eta());
+                all.merge(host);
+                LOG.info("[{}] 已传输：[{}]\t{}速度: [{}/s]\t剩余: [{}]s", entry.getKey(), format(host.bytes),
+                        host.total > 0 ? "当前进度: [" + host.bytes * 100 / host.total + "]%\t" : "", format(host.rate), host.eta());
+            }
+            hostRates = rates;
+            hostEtas = etas;
+            totalRate = all.rate;
+            totalEta = all.eta();
+            stalled = stalledNow;
+            if (hosts.size() > 1) {
+                LOG.info("共[{}]台压测机，已传输：[{}]\t总速度: [{}/s]\t剩余: [{}]s", hosts.size(), format(all.bytes), format(all.rate), all.eta());
+            }
+            if (!stalledNow.isEmpty()) {
+                LOG.warn("以下传输已超过[{}]s没有进展：{}", STALL_TIMEOUT / 1000, stalledNow);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("统计传输进度失败", e);
+        }
+    }
+
+    private static String format(long bytes) {
+        if (bytes >= 1024 * 1024) {
+            return (bytes >> 20) + " MB";
+        }
+        if (bytes >= 1024) {
+            return (bytes >> 10) + " KB";
+        }
+        return bytes + " bytes";
+    }
+
+    /**
+     * 单个传输的进度，回调中只累加计数器；其余字段只在定时线程中访问
+     */
+    public static final class Transfer implements SftpProgressMonitor {
+
+        private final String host;
+
+        private final String name;
+
+        private final LongAdder bytes = new LongAdder();
+
+        private volatile long total;
+
+        private volatile boolean ended = false;
+
+        private final long startTime = System.currentTimeMillis();
+
+        private long lastBytes = 0;
+
+        private long lastReport = System.currentTimeMillis();
+
+        private long lastChange = System.currentTimeMillis();
+
+        private long rate = 0;
+
+        private Transfer(String host, String name, long total) {
+            this.host = host;
+            this.name = name;
+            this.total = total;
+        }
+
+        @Override
+        public void init(int op, String src, String dest, long max) {
+            if (total <= 0 && max > 0) {
+                total = max;
+            }
+        }
+
+        @Override
+        public boolean count(long count) {
+            bytes.add(count);
+            return true;
+        }
+
+        @Override
+        public void end() {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+            long transferred = bytes.sum();
+            MetricsRegistry metrics = MetricsRegistry.getInstance();
+            metrics.add("transfer_bytes_total", transferred, "mode", "sftp");
+            metrics.observe("transfer_seconds", seconds, "mode", "sftp");
+            metrics.histogram("transfer_throughput_bytes_per_second", THROUGHPUT_BOUNDS, "mode", "sftp")
+                    .observe(transferred / Math.max(0.001, seconds));
+        }
+
+        /**
+         * @return 已传输的字节数
+         */
+        public long getBytes() {
+            return bytes.sum();
+        }
+    }
+
+    /**
+     * 一台压测机上所有传输的汇总
+     */
+    private static class HostSummary {
+
+        private long bytes;
+
+        private long total;
+
+        private long rate;
+
+        /**
+         * 大小未知的传输无法估计剩余时间
+         */
+        private boolean unknownTotal;
+
+        void add(Transfer transfer, long transferred) {
+            bytes += transferred;
+            rate += transfer.rate;
+            if (transfer.total > 0) {
+                total += transfer.total;
+            } else {
+                unknownTotal = true;
+            }
+        }
+
+        void merge(HostSummary other) {
+            bytes += other.bytes;
+            total += other.total;
+            rate += other.rate;
+            unknownTotal |= other.unknownTotal;
+        }
+
+        long eta() {
+            if (unknownTotal || rate <= 0) {
+                return -1;
+            }
+            return Math.max(0, total - bytes) / rate;
+        }
+    }
+}
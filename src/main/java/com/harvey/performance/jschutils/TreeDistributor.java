@@ -0,0 +1,407 @@
+package com.harvey.performance.jschutils;
+
+import com.harvey.performance.enums.TransferModeEnum;
+import com.harvey.performance.utils.Futures;
+import com.jcraft.jsch.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static com.harvey.performance.jschutils.JschExecUtil.shellQuote;
+
+/**
+ * 树形分发大文件：文件只从本机上传一次到种子节点，其余节点通过内网从已持有文件的节点拉取
+ * <p>
+ * 每个持有文件的节点启动一个临时http服务，同时最多为fanout个节点提供下载，
+ * 节点拉取完成后立即成为新的文件源，分发时间随节点数按对数增长。
+ * 多次拉取失败的节点回退为从本机直接上传。
+ * 节点可以在分发过程中陆续加入（add），不必等所有节点都连接后再开始。
+ * http服务只监听节点自身的ip，文件放在名称随机的本次分发目录中，不知道目录名时无法下载
+ *
+ * @author harvey
+ */
+public class TreeDistributor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TreeDistributor.class);
+
+    /**
+     * 默认每个文件源同时服务的节点数
+     */
+    public static final int DEFAULT_FANOUT = 4;
+
+    /**
+     * 默认http服务端口
+     */
+    public static final int DEFAULT_PORT = 18080;
+
+    /**
+     * 单个节点拉取失败后的最大重试次数
+     */
+    private static final int RETRY_TIME = 2;
+
+    /**
+     * 等待http服务启动的最长时间
+     */
+    private static final long SERVER_START_TIMEOUT = 1000 * 30;
+
+    private final String stagingDir;
+
+    /**
+     * 本次分发的文件目录，stagingDir下名称随机的子目录，也是下载地址的路径
+     */
+    private final String runId = UUID.randomUUID().toString().replace("-", "");
+
+    private final String runDir;
+
+    private final int port;
+
+    private final int fanout;
+
+    /**
+     * 种子节点和回退为直接上传的节点完整上传文件时的上传方式
+     */
+    private final TransferModeEnum mode;
+
+    /**
+     * key：本地源文件路径，value：该文件的上传方式；未指定的文件使用mode
+     */
+    private final Map<String, TransferModeEnum> fileModes;
+
+    /**
+     * 等待拉取的节点
+     */
+    private final Deque<Session> pending = new ArrayDeque<>();
+
+    /**
+     * 空闲的文件源名额，每个文件源放入fanout次
+     */
+    private final Deque<Session> freeSources = new ArrayDeque<>();
+
+    /**
+     * key：节点，value：已失败次数
+     */
+    private final Map<Session, Integer> failures = new HashMap<>();
+
+    /**
+     * key：目标节点，value：该节点分发结束时完成的future
+     */
+    private final Map<Session, CompletableFuture<Boolean>> targets = new LinkedHashMap<>();
+
+    /**
+     * 正在启动的http服务，cleanup前等待其结束，避免遗漏
+     */
+    private final List<CompletableFuture<Boolean>> serverStarts = new ArrayList<>();
+
+    private final List<String> names = new ArrayList<>();
+
+    private List<String> src;
+
+    private List<String> dst;
+
+    private Session seed;
+
+    /**
+     * 种子节点上传并启动http服务后完成，true：可以从种子节点拉取
+     */
+    private CompletableFuture<Boolean> seeded;
+
+    /**
+     * @param stagingDir 节点上存放分发文件的临时目录
+     * @param port       临时http服务端口
+     * @param fanout     每个文件源同时服务的节点数
+     */
+    public TreeDistributor(String stagingDir, int port, int fanout) {
+        this(stagingDir, port, fanout, TransferModeEnum.AUTO, Collections.emptyMap());
+    }
+
+    /**
+     * @param stagingDir 节点上存放分发文件的临时目录
+     * @param port       临时http服务端口
+     * @param fanout     每个文件源同时服务的节点数
+     * @param mode       从本机上传文件时的上传方式
+     * @param fileModes  key：本地源文件路径，value：该文件的上传方式
+     */
+    public TreeDistributor(String stagingDir, int port, int fanout, TransferModeEnum mode, Map<String, TransferModeEnum> fileModes) {
+        this.stagingDir = stagingDir.endsWith("/") ? stagingDir : stagingDir + "/";
+        this.runDir = this.stagingDir + runId + "/";
+        this.port = port;
+        this.fanout = Math.max(1, fanout);
+        this.mode = mode;
+        this.fileModes = fileModes;
+    }
+
+    /**
+     * 上传文件到种子节点并启动http服务，之后加入的节点从已持有文件的节点拉取
+     *
+     * @param seed 种子节点，文件从本机上传到该节点
+     * @param src  本机源文件路径
+     * @param dst  节点上的目标路径
+     * @return 种子节点上传结束时完成的future，true：上传成功
+     */
+    public synchronized CompletableFuture<Boolean> seed(Session seed, List<String> src, List<String> dst) {
+        if (null != this.seed) {
+            throw new IllegalStateException("种子节点已指定");
+        }
+        this.seed = seed;
+        this.src = src;
+        this.dst = dst;
+        for (int i = 0; i < src.size(); i++) {
+            names.add("f" + i);
+        }
+        CompletableFuture<Boolean> uploaded = CompletableFuture.supplyAsync(() -> {
+            long start = System.currentTimeMillis();
+            JschChannelPool seedPool = JschChannelPool.of(seed);
+            // 种子节点增量上传到目标路径，再链接到临时目录用于提供下载
+            if (!IncrementalSync.getInstance().sync(seed, src, dst, mode, fileModes) || !seedPool.exec(stageCommand(names, src, dst)).join().isSuccess()) {
+                LOG.error("[{}] 种子节点上传失败", seed.getHost());
+                return false;
+            }
+            LOG.info("[{}] 种子节点上传完成，耗时[{}]ms", seed.getHost(), System.currentTimeMillis() - start);
+            return true;
+        }, JschExecUtil.EXEC_POOL).exceptionally(e -> false);
+        seeded = uploaded.thenApply(ok -> ok && startServer(seed));
+        serverStarts.add(seeded);
+        return uploaded;
+    }
+
+    /**
+     * 加入一个目标节点：文件已是最新时直接完成，否则排队从已持有文件的节点拉取；
+     * 种子节点的http服务启动失败或多次拉取失败时改为从本机直接上传
+     *
+     * @param target 目标节点，使用内网ip从其它节点拉取
+     * @return 该节点分发结束时完成的future，true：分发成功
+     */
+    public synchronized CompletableFuture<Boolean> add(Session target) {
+        if (null == seed) {
+            throw new IllegalStateException("需要先指定种子节点");
+        }
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        targets.put(target, result);
+        CompletableFuture<Boolean> served = seeded;
+        // 文件已是最新的节点不需要等待种子节点
+        CompletableFuture.supplyAsync(() -> IncrementalSync.getInstance().isUpToDate(target, src, dst), JschExecUtil.EXEC_POOL)
+                .exceptionally(e -> false)
+                .thenAccept(upToDate -> {
+                    if (upToDate) {
+                        LOG.info("[{}] 文件已是最新，跳过分发", target.getHost());
+                        result.complete(true);
+                        return;
+                    }
+                    served.thenAcceptAsync(ok -> {
+                        if (ok) {
+                            synchronized (this) {
+                                pending.offerLast(target);
+                                dispatch();
+                            }
+                        } else {
+                            LOG.warn("[{}] 无法从种子节点拉取，改为从本机直接上传", target.getHost());
+                            uploadDirectly(target);
+                        }
+                    }, JschExecUtil.EXEC_POOL);
+                });
+        return result;
+    }
+
+    /**
+     * 停止所有http服务并删除临时目录，需要在所有节点分发结束后调用
+     */
+    public void close() {
+        List<CompletableFuture<Boolean>> starts;
+        List<Session> all = new ArrayList<>();
+        synchronized (this) {
+            if (null == seed) {
+                return;
+            }
+            starts = new ArrayList<>(serverStarts);
+            all.add(seed);
+            all.addAll(targets.keySet());
+        }
+        Futures.allOf(starts).exceptionally(e -> null).join();
+        cleanup(all);
+    }
+
+    /**
+     * 为等待的节点分配空闲的文件源，调用方需持有锁
+     */
+    private void dispatch() {
+        while (!pending.isEmpty() && !freeSources.isEmpty()) {
+            Session source = freeSources.pollFirst();
+            Session target = pending.pollFirst();
+            pull(source, target).thenAccept(ok -> onPulled(source, target, ok));
+        }
+    }
+
+    private CompletableFuture<Boolean> pull(Session source, Session target) {
+        StringBuilder cmd = new StringBuilder();
+        cmd.append("mkdir -p ").append(shellQuote(runDir)).append(" && cd ").append(shellQuote(runDir));
+        for (String name : names) {
+            String url = url(source.getHost(), name);
+            cmd.append(" && (wget -q -O ").append(name).append(".part ").append(url)
+                    .append(" || curl -sf -o ").append(name).append(".part ").append(url).append(")")
+                    .append(" && mv -f ").append(name).append(".part ").append(name);
+        }
+        cmd.append(" && ").append(copyCommand(names, src, dst));
+        LOG.info("[{}] 从[{}]拉取文件", target.getHost(), source.getHost());
+        return JschChannelPool.of(target).exec(cmd.toString())
+                .thenApply(ExecResult::isSuccess)
+                .exceptionally(e -> false);
+    }
+
+    private void onPulled(Session source, Session target, boolean ok) {
+        if (ok) {
+            CompletableFuture<Boolean> result;
+            synchronized (this) {
+                freeSources.offerLast(source);
+                result = targets.get(target);
+                // 拉取完成的节点成为新的文件源，后加入的节点也可以从它拉取
+                serverStarts.add(CompletableFuture.supplyAsync(() -> startServer(target), JschExecUtil.EXEC_POOL)
+                        .exceptionally(e -> false));
+                dispatch();
+            }
+            result.complete(true);
+            return;
+        }
+        int failed;
+        synchronized (this) {
+            failed = failures.merge(target, 1, Integer::sum);
+            if (failed <= RETRY_TIME) {
+                LOG.warn("[{}] 从[{}]拉取失败，重新排队", target.getHost(), source.getHost());
+                pending.offerLast(target);
+                // 失败的源放到队尾，优先使用其它源
+                freeSources.offerLast(source);
+                dispatch();
+                return;
+            }
+            freeSources.offerLast(source);
+            dispatch();
+        }
+        LOG.warn("[{}] 拉取失败[{}]次，改为从本机直接上传", target.getHost(), failed);
+        uploadDirectly(target);
+    }
+
+    private void uploadDirectly(Session target) {
+        boolean ok;
+        try {
+            ok = JschChannelPool.of(target).upload(src, dst, mode, fileModes);
+        } catch (RuntimeException e) {
+            LOG.warn("[{}] 上传失败", target.getHost(), e);
+            ok = false;
+        }
+        CompletableFuture<Boolean> result;
+        synchronized (this) {
+            result = targets.get(target);
+        }
+        result.complete(ok);
+    }
+
+    private boolean startServer(Session session) {
+        String cmd = serverCommand(session.getHost());
+        ExecResult result = JschExecUtil.startDaemon(session, cmd, logFile(), port, SERVER_START_TIMEOUT).join();
+        if (result.isSuccess()) {
+            synchronized (this) {
+                for (int i = 0; i < fanout; i++) {
+                    freeSources.offerLast(session);
+                }
+                dispatch();
+            }
+            return true;
+        }
+        LOG.warn("[{}] http服务启动失败: [{}]", session.getHost(), result.getStderr());
+        return false;
+    }
+
+    /**
+     * 停止所有http服务并删除临时目录
+     */
+    private void cleanup(List<Session> all) {
+        String stopServer = stopCommand();
+        List<CompletableFuture<ExecResult>> futures = new ArrayList<>();
+        for (Session session : all) {
+            futures.add(JschChannelPool.of(session).exec(stopServer + "; rm -rf " + shellQuote(stagingDir) + " " + shellQuote(logFile())));
+        }
+        Futures.allOf(futures).exceptionally(e -> null).join();
+    }
+
+    /**
+     * 以stagingDir为根目录启动http服务，只监听节点的ip；根目录放置空的index.html，避免列出本次分发的目录名
+     * <p>
+     * 命令行最后一个参数是本次分发的标记，stopCommand只停止带有该标记的进程
+     */
+    String serverCommand(String host) {
+        // python2的SimpleHTTPServer不支持指定监听地址，直接创建HTTPServer；python3有ThreadingHTTPServer时优先使用
+        String python3 = "import sys, http.server; getattr(http.server, 'ThreadingHTTPServer', http.server.HTTPServer)("
+                + "(sys.argv[2], int(sys.argv[1])), http.server.SimpleHTTPRequestHandler).serve_forever()";
+        String python2 = "import sys, BaseHTTPServer, SimpleHTTPServer; BaseHTTPServer.HTTPServer((sys.argv[2], int(sys.argv[1])), "
+                + "SimpleHTTPServer.SimpleHTTPRequestHandler).serve_forever()";
+        String args = " " + port + " " + shellQuote(host) + " " + marker();
+        return "cd " + shellQuote(stagingDir) + " && touch index.html && if command -v python3 >/dev/null 2>&1; "
+                + "then python3 -c " + shellQuote(python3) + args + "; "
+                + "else python -c " + shellQuote(python2) + args + "; fi";
+    }
+
+    /**
+     * http服务的日志文件，按本次分发区分，同时进行的多个分发不会互相覆盖
+     */
+    String logFile() {
+        return "/tmp/tree-distributor-" + runId + ".out";
+    }
+
+    /**
+     * 只停止本次分发的http服务，同一批压测机上同时进行的其它分发不受影响
+     */
+    String stopCommand() {
+        // 标记中的=写成[=]，执行pkill的shell自身的命令行不会匹配
+        return "pkill -f -- '" + marker().replace("=", "[=]") + "( |$)'";
+    }
+
+    /**
+     * @return http服务命令行中标识本次分发的参数
+     */
+    private String marker() {
+        return "tree-distributor=" + runId;
+    }
+
+    /**
+     * @param host 文件源节点的ip
+     * @param name 文件的临时名称
+     * @return 从文件源下载该文件的地址
+     */
+    String url(String host, String name) {
+        return "http://" + host + ":" + port + "/" + runId + "/" + name;
+    }
+
+    /**
+     * 将目标路径上的文件硬链接（失败时复制）到本次分发的目录
+     */
+    String stageCommand(List<String> names, List<String> src, List<String> dst) {
+        StringBuilder cmd = new StringBuilder("mkdir -p ").append(shellQuote(runDir));
+        for (int i = 0; i < names.size(); i++) {
+            String file = IncrementalSync.remoteFile(dst.get(i), src.get(i));
+            String staged = shellQuote(runDir + names.get(i));
+            cmd.append(" && (ln -f ").append(file).append(" ").append(staged)
+                    .append(" 2>/dev/null || cp -f ").append(file).append(" ").append(staged).append(")");
+        }
+        return cmd.toString();
+    }
+
+    /**
+     * 将本次分发目录中的文件复制到目标路径，目标路径是目录时复制为 目录/源文件名，与stageCommand一致
+     */
+    String copyCommand(List<String> names, List<String> src, List<String> dst) {
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            commands.add("cp -f " + shellQuote(runDir + names.get(i)) + " " + IncrementalSync.remoteFile(dst.get(i), src.get(i)));
+        }
+        return commands.isEmpty() ? "true" : String.join(" && ", commands);
+    }
+}
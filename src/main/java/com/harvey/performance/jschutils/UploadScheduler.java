@@ -0,0 +1,143 @@
+package com.harvey.performance.jschutils;
+
+import com.harvey.performance.enums.TransferModeEnum;
+import com.harvey.performance.utils.Futures;
+import com.jcraft.jsch.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 并行上传调度器，多台压测机同时上传，awaitAll等待所有上传结束
+ *
+ * @author harvey
+ */
+public class UploadScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UploadScheduler.class);
+
+    /**
+     * 默认同时上传的压测机数量
+     */
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    private final ExecutorService threadPool;
+
+    /**
+     * key：host，value：该host的上传结果
+     */
+    private final Map<String, CompletableFuture<Boolean>> results = new LinkedHashMap<>();
+
+    private final AtomicInteger finishedHosts = new AtomicInteger();
+
+    /**
+     * true：只上传压测机上缺失或有变化的文件
+     */
+    private final boolean incremental;
+
+    /**
+     * 需要完整上传的文件的上传方式
+     */
+    private final TransferModeEnum mode;
+
+    /**
+     * key：本地源文件路径，value：该文件的上传方式，未指定的文件使用mode
+     */
+    private final Map<String, TransferModeEnum> fileModes;
+
+    /**
+     * @param concurrency 同时上传的压测机数量
+     */
+    public UploadScheduler(int concurrency) {
+        this(concurrency, false);
+    }
+
+    /**
+     * @param concurrency 同时上传的压测机数量
+     * @param incremental true：只上传压测机上缺失或有变化的文件
+     */
+    public UploadScheduler(int concurrency, boolean incremental) {
+        this(concurrency, incremental, TransferModeEnum.AUTO);
+    }
+
+    /**
+     * @param concurrency 同时上传的压测机数量
+     * @param incremental true：只上传压测机上缺失或有变化的文件
+     * @param mode        需要完整上传的文件的上传方式
+     */
+    public UploadScheduler(int concurrency, boolean incremental, TransferModeEnum mode) {
+        this(concurrency, incremental, mode, Collections.emptyMap());
+    }
+
+    /**
+     * @param concurrency 同时上传的压测机数量
+     * @param incremental true：只上传压测机上缺失或有变化的文件
+     * @param mode        需要完整上传的文件的统一上传方式
+     * @param fileModes   key：本地源文件路径，value：该文件的上传方式，未指定的文件使用mode
+     */
+    public UploadScheduler(int concurrency, boolean incremental, TransferModeEnum mode, Map<String, TransferModeEnum> fileModes) {
+        this.incremental = incremental;
+        this.mode = mode;
+        this.fileModes = null == fileModes ? Collections.emptyMap() : fileModes;
+        threadPool = Executors.newFixedThreadPool(Math.max(1, concurrency), r -> {
+            Thread thread = new Thread(r, "sftp-upload");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 提交一台压测机的上传任务，同一台压测机的文件按顺序上传
+     *
+     * @param session 压测机的session
+     * @param src     源文件路径
+     * @param dst     目标路径
+     * @return 上传结束时完成的future，true：全部上传成功
+     */
+    public synchronized CompletableFuture<Boolean> submit(Session session, List<String> src, List<String> dst) {
+        String host = session.getHost();
+        CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(() -> {
+            LOG.info("[{}] 开始上传[{}]个文件", host, src.size());
+            long start = System.currentTimeMillis();
+            boolean result = incremental ? IncrementalSync.getInstance().sync(session, src, dst, mode, fileModes)
+                    : JschChannelPool.of(session).upload(src, dst, mode, fileModes);
+            LOG.info("[{}] 上传{}，耗时[{}]ms，已完成压测机：[{}/{}]", host, result ? "成功" : "失败",
+                    System.currentTimeMillis() - start, finishedHosts.incrementAndGet(), size());
+            return result;
+        }, threadPool);
+        results.put(host, future);
+        return future;
+    }
+
+    /**
+     * 等待所有已提交的上传任务结束
+     *
+     * @return key：host，value：true：全部上传成功
+     */
+    public Map<String, Boolean> awaitAll() {
+        Map<String, CompletableFuture<Boolean>> submitted;
+        synchronized (this) {
+            submitted = new LinkedHashMap<>(results);
+        }
+        Futures.allOf(submitted.values()).exceptionally(e -> null).join();
+        threadPool.shutdown();
+        Map<String, Boolean> summary = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<Boolean>> entry : submitted.entrySet()) {
+            CompletableFuture<Boolean> future = entry.getValue();
+            summary.put(entry.getKey(), !future.isCompletedExceptionally() && future.join());
+        }
+        return summary;
+    }
+
+    private synchronized int size() {
+        return results.size();
+    }
+}
@@ -0,0 +1,76 @@
+package com.harvey.performance.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定分桶的直方图，记录时只累加无锁计数器
+ *
+ * @author harvey
+ */
+public class Histogram {
+
+    /**
+     * 默认分桶上限（秒），覆盖毫秒级命令到分钟级的实例创建
+     */
+    public static final double[] DEFAULT_BOUNDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600};
+
+    private final double[] bounds;
+
+    /**
+     * 每个分桶的计数（非累积），最后一个为 +Inf
+     */
+    private final LongAdder[] buckets;
+
+    private final DoubleAdder sum = new DoubleAdder();
+
+    private final LongAdder count = new LongAdder();
+
+    Histogram(double[] bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 记录一个观测值
+     *
+     * @param value 观测值
+     */
+    public void observe(double value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sum.add(value);
+        count.increment();
+    }
+
+    double[] getBounds() {
+        return bounds;
+    }
+
+    /**
+     * @return 累积计数，与getBounds一一对应，最后一个为 +Inf
+     */
+    long[] cumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    double getSum() {
+        return sum.sum();
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,270 @@
+package com.harvey.performance.metrics;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.serializer.SerializerFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的指标注册表：计数器和直方图，运行结束时导出为Prometheus文本格式和JSON快照
+ * <p>
+ * 指标按 名称+标签 区分，标签以 key, value 交替的可变参数传入；
+ * 记录只累加无锁计数器，导出时遍历当前的值
+ *
+ * @author harvey
+ */
+public class MetricsRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsRegistry.class);
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    /**
+     * key：Prometheus格式的序列名，例如 ssh_exec_total{exit_code="0"}
+     */
+    private final Map<String, Series<LongAdder>> counters = new ConcurrentHashMap<>();
+
+    private final Map<String, Series<Histogram>> histograms = new ConcurrentHashMap<>();
+
+    private MetricsRegistry() {
+
+    }
+
+    public static MetricsRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 计数器加一
+     *
+     * @param name   指标名
+     * @param labels 标签，key, value 交替
+     */
+    public void increment(String name, String... labels) {
+        add(name, 1, labels);
+    }
+
+    /**
+     * 计数器增加指定值
+     *
+     * @param name   指标名
+     * @param value  增加的值
+     * @param labels 标签，key, value 交替
+     */
+    public void add(String name, long value, String... labels) {
+        String labelText = labelText(labels);
+        counters.computeIfAbsent(name + labelText, k -> new Series<>(name, labels, new LongAdder())).metric.add(value);
+    }
+
+    /**
+     * 使用默认分桶记录一个观测值
+     *
+     * @param name   指标名
+     * @param value  观测值
+     * @param labels 标签，key, value 交替
+     */
+    public void observe(String name, double value, String... labels) {
+        histogram(name, Histogram.DEFAULT_BOUNDS, labels).observe(value);
+    }
+
+    /**
+     * 记录从startNanos到现在经过的秒数
+     *
+     * @param name       指标名
+     * @param startNanos System.nanoTime()记录的开始时间
+     * @param labels     标签，key, value 交替
+     */
+    public void observeSince(String name, long startNanos, String... labels) {
+        observe(name, (System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1), labels);
+    }
+
+    /**
+     * 获取直方图，不存在时按指定分桶创建
+     *
+     * @param name   指标名
+     * @param bounds 分桶上限
+     * @param labels 标签，key, value 交替
+     * @return 直方图
+     */
+    public Histogram histogram(String name, double[] bounds, String... labels) {
+        String labelText = labelText(labels);
+        return histograms.computeIfAbsent(name + labelText, k -> new Series<>(name, labels, new Histogram(bounds))).metric;
+    }
+
+    /**
+     * 同名的序列归为一组连续输出，每组只有一行 # TYPE
+     *
+     * @return Prometheus文本格式
+     */
+    public String toPrometheus() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, List<Series<LongAdder>>> family : groupByName(counters).entrySet()) {
+            builder.append("# TYPE ").append(family.getKey()).append(" counter\n");
+            for (Series<LongAdder> series : family.getValue()) {
+                builder.append(series.name).append(labelText(series.labels)).append(' ').append(series.metric.sum()).append('\n');
+            }
+        }
+        for (Map.Entry<String, List<Series<Histogram>>> family : groupByName(histograms).entrySet()) {
+            builder.append("# TYPE ").append(family.getKey()).append(" histogram\n");
+            for (Series<Histogram> series : family.getValue()) {
+                appendHistogram(builder, series);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void appendHistogram(StringBuilder builder, Series<Histogram> series) {
+        Histogram histogram = series.metric;
+        double[] bounds = histogram.getBounds();
+        long[] counts = histogram.cumulativeCounts();
+        for (int i = 0; i < counts.length; i++) {
+            String le = i < bounds.length ? String.valueOf(bounds[i]) : "+Inf";
+            builder.append(series.name).append("_bucket").append(labelText(series.labels, "le", le))
+                    .append(' ').append(counts[i]).append('\n');
+        }
+        String labelText = labelText(series.labels);
+        builder.append(series.name).append("_sum").append(labelText).append(' ').append(histogram.getSum()).append('\n');
+        builder.append(series.name).append("_count").append(labelText).append(' ').append(histogram.getCount()).append('\n');
+    }
+
+    /**
+     * 按指标名分组，组按名称排序，组内按标签排序
+     * <p>
+     * 不能直接按 名称+标签 排序：名称有公共前缀时（例如 a 和 a_x），a_x 的序列会排在 a{...} 之间
+     */
+    private static <T> Map<String, List<Series<T>>> groupByName(Map<String, Series<T>> seriesMap) {
+        Map<String, List<Series<T>>> families = new TreeMap<>();
+        for (Series<T> series : new TreeMap<>(seriesMap).values()) {
+            families.computeIfAbsent(series.name, k -> new ArrayList<>()).add(series);
+        }
+        return families;
+    }
+
+    /**
+     * @return JSON快照
+     */
+    public JSONObject toJson() {
+        JSONArray metrics = new JSONArray();
+        for (Series<LongAdder> series : new TreeMap<>(counters).values()) {
+            JSONObject json = series.toJson("counter");
+            json.put("value", series.metric.sum());
+            metrics.add(json);
+        }
+        for (Series<Histogram> series : new TreeMap<>(histograms).values()) {
+            Histogram histogram = series.metric;
+            JSONObject json = series.toJson("histogram");
+            json.put("count", histogram.getCount());
+            json.put("sum", histogram.getSum());
+            JSONObject buckets = new JSONObject(true);
+            double[] bounds = histogram.getBounds();
+            long[] counts = histogram.cumulativeCounts();
+            for (int i = 0; i < counts.length; i++) {
+                buckets.put(i < bounds.length ? String.valueOf(bounds[i]) : "+Inf", counts[i]);
+            }
+            json.put("buckets", buckets);
+            metrics.add(json);
+        }
+        JSONObject snapshot = new JSONObject(true);
+        snapshot.put("timestamp", System.currentTimeMillis());
+        snapshot.put("metrics", metrics);
+        return snapshot;
+    }
+
+    /**
+     * 导出到目录，生成 name.prom 和 name.json
+     *
+     * @param dir  导出目录
+     * @param name 文件名（不含扩展名）
+     */
+    public void export(String dir, String name) {
+        File directory = new File(dir);
+        if (!directory.exists() && !directory.mkdirs()) {
+            LOG.warn("[{}]创建失败！", dir);
+            return;
+        }
+        write(new File(directory, name + ".prom"), toPrometheus());
+        write(new File(directory, name + ".json"), JSON.toJSONString(toJson(), SerializerFeature.PrettyFormat));
+        LOG.info("指标已导出至[{}]，文件名[{}.prom]和[{}.json]", directory, name, name);
+    }
+
+    private static void write(File file, String content) {
+        try {
+            File tmp = new File(file.getPath() + ".tmp");
+            Files.write(tmp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOG.warn("[{}] 写入失败", file, e);
+        }
+    }
+
+    private static String labelText(String[] labels, String... extra) {
+        if (labels.length + extra.length == 0) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder("{");
+        appendLabels(builder, labels);
+        if (extra.length > 0) {
+            if (labels.length > 0) {
+                builder.append(',');
+            }
+            appendLabels(builder, extra);
+        }
+        return builder.append('}').toString();
+    }
+
+    private static void appendLabels(StringBuilder builder, String[] labels) {
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            String value = String.valueOf(labels[i + 1]).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            builder.append(labels[i]).append("=\"").append(value).append('"');
+        }
+    }
+
+    /**
+     * 一个指标序列：名称、标签和指标对象
+     */
+    private static class Series<T> {
+
+        private final String name;
+
+        private final String[] labels;
+
+        private final T metric;
+
+        Series(String name, String[] labels, T metric) {
+            this.name = name;
+            this.labels = labels.clone();
+            this.metric = metric;
+        }
+
+        JSONObject toJson(String type) {
+            JSONObject json = new JSONObject(true);
+            json.put("name", name);
+            json.put("type", type);
+            Map<String, String> labelMap = new LinkedHashMap<>();
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                labelMap.put(labels[i], labels[i + 1]);
+            }
+            json.put("labels", labelMap);
+            return json;
+        }
+    }
+}
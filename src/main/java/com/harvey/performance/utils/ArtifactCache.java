@@ -0,0 +1,354 @@
+package com.harvey.performance.utils;
+
+import com.harvey.performance.jschutils.IncrementalSync;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 本地制品缓存：JMeter安装包、插件和依赖jar只在本机下载一次，按sha256校验后缓存
+ * <p>
+ * 制品指定了sha256时按指定值校验；未指定但有官方发布的sha512时，按官方sha512校验通过后才记录摘要，
+ * 无法获取官方sha512或校验不一致时不使用该文件；两者都没有时首次下载的摘要记录在 文件名.sha256 中。
+ * 之后每次使用都按记录的摘要校验，缓存文件被替换或损坏时重新下载
+ *
+ * @author harvey
+ */
+public class ArtifactCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArtifactCache.class);
+
+    /**
+     * 默认缓存目录
+     */
+    public static final String DEFAULT_CACHE_DIR = System.getProperty("user.home") + "/.performance/artifacts/";
+
+    /**
+     * 固定使用的JMeter版本
+     */
+    public static final String JMETER_VERSION = "5.2";
+
+    /**
+     * JMeter安装包的下载地址，归档站点保留所有历史版本
+     */
+    public static final String JMETER_URL = "https://archive.apache.org/dist/jmeter/binaries/apache-jmeter-" + JMETER_VERSION + ".tgz";
+
+    /**
+     * Apache随安装包发布的官方sha512
+     */
+    public static final String JMETER_SHA512_URL = JMETER_URL + ".sha512";
+
+    private static final int SHA512_LENGTH = 128;
+
+    private static final int CONNECT_TIMEOUT = 1000 * 10;
+
+    private static final int READ_TIMEOUT = 1000 * 60;
+
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    private final File cacheDir;
+
+    /**
+     * @param cacheDir 本地缓存目录
+     */
+    public ArtifactCache(String cacheDir) {
+        this.cacheDir = new File(cacheDir);
+    }
+
+    /**
+     * 获取制品的本地文件，缓存不存在或校验失败时重新下载
+     *
+     * @param artifact 制品
+     * @return 本地文件的绝对路径，下载或校验失败时返回null
+     */
+    public String resolve(Artifact artifact) {
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            LOG.error("[{}]创建失败！", cacheDir);
+            return null;
+        }
+        File file = new File(cacheDir, artifact.getFileName());
+        File pin = new File(cacheDir, artifact.getFileName() + ".sha256");
+        String expected = null != artifact.getSha256() ? artifact.getSha256() : readPin(pin);
+        if (file.isFile()) {
+            String actual = IncrementalSync.getInstance().digest(file.getPath());
+            if (null == expected && null != artifact.getSha512Url()) {
+                if (matchesPublished(artifact, file)) {
+                    LOG.info("[{}] 使用本地缓存", artifact.getFileName());
+                    return pin(artifact, file, pin, null, actual);
+                }
+            } else if (null == expected || expected.equalsIgnoreCase(actual)) {
+                LOG.info("[{}] 使用本地缓存", artifact.getFileName());
+                return pin(artifact, file, pin, expected, actual);
+            }
+            LOG.warn("[{}] 缓存校验失败，期望[{}]，实际[{}]，重新下载", artifact.getFileName(), expected, actual);
+        }
+        File part = new File(file.getPath() + ".part");
+        long start = System.currentTimeMillis();
+        LOG.info("开始下载[{}]至[{}]", artifact.getUrl(), file);
+        try {
+            download(artifact.getUrl(), part);
+        } catch (IOException e) {
+            LOG.error("[{}] 下载失败", artifact.getUrl(), e);
+            deleteQuietly(part);
+            return null;
+        }
+        String actual = IncrementalSync.getInstance().digest(part.getPath());
+        if (null == actual || (null != expected && !expected.equalsIgnoreCase(actual))) {
+            LOG.error("[{}] 校验失败，期望[{}]，实际[{}]", artifact.getUrl(), expected, actual);
+            deleteQuietly(part);
+            return null;
+        }
+        if (null == expected && null != artifact.getSha512Url() && !matchesPublished(artifact, part)) {
+            deleteQuietly(part);
+            return null;
+        }
+        try {
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOG.error("[{}]重命名为[{}]失败", part, file, e);
+            return null;
+        }
+        LOG.info("[{}] 下载完成，大小[{}] KB，耗时[{}]ms", artifact.getFileName(), file.length() >> 10, System.currentTimeMillis() - start);
+        return pin(artifact, file, pin, expected, actual);
+    }
+
+    /**
+     * 按官方发布的sha512校验文件，无法获取官方sha512时视为校验失败
+     */
+    private static boolean matchesPublished(Artifact artifact, File file) {
+        String published;
+        String actual;
+        try {
+            published = parseSha512(fetch(artifact.getSha512Url()), artifact.getFileName());
+            actual = digest(file, "SHA-512");
+        } catch (IOException e) {
+            LOG.error("[{}] 获取官方sha512失败，不使用未经校验的文件", artifact.getSha512Url(), e);
+            return false;
+        }
+        if (null == published) {
+            LOG.error("[{}] 官方sha512格式无法识别，不使用未经校验的文件", artifact.getSha512Url());
+            return false;
+        }
+        if (!published.equalsIgnoreCase(actual)) {
+            LOG.error("[{}] 与官方sha512不一致，期望[{}]，实际[{}]", file.getName(), published, actual);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 解析sha512文件，兼容 "摘要 *文件名" 和 gpg --print-md 输出的 "文件名: 分组的摘要" 两种格式
+     *
+     * @return 小写的十六进制sha512，无法识别时返回null
+     */
+    static String parseSha512(String content, String fileName) {
+        String text = content.trim();
+        if (text.startsWith(fileName + ":")) {
+            text = text.substring(fileName.length() + 1).replaceAll("\\s", "");
+        } else {
+            text = text.split("\\s+")[0];
+        }
+        text = text.toLowerCase();
+        return text.length() == SHA512_LENGTH && text.matches("[0-9a-f]+") ? text : null;
+    }
+
+    /**
+     * 未指定摘要的制品记录首次下载时的摘要
+     */
+    private String pin(Artifact artifact, File file, File pin, String expected, String actual) {
+        if (null == expected) {
+            if (null != artifact.getSha512Url()) {
+                LOG.info("[{}] 已按官方sha512校验，记录摘要[{}]", file.getName(), actual);
+            } else {
+                LOG.warn("[{}] 未指定sha256，记录当前摘要[{}]，之后按该摘要校验", file.getName(), actual);
+            }
+            try {
+                Files.write(pin.toPath(), actual.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                LOG.warn("[{}] 写入失败", pin, e);
+            }
+        }
+        return file.getAbsolutePath();
+    }
+
+    private static String readPin(File pin) {
+        if (!pin.isFile()) {
+            return null;
+        }
+        try {
+            String sha256 = new String(Files.readAllBytes(pin.toPath()), StandardCharsets.UTF_8).trim();
+            return sha256.length() == 64 ? sha256 : null;
+        } catch (IOException e) {
+            LOG.warn("[{}] 读取失败", pin, e);
+            return null;
+        }
+    }
+
+    private static void download(String url, File dst) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = open(url); OutputStream out = new FileOutputStream(dst)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        }
+    }
+
+    private static String fetch(String url) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = open(url)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                builder.append(new String(buffer, 0, len, StandardCharsets.US_ASCII));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static InputStream open(String url) throws IOException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        return connection.getInputStream();
+    }
+
+    private static String digest(File file, String algorithm) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        }
+        StringBuilder builder = new StringBuilder(digest.getDigestLength() * 2);
+        for (byte b : digest.digest()) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file.exists() && !file.delete()) {
+            LOG.warn("[{}]删除失败", file);
+        }
+    }
+
+    /**
+     * 一个需要安装到压测机的制品
+     */
+    public static class Artifact {
+
+        /**
+         * 下载地址，也可以是 file: 开头的本地文件
+         */
+        private final String url;
+
+        /**
+         * 十六进制sha256，为空时按官方sha512校验或首次下载后记录
+         */
+        private final String sha256;
+
+        /**
+         * 官方发布的sha512地址，sha256为空时用于校验
+         */
+        private final String sha512Url;
+
+        /**
+         * 安装到压测机JMeter目录下的相对目录，例如 lib/ext/；为空时表示JMeter安装包本身
+         */
+        private final String installDir;
+
+        /**
+         * @param url        下载地址
+         * @param sha256     十六进制sha256，可以为空
+         * @param installDir 安装到JMeter目录下的相对目录
+         */
+        public Artifact(String url, String sha256, String installDir) {
+            this(url, sha256, null, installDir);
+        }
+
+        /**
+         * @param url        下载地址
+         * @param sha256     十六进制sha256，可以为空
+         * @param sha512Url  官方发布的sha512地址，可以为空
+         * @param installDir 安装到JMeter目录下的相对目录
+         */
+        public Artifact(String url, String sha256, String sha512Url, String installDir) {
+            this.url = url;
+            this.sha256 = sha256;
+            this.sha512Url = sha512Url;
+            this.installDir = installDir;
+        }
+
+        /**
+         * @param sha256 十六进制sha256，为空时按Apache发布的官方sha512校验
+         * @return 固定版本的JMeter安装包
+         */
+        public static Artifact jmeter(String sha256) {
+            return new Artifact(JMETER_URL, sha256, JMETER_SHA512_URL, null);
+        }
+
+        /**
+         * @param url    下载地址
+         * @param sha256 十六进制sha256，可以为空
+         * @return 放入lib/ext的JMeter插件
+         */
+        public static Artifact plugin(String url, String sha256) {
+            return new Artifact(url, sha256, "lib/ext/");
+        }
+
+        /**
+         * @param url    下载地址
+         * @param sha256 十六进制sha256，可以为空
+         * @return 放入lib的依赖jar
+         */
+        public static Artifact lib(String url, String sha256) {
+            return new Artifact(url, sha256, "lib/");
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        public String getSha512Url() {
+            return sha512Url;
+        }
+
+        public String getInstallDir() {
+            return installDir;
+        }
+
+        public String getFileName() {
+            return url.substring(url.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        public String toString() {
+            return getFileName();
+        }
+    }
+}
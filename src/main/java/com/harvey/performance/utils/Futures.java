@@ -0,0 +1,25 @@
+package com.harvey.performance.utils;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * CompletableFuture的工具方法
+ *
+ * @author harvey
+ */
+public final class Futures {
+
+    private Futures() {
+    }
+
+    /**
+     * 等价于CompletableFuture.allOf，接受集合参数，避免调用方创建原始类型的数组
+     *
+     * @param futures 需要等待的future
+     * @return 全部完成时完成的future，任一异常完成时以该异常完成
+     */
+    public static CompletableFuture<Void> allOf(Collection<? extends CompletableFuture<?>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+}
@@ -0,0 +1,227 @@
+package com.harvey.performance.application.service;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.harvey.performance.cloudUtils.AliEcsUtils;
+import com.harvey.performance.cloudUtils.MockEcsServer;
+import com.harvey.performance.exception.PerformanceException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * 使用本地模拟的ECS API和临时状态文件验证实例池的租用、归还和空闲TTL
+ *
+ * @author harvey
+ */
+public class InstancePoolTest {
+
+    private static final String REGION_ID = "cn-hangzhou";
+
+    private MockEcsServer server;
+
+    private AliEcsUtils aliEcsUtils;
+
+    private Path dir;
+
+    private String stateFile;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = new MockEcsServer();
+        aliEcsUtils = new AliEcsUtils(REGION_ID, "lt-test");
+        dir = Files.createTempDirectory("instance-pool");
+        stateFile = dir.resolve("instance-pool.json").toString();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() {
+        server.close();
+        File[] files = dir.toFile().listFiles();
+        if (null != files) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(dir.toFile().delete());
+    }
+
+    @Test
+    public void leaseOnlyIdleInstancesAfterGiveBack() {
+        InstancePool pool = new InstancePool(stateFile, REGION_ID, 30, aliEcsUtils);
+        List<String> ids = Arrays.asList(server.addInstance("Running"), server.addInstance("Running"), server.addInstance("Running"));
+        pool.add(ids, 1);
+
+        assertTrue(pool.lease(2, 1).isEmpty(), "已租出的实例不能再次租用");
+
+        pool.giveBack(ids);
+        assertEquals(new HashSet<>(server.getModifiedIds()), new HashSet<>(ids));
+        List<String> leased = pool.lease(2, 1);
+        assertEquals(leased.size(), 2);
+        assertEquals(pool.lease(5, 1).size(), 1, "只剩一台空闲实例");
+        assertTrue(pool.lease(1, 1).isEmpty());
+        assertEquals(new HashSet<>(pool.list()), new HashSet<>(ids));
+    }
+
+    @Test
+    public void leaseRemovesStoppedAndUnmodifiableInstances() {
+        InstancePool pool = new InstancePool(stateFile, REGION_ID, 30, aliEcsUtils);
+        String running = server.addInstance("Running");
+        String stopped = server.addInstance("Stopped");
+        String unmodifiable = server.addInstance("Running");
+        List<String> ids = Arrays.asList(running, stopped, unmodifiable);
+        pool.add(ids, 1);
+        pool.giveBack(ids);
+        server.failModify(unmodifiable);
+
+        assertEquals(new HashSet<>(pool.lease(3, 1)), Collections.singleton(running));
+        assertEquals(pool.list(), Collections.singletonList(running), "状态异常和修改失败的实例应从池中移除");
+    }
+
+    @Test
+    public void giveBackDropsInstancesThatFailToModify() {
+        InstancePool pool = new InstancePool(stateFile, REGION_ID, 30, aliEcsUtils);
+        String kept = server.addInstance("Running");
+        String dropped = server.addInstance("Running");
+        pool.add(Arrays.asList(kept, dropped), 1);
+        server.failModify(dropped);
+
+        pool.giveBack(Arrays.asList(kept, dropped, server.addInstance("Running")));
+
+        assertEquals(pool.list(), Collections.singletonList(kept), "不在池中的实例不应被归还");
+        assertFalse(server.hasInstance(dropped), "修改失败的实例应立即释放");
+        assertTrue(server.hasInstance(kept));
+    }
+
+    @Test
+    public void idleInstancesExpireAfterTtl() throws IOException {
+        InstancePool pool = new InstancePool(stateFile, REGION_ID, 30, aliEcsUtils);
+        List<String> ids = Collections.singletonList(server.addInstance("Running"));
+        pool.add(ids, 1);
+        pool.giveBack(ids);
+        assertEquals(pool.list(), ids);
+
+        // 将空闲实例的过期时间改到过去，相当于已经过了空闲TTL
+        Path path = Paths.get(stateFile);
+        JSONObject state = JSON.parseObject(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+        for (Object instance : state.getJSONObject("instances").values()) {
+            ((JSONObject) instance).put("expireTime", System.currentTimeMillis() - 1);
+        }
+        Files.write(path, state.toJSONString().getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(pool.list().isEmpty(), "超过空闲TTL的实例应被移除");
+        assertTrue(pool.lease(1, 1).isEmpty());
+    }
+
+    @Test(expectedExceptions = PerformanceException.class)
+    public void rejectsIdleTtlShorterThanMinimum() {
+        new InstancePool(stateFile, REGION_ID, InstancePool.MIN_IDLE_MINUTES - 1, aliEcsUtils);
+    }
+
+    @Test
+    public void leaseModifiesReleaseTimeConcurrently() {
+        InstancePool pool = new InstancePool(stateFile, REGION_ID, 30, aliEcsUtils);
+        List<String> ids = Arrays.asList(server.addInstance("Running"), server.addInstance("Running"),
+                server.addInstance("Running"), server.addInstance("Running"));
+        pool.add(ids, 1);
+        pool.giveBack(ids);
+        server.setModifyDelayMillis(300);
+
+        assertEquals(pool.lease(4, 1).size(), 4);
+        assertTrue(server.getMaxConcurrentModify() > 1, "修改自动释放时间应并发进行");
+    }
+
+    @Test
+    public void leaseReservesOnlyRequestedCount() throws Exception {
+        InstancePool pool = new InstancePool(stateFile, REGION_ID, 30, aliEcsUtils);
+        List<String> ids = Arrays.asList(server.addInstance("Running"), server.addInstance("Running"), server.addInstance("Running"));
+        pool.add(ids, 1);
+        pool.giveBack(ids);
+        server.setModifyDelayMillis(500);
+
+        CompletableFuture<List<String>> first = CompletableFuture.supplyAsync(() -> pool.lease(1, 1));
+        Thread.sleep(200);
+        // 第一次租用仍在修改自动释放时间，其余空闲实例应可以被租用
+        List<String> second = pool.lease(2, 1);
+        List<String> firstLeased = first.get(10, TimeUnit.SECONDS);
+
+        assertEquals(firstLeased.size(), 1);
+        assertEquals(second.size(), 2);
+        Set<String> all = new HashSet<>(firstLeased);
+        all.addAll(second);
+        assertEquals(all, new HashSet<>(ids));
+    }
+
+    @Test
+    public void leaseTopsUpFromRemainingIdleInstances() throws IOException {
+        InstancePool pool = new InstancePool(stateFile, REGION_ID, 30, aliEcsUtils);
+        String stopped = server.addInstance("Stopped");
+        String unmodifiable = server.addInstance("Running");
+        String running = server.addInstance("Running");
+        List<String> ids = Arrays.asList(stopped, unmodifiable, running);
+        pool.add(ids, 1);
+        pool.giveBack(ids);
+        server.failModify(unmodifiable);
+
+        // 不论先选中哪台，状态异常和修改失败的实例被移除后都会从剩余的空闲实例中补足
+        assertEquals(pool.lease(1, 1), Collections.singletonList(running));
+        JSONObject instances = JSON.parseObject(new String(Files.readAllBytes(Paths.get(stateFile)), StandardCharsets.UTF_8))
+                .getJSONObject("instances");
+        assertEquals(instances.getJSONObject(running).getString("state"), "leased");
+        for (String id : Arrays.asList(stopped, unmodifiable)) {
+            assertTrue(!instances.containsKey(id) || "idle".equals(instances.getJSONObject(id).getString("state")),
+                    "未租出的实例应被移除或恢复为空闲");
+        }
+    }
+
+    @Test
+    public void staleOrOrphanedLeasingInstancesAreLeasable() throws IOException {
+        InstancePool pool = new InstancePool(stateFile, REGION_ID, 30, aliEcsUtils);
+        String stale = server.addInstance("Running");
+        String orphaned = server.addInstance("Running");
+        String inProgress = server.addInstance("Running");
+        List<String> ids = Arrays.asList(stale, orphaned, inProgress);
+        pool.add(ids, 1);
+        pool.giveBack(ids);
+
+        String self = ManagementFactory.getRuntimeMXBean().getName();
+        Path path = Paths.get(stateFile);
+        JSONObject state = JSON.parseObject(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+        JSONObject instances = state.getJSONObject("instances");
+        // 其它机器上的进程标记后超时未更新
+        markLeasing(instances.getJSONObject(stale), "1@other-host", System.currentTimeMillis() - 1000L * 60 * 60);
+        // 本机已退出的进程刚刚标记
+        markLeasing(instances.getJSONObject(orphaned), Integer.MAX_VALUE + self.substring(self.indexOf('@')), System.currentTimeMillis());
+        // 本进程正在租用
+        markLeasing(instances.getJSONObject(inProgress), self, System.currentTimeMillis());
+        Files.write(path, state.toJSONString().getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(new HashSet<>(pool.lease(3, 1)), new HashSet<>(Arrays.asList(stale, orphaned)),
+                "超时或进程已退出的租用中实例应可以租用，正在租用的实例不能租用");
+    }
+
+    private static void markLeasing(JSONObject instance, String owner, long updateTime) {
+        instance.put("state", "leasing");
+        instance.put("owner", owner);
+        instance.put("updateTime", updateTime);
+    }
+}
@@ -0,0 +1,143 @@
+package com.harvey.performance.application.service;
+
+import com.harvey.performance.cloudUtils.AliEcsUtils;
+import com.harvey.performance.cloudUtils.MockEcsServer;
+import com.harvey.performance.exception.PerformanceException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * 使用本地模拟的ECS API和返回ssh版本标识的本地端口，验证实例逐台就绪、未Running的实例不探测以及超时
+ *
+ * @author harvey
+ */
+public class InstanceReadinessTest {
+
+    private static final String REGION_ID = "cn-hangzhou";
+
+    /**
+     * 模拟ECS API返回的内网ip
+     */
+    private static final String IP = "127.0.0.1";
+
+    private MockEcsServer server;
+
+    private ServerSocket sshd;
+
+    private final AtomicInteger probes = new AtomicInteger();
+
+    private InstanceReadiness readiness;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = new MockEcsServer();
+        probes.set(0);
+        sshd = new ServerSocket(0, 50, InetAddress.getByName(IP));
+        Thread thread = new Thread(this::serveBanner, "mock-sshd");
+        thread.setDaemon(true);
+        thread.start();
+        readiness = new InstanceReadiness(new AliEcsUtils(REGION_ID, "lt-test"), sshd.getLocalPort());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws IOException {
+        sshd.close();
+        server.close();
+    }
+
+    @Test
+    public void readyInstanceCompletesWithoutWaitingForOthers() throws Exception {
+        String running = server.addInstance("Running");
+        String starting = server.addInstance("Starting");
+
+        List<CompletableFuture<String>> futures = readiness.watch(Arrays.asList(running, starting), 30 * 1000);
+
+        assertEquals(futures.get(0).get(10, TimeUnit.SECONDS), IP);
+        assertFalse(futures.get(1).isDone(), "尚未Running的实例不应就绪");
+
+        server.setStatus(starting, "Running");
+        assertEquals(futures.get(1).get(15, TimeUnit.SECONDS), IP);
+    }
+
+    @Test
+    public void instancesNotRunningAreNotProbed() throws Exception {
+        String stopped = server.addInstance("Stopped");
+
+        CompletableFuture<String> future = readiness.watch(Collections.singletonList(stopped), 30 * 1000).get(0);
+        // 第一次查询立即进行，第二次在POLL_INTERVAL_INITIAL之后
+        Thread.sleep(2500);
+
+        assertTrue(server.getDescribeCalls() >= 2, "应持续查询尚未Running的实例");
+        assertEquals(probes.get(), 0, "尚未Running的实例不应探测sshd");
+        assertFalse(future.isDone());
+
+        server.setStatus(stopped, "Running");
+        assertEquals(future.get(15, TimeUnit.SECONDS), IP);
+        assertTrue(probes.get() > 0);
+    }
+
+    @Test
+    public void timeoutFailsOnlyUnreadyInstances() throws Exception {
+        String running = server.addInstance("Running");
+        String stopped = server.addInstance("Stopped");
+
+        List<CompletableFuture<String>> futures = readiness.watch(Arrays.asList(running, stopped), 3000);
+
+        assertEquals(futures.get(0).get(10, TimeUnit.SECONDS), IP);
+        try {
+            futures.get(1).get(10, TimeUnit.SECONDS);
+            fail("超时未就绪的实例应以异常完成");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PerformanceException, String.valueOf(e.getCause()));
+            assertTrue(e.getCause().getMessage().contains(stopped), e.getCause().getMessage());
+            assertFalse(e.getCause().getMessage().contains(running), "已就绪的实例不应列为未就绪");
+        }
+    }
+
+    @Test(expectedExceptions = PerformanceException.class)
+    public void awaitThrowsWhenSshdNeverAnswers() throws IOException {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0, 50, InetAddress.getByName(IP))) {
+            closedPort = socket.getLocalPort();
+        }
+        InstanceReadiness unreachable = new InstanceReadiness(new AliEcsUtils(REGION_ID, "lt-test"), closedPort);
+
+        unreachable.await(Collections.singletonList(server.addInstance("Running")), 2000);
+    }
+
+    /**
+     * 每个连接返回ssh版本标识后关闭，记录探测次数
+     */
+    private void serveBanner() {
+        while (!sshd.isClosed()) {
+            try (Socket socket = sshd.accept()) {
+                probes.incrementAndGet();
+                OutputStream out = socket.getOutputStream();
+                out.write("SSH-2.0-mock\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+}
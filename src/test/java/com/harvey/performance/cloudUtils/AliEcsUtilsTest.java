@@ -0,0 +1,122 @@
+package com.harvey.performance.cloudUtils;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * 使用本地模拟的ECS API验证大批量实例的分批创建、翻页查询和批量释放
+ *
+ * @author harvey
+ */
+public class AliEcsUtilsTest {
+
+    private MockEcsServer server;
+
+    private AliEcsUtils aliEcsUtils;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = new MockEcsServer();
+        aliEcsUtils = new AliEcsUtils("ap-southeast-1", "lt-test");
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void runInstancesInBatchesOfHundred() {
+        String idList = aliEcsUtils.runInstances(250, 1);
+
+        assertNotNull(idList, "分批创建不应失败");
+        List<String> ids = JSON.parseArray(idList, String.class);
+        assertEquals(ids.size(), 250);
+        assertEquals(new HashSet<>(ids).size(), 250, "实例id不应重复");
+        List<Integer> amounts = server.getRunAmounts();
+        Collections.sort(amounts);
+        assertEquals(amounts, Arrays.asList(50, 100, 100));
+    }
+
+    @Test
+    public void describeInstancesFollowsNextToken() {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            ids.add(server.addInstance("Running"));
+        }
+
+        Map<String, JSONObject> instances = aliEcsUtils.describeInstances(ids);
+
+        assertNotNull(instances, "查询不应失败");
+        assertEquals(instances.keySet(), new HashSet<>(ids));
+        // 按100个一组查询，每组按每页30台翻页：4 + 4 + 2
+        assertEquals(server.getDescribeCalls(), 10);
+        assertEquals(AliEcsUtils.primaryIpAddress(instances.get(ids.get(249))), "127.0.0.1");
+    }
+
+    @Test
+    public void deleteInstancesInBatchesOfHundred() {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            ids.add(server.addInstance("Running"));
+        }
+
+        assertTrue(aliEcsUtils.deleteInstances(ids));
+
+        List<Integer> sizes = server.getDeleteBatchSizes();
+        Collections.sort(sizes);
+        assertEquals(sizes, Arrays.asList(50, 100, 100));
+        assertTrue(server.getSingleDeletedIds().isEmpty(), "批量释放成功时不应逐台释放");
+        for (String id : ids) {
+            assertFalse(server.hasInstance(id));
+        }
+    }
+
+    @Test
+    public void failedBatchFallsBackToSingleDeletes() {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            ids.add(server.addInstance("Running"));
+        }
+        // 第二批（后50台）批量释放失败
+        server.failBatchDelete(ids.get(120));
+
+        assertTrue(aliEcsUtils.deleteInstances(ids));
+
+        assertEquals(new HashSet<>(server.getSingleDeletedIds()), new HashSet<>(ids.subList(100, 150)),
+                "只有失败批次中的实例应逐台释放");
+        for (String id : ids) {
+            assertFalse(server.hasInstance(id));
+        }
+    }
+
+    @Test
+    public void instancesStillPresentAreDeletedAgain() {
+        String deleted = server.addInstance("Running");
+        String kept = server.addInstance("Running");
+        server.keepOnFirstDelete(kept);
+
+        assertTrue(aliEcsUtils.deleteInstances(Arrays.asList(deleted, kept)));
+
+        List<String> requested = server.getDeleteRequestedIds();
+        assertEquals(Collections.frequency(requested, deleted), 1);
+        assertEquals(Collections.frequency(requested, kept), 2, "释放后仍存在的实例应再次释放");
+        assertFalse(server.hasInstance(kept));
+    }
+}
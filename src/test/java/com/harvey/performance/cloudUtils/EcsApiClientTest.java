@@ -0,0 +1,77 @@
+package com.harvey.performance.cloudUtils;
+
+import com.alibaba.fastjson.JSONObject;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+
+/**
+ * 使用本地模拟的ECS API验证被限流时的重试和并发查询的合并
+ *
+ * @author harvey
+ */
+public class EcsApiClientTest {
+
+    private MockEcsServer server;
+
+    private AliEcsUtils aliEcsUtils;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        server = new MockEcsServer();
+        aliEcsUtils = new AliEcsUtils("ap-southeast-1", "lt-test");
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void retriesWhenThrottled() {
+        String id = server.addInstance("Running");
+        server.throttle("DescribeInstances", 2);
+
+        Map<String, JSONObject> instances = aliEcsUtils.describeInstances(Collections.singletonList(id));
+
+        assertNotNull(instances, "被限流后重试应成功");
+        assertEquals(instances.keySet(), Collections.singleton(id));
+        assertEquals(server.getDescribeCalls(), 3, "被限流两次，第三次成功");
+    }
+
+    @Test
+    public void concurrentDescribesAreCoalesced() throws InterruptedException {
+        server.setDescribeDelayMillis(500);
+        String first = server.addInstance("Running");
+        CompletableFuture<Map<String, JSONObject>> leader = CompletableFuture.supplyAsync(
+                () -> aliEcsUtils.describeInstances(Collections.singletonList(first)));
+        while (server.getDescribeCalls() == 0) {
+            Thread.sleep(10);
+        }
+
+        // 第一次查询进行中到达的查询合并为下一次查询
+        List<String> ids = new ArrayList<>();
+        List<CompletableFuture<Map<String, JSONObject>>> followers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            String id = server.addInstance("Running");
+            ids.add(id);
+            followers.add(CompletableFuture.supplyAsync(() -> aliEcsUtils.describeInstances(Collections.singletonList(id))));
+        }
+
+        assertEquals(leader.join().keySet(), Collections.singleton(first));
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(followers.get(i).join().keySet(), Collections.singleton(ids.get(i)));
+        }
+        assertEquals(server.getDescribeCalls(), 2, "并发的查询应合并为一次API调用");
+    }
+}
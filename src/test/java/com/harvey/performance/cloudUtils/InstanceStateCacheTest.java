@@ -0,0 +1,74 @@
+package com.harvey.performance.cloudUtils;
+
+import com.alibaba.fastjson.JSONObject;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * 验证实例状态缓存在TTL内命中、过期后重新查询
+ *
+ * @author harvey
+ */
+public class InstanceStateCacheTest {
+
+    /**
+     * 记录每次查询的实例id，返回除"i-released"以外的所有实例
+     */
+    private final List<List<String>> fetched = new ArrayList<>();
+
+    private final Function<List<String>, Map<String, JSONObject>> fetch = ids -> {
+        fetched.add(new ArrayList<>(ids));
+        Map<String, JSONObject> instances = new HashMap<>();
+        for (String id : ids) {
+            if (!"i-released".equals(id)) {
+                JSONObject instance = new JSONObject();
+                instance.put("InstanceId", id);
+                instances.put(id, instance);
+            }
+        }
+        return instances;
+    };
+
+    @BeforeMethod
+    public void setUp() {
+        fetched.clear();
+    }
+
+    @Test
+    public void hitsWithinTtlAndFetchesOnlyMissing() {
+        InstanceStateCache cache = new InstanceStateCache(60 * 1000);
+
+        assertEquals(cache.get(Arrays.asList("i-1", "i-released"), fetch).keySet(), Collections.singleton("i-1"));
+        assertEquals(cache.get(Arrays.asList("i-1", "i-released", "i-2"), fetch).keySet(),
+                new HashSet<>(Arrays.asList("i-1", "i-2")));
+
+        // 已释放的实例也缓存为不存在，第二次只查询缓存中没有的实例
+        assertEquals(fetched, Arrays.asList(Arrays.asList("i-1", "i-released"), Collections.singletonList("i-2")));
+    }
+
+    @Test
+    public void fetchesAgainAfterTtlOrInvalidate() throws InterruptedException {
+        InstanceStateCache cache = new InstanceStateCache(50);
+        cache.get(Collections.singletonList("i-1"), fetch);
+        Thread.sleep(100);
+        cache.get(Collections.singletonList("i-1"), fetch);
+        assertEquals(fetched.size(), 2, "超过TTL后应重新查询");
+
+        InstanceStateCache longLived = new InstanceStateCache(60 * 1000);
+        longLived.get(Collections.singletonList("i-1"), fetch);
+        longLived.invalidate(Collections.singletonList("i-1"));
+        longLived.get(Collections.singletonList("i-1"), fetch);
+        assertEquals(fetched.size(), 4, "移除缓存后应重新查询");
+    }
+}
@@ -0,0 +1,477 @@
+package com.harvey.performance.cloudUtils;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 本地模拟的ECS API服务，启动后通过系统属性AliEcsUtils.ENDPOINT_PROPERTY让AliEcsUtils连接到这里
+ * <p>
+ * 与真实API一致：RunInstances的Amount和DescribeInstances的InstanceIds最多100个，
+ * DescribeInstances每页最多返回PAGE_SIZE台实例并通过NextToken翻页。
+ * 直接在socket上应答HTTP请求：sdk按大小写完全一致的Content-Type头识别JSON错误响应，
+ * 而JDK的HttpServer会把响应头改写为Content-type，错误码无法被解析
+ *
+ * @author harvey
+ */
+public class MockEcsServer implements AutoCloseable {
+
+    /**
+     * DescribeInstances每页返回的实例数，小于客户端的MaxResults以触发翻页
+     */
+    public static final int PAGE_SIZE = 30;
+
+    private static final int MAX_BATCH = 100;
+
+    private final ServerSocket server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * 实例id前缀，避免不同测试的实例id在共享的状态缓存中冲突
+     */
+    private final String idPrefix = "i-" + UUID.randomUUID().toString().substring(0, 8) + "-";
+
+    /**
+     * key：实例id，value：实例状态
+     */
+    private final Map<String, String> instances = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private final List<Integer> runAmounts = Collections.synchronizedList(new ArrayList<>());
+
+    private final List<String> modifiedIds = Collections.synchronizedList(new ArrayList<>());
+
+    private final Set<String> failModifyIds = Collections.synchronizedSet(new HashSet<>());
+
+    private final List<Integer> deleteBatchSizes = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * 每次DeleteInstances和DeleteInstance请求中的实例id
+     */
+    private final List<String> deleteRequestedIds = Collections.synchronizedList(new ArrayList<>());
+
+    private final List<String> singleDeletedIds = Collections.synchronizedList(new ArrayList<>());
+
+    private final Set<String> failBatchDeleteIds = Collections.synchronizedSet(new HashSet<>());
+
+    private final Set<String> keepOnceIds = Collections.synchronizedSet(new HashSet<>());
+
+    private final AtomicInteger describeCalls = new AtomicInteger();
+
+    /**
+     * key：API名称，value：还需要返回限流错误的次数
+     */
+    private final Map<String, Integer> throttles = new HashMap<>();
+
+    private volatile long describeDelayMillis = 0;
+
+    private final AtomicInteger modifying = new AtomicInteger();
+
+    private final AtomicInteger maxConcurrentModify = new AtomicInteger();
+
+    private volatile long modifyDelayMillis = 0;
+
+    private int counter = 0;
+
+    /**
+     * 在随机端口启动服务并设置AliEcsUtils.ENDPOINT_PROPERTY
+     *
+     * @throws IOException 端口绑定失败
+     */
+    public MockEcsServer() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        executor.execute(this::accept);
+        System.setProperty(AliEcsUtils.ENDPOINT_PROPERTY, "http://127.0.0.1:" + server.getLocalPort());
+    }
+
+    /**
+     * 直接登记一台实例，不经过RunInstances
+     *
+     * @param status 实例状态
+     * @return 实例id
+     */
+    public synchronized String addInstance(String status) {
+        String id = idPrefix + (++counter);
+        instances.put(id, status);
+        return id;
+    }
+
+    /**
+     * 修改已登记实例的状态，例如模拟实例从Starting变为Running
+     *
+     * @param id     实例id
+     * @param status 实例状态
+     */
+    public void setStatus(String id, String status) {
+        instances.replace(id, status);
+    }
+
+    /**
+     * @param id 实例id
+     * @return true：实例存在，没有被释放
+     */
+    public boolean hasInstance(String id) {
+        return instances.containsKey(id);
+    }
+
+    /**
+     * @param id ModifyInstanceAutoReleaseTime对该实例返回失败
+     */
+    public void failModify(String id) {
+        failModifyIds.add(id);
+    }
+
+    /**
+     * @param id 包含该实例的DeleteInstances请求返回失败，DeleteInstance不受影响
+     */
+    public void failBatchDelete(String id) {
+        failBatchDeleteIds.add(id);
+    }
+
+    /**
+     * @param id 第一次释放该实例的请求返回成功但实例仍然存在，模拟释放未生效
+     */
+    public void keepOnFirstDelete(String id) {
+        keepOnceIds.add(id);
+    }
+
+    /**
+     * 该API接下来的times次请求返回限流错误码Throttling.User
+     *
+     * @param action API名称
+     * @param times  返回限流错误的次数
+     */
+    public void throttle(String action, int times) {
+        synchronized (throttles) {
+            throttles.put(action, times);
+        }
+    }
+
+    /**
+     * @param describeDelayMillis DescribeInstances的处理耗时
+     */
+    public void setDescribeDelayMillis(long describeDelayMillis) {
+        this.describeDelayMillis = describeDelayMillis;
+    }
+
+    /**
+     * @param modifyDelayMillis ModifyInstanceAutoReleaseTime的处理耗时
+     */
+    public void setModifyDelayMillis(long modifyDelayMillis) {
+        this.modifyDelayMillis = modifyDelayMillis;
+    }
+
+    /**
+     * @return 每次RunInstances请求的Amount
+     */
+    public List<Integer> getRunAmounts() {
+        return new ArrayList<>(runAmounts);
+    }
+
+    /**
+     * @return 成功修改自动释放时间的实例id，按请求顺序
+     */
+    public List<String> getModifiedIds() {
+        return new ArrayList<>(modifiedIds);
+    }
+
+    /**
+     * @return 每次DeleteInstances请求的实例数，包括失败的请求
+     */
+    public List<Integer> getDeleteBatchSizes() {
+        return new ArrayList<>(deleteBatchSizes);
+    }
+
+    /**
+     * @return 所有释放请求中的实例id，同一实例每请求一次出现一次
+     */
+    public List<String> getDeleteRequestedIds() {
+        return new ArrayList<>(deleteRequestedIds);
+    }
+
+    /**
+     * @return 通过DeleteInstance逐台释放的实例id
+     */
+    public List<String> getSingleDeletedIds() {
+        return new ArrayList<>(singleDeletedIds);
+    }
+
+    /**
+     * @return DescribeInstances的请求次数，包括被限流的请求
+     */
+    public int getDescribeCalls() {
+        return describeCalls.get();
+    }
+
+    /**
+     * @return 同时处理的ModifyInstanceAutoReleaseTime请求数的最大值
+     */
+    public int getMaxConcurrentModify() {
+        return maxConcurrentModify.get();
+    }
+
+    @Override
+    public void close() {
+        System.clearProperty(AliEcsUtils.ENDPOINT_PROPERTY);
+        try {
+            server.close();
+        } catch (IOException ignored) {
+            // 已关闭
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 读取一个请求并应答，应答后关闭连接
+     */
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            String requestLine = readLine(in);
+            if (null == requestLine || requestLine.isEmpty()) {
+                return;
+            }
+            int contentLength = 0;
+            String line;
+            while (null != (line = readLine(in)) && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && "Content-Length".equalsIgnoreCase(line.substring(0, colon).trim())) {
+                    contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+                }
+            }
+            byte[] body = new byte[contentLength];
+            for (int read = 0; read < contentLength; ) {
+                int n = in.read(body, read, contentLength - read);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+            String target = requestLine.split(" ")[1];
+            int query = target.indexOf('?');
+            handle(new Exchange(query < 0 ? null : target.substring(query + 1), body, connection.getOutputStream()));
+        } catch (IOException ignored) {
+            // 客户端断开
+        }
+    }
+
+    private void handle(Exchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parse(exchange.rawQuery, params);
+        parse(new String(exchange.body, StandardCharsets.UTF_8), params);
+        String action = params.get("Action");
+        JSONObject body = new JSONObject(true);
+        body.put("RequestId", UUID.randomUUID().toString());
+        if ("DescribeInstances".equals(action)) {
+            describeCalls.incrementAndGet();
+        }
+        synchronized (throttles) {
+            Integer remaining = throttles.get(action);
+            if (null != remaining && remaining > 0) {
+                throttles.put(action, remaining - 1);
+                error(exchange, "Throttling.User", body);
+                return;
+            }
+        }
+        if ("RunInstances".equals(action)) {
+            int amount = Integer.parseInt(params.get("Amount"));
+            if (amount > MAX_BATCH) {
+                error(exchange, "InvalidAmount.ValueNotSupported", body);
+                return;
+            }
+            runAmounts.add(amount);
+            JSONArray ids = new JSONArray();
+            for (int i = 0; i < amount; i++) {
+                ids.add(addInstance("Pending"));
+            }
+            JSONObject idSets = new JSONObject();
+            idSets.put("InstanceIdSet", ids);
+            body.put("InstanceIdSets", idSets);
+        } else if ("DescribeInstances".equals(action)) {
+            try {
+                Thread.sleep(describeDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            List<String> requested = JSON.parseArray(params.get("InstanceIds"), String.class);
+            if (requested.size() > MAX_BATCH) {
+                error(exchange, "InvalidInstanceIds.MalFormed", body);
+                return;
+            }
+            List<String> found = new ArrayList<>();
+            for (String id : requested) {
+                if (instances.containsKey(id)) {
+                    found.add(id);
+                }
+            }
+            int size = Math.min(PAGE_SIZE, Integer.parseInt(params.getOrDefault("MaxResults", "10")));
+            int start = null == params.get("NextToken") ? 0 : Integer.parseInt(params.get("NextToken"));
+            JSONArray page = new JSONArray();
+            for (String id : found.subList(start, Math.min(found.size(), start + size))) {
+                JSONObject ip = new JSONObject();
+                ip.put("PrimaryIpAddress", "127.0.0.1");
+                JSONObject interfaces = new JSONObject();
+                interfaces.put("NetworkInterface", Collections.singletonList(ip));
+                JSONObject instance = new JSONObject();
+                instance.put("InstanceId", id);
+                instance.put("Status", instances.get(id));
+                instance.put("NetworkInterfaces", interfaces);
+                page.add(instance);
+            }
+            JSONObject list = new JSONObject();
+            list.put("Instance", page);
+            body.put("Instances", list);
+            body.put("TotalCount", found.size());
+            if (start + size < found.size()) {
+                body.put("NextToken", String.valueOf(start + size));
+            }
+        } else if ("ModifyInstanceAutoReleaseTime".equals(action)) {
+            String id = params.get("InstanceId");
+            maxConcurrentModify.accumulateAndGet(modifying.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(modifyDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                modifying.decrementAndGet();
+            }
+            if (failModifyIds.contains(id) || !instances.containsKey(id)) {
+                error(exchange, "InvalidInstanceId.NotFound", body);
+                return;
+            }
+            modifiedIds.add(id);
+        } else if ("DeleteInstances".equals(action)) {
+            List<String> ids = new ArrayList<>();
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                if (param.getKey().startsWith("InstanceId.")) {
+                    ids.add(param.getValue());
+                }
+            }
+            deleteBatchSizes.add(ids.size());
+            if (ids.size() > MAX_BATCH) {
+                error(exchange, "InvalidParameter.InstanceIds", body);
+                return;
+            }
+            for (String id : ids) {
+                if (failBatchDeleteIds.contains(id)) {
+                    error(exchange, "IncorrectInstanceStatus", body);
+                    return;
+                }
+            }
+            for (String id : ids) {
+                delete(id);
+            }
+        } else if ("DeleteInstance".equals(action)) {
+            String id = params.get("InstanceId");
+            singleDeletedIds.add(id);
+            delete(id);
+        }
+        respond(exchange, 200, body);
+    }
+
+    private void delete(String id) {
+        deleteRequestedIds.add(id);
+        if (!keepOnceIds.remove(id)) {
+            instances.remove(id);
+        }
+    }
+
+    private static void error(Exchange exchange, String code, JSONObject body) throws IOException {
+        body.put("Code", code);
+        body.put("Message", code);
+        respond(exchange, 400, body);
+    }
+
+    private static void respond(Exchange exchange, int status, JSONObject body) throws IOException {
+        byte[] data = body.toJSONString().getBytes(StandardCharsets.UTF_8);
+        // sdk只在JSON类型的响应中解析错误码
+        String head = "HTTP/1.1 " + status + (200 == status ? " OK" : " Bad Request") + "\r\n"
+                + "Content-Type: application/json;charset=utf-8\r\n"
+                + "Content-Length: " + data.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        OutputStream out = exchange.out;
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(data);
+        out.flush();
+    }
+
+    private static void parse(String query, Map<String, String> params) throws UnsupportedEncodingException {
+        if (null == query || query.isEmpty()) {
+            return;
+        }
+        for (String pair : query.split("&")) {
+            int index = pair.indexOf('=');
+            if (index > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+            }
+        }
+    }
+
+    /**
+     * @return 去掉行尾CRLF的一行，连接已关闭时返回null
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b < 0 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static class Exchange {
+
+        private final String rawQuery;
+
+        private final byte[] body;
+
+        private final OutputStream out;
+
+        Exchange(String rawQuery, byte[] body, OutputStream out) {
+            this.rawQuery = rawQuery;
+            this.body = body;
+            this.out = out;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.harvey.performance.cloudUtils;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * 验证令牌桶允许capacity次突发调用，之后按固定速率放行
+ *
+ * @author harvey
+ */
+public class TokenBucketTest {
+
+    @Test
+    public void burstThenPacedAtRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(20, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(bucket.acquire(), 0L, "桶中的令牌不需要等待");
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            bucket.acquire();
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        // 每秒20个令牌，10次调用约500ms
+        assertTrue(elapsedMillis >= 450, "令牌不足时应按速率等待，实际耗时" + elapsedMillis + "ms");
+        assertTrue(elapsedMillis < 1500, "等待时间不应远超按速率计算的时间，实际耗时" + elapsedMillis + "ms");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsNonPositiveRate() {
+        new TokenBucket(0, 1);
+    }
+}
@@ -0,0 +1,71 @@
+package com.harvey.performance.jschutils;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * 使用不真正连接的session验证并发连接的部分成功结果
+ *
+ * @author harvey
+ */
+public class JschUtilTest {
+
+    @Test
+    public void fanOutReportsConnectedAndFailedHosts() {
+        JSch jSch = new JSch();
+
+        ConnectResult result = JschUtil.fanOut(Arrays.asList("10.0.0.1", "10.0.0.2", "10.0.0.3"), 2, host -> {
+            if ("10.0.0.2".equals(host)) {
+                throw new JSchException("Auth fail");
+            }
+            return jSch.getSession("root", host, 22);
+        });
+
+        assertFalse(result.isAllConnected());
+        assertEquals(result.getConnectedHosts(), Arrays.asList("10.0.0.1", "10.0.0.3"), "成功的host应保持传入顺序");
+        assertEquals(result.getSessions().size(), 2);
+        assertEquals(result.getFailedHosts(), Collections.singletonMap("10.0.0.2", "Auth fail"));
+    }
+
+    @Test
+    public void fanOutConnectsHostsConcurrently() {
+        JSch jSch = new JSch();
+        CountDownLatch latch = new CountDownLatch(3);
+
+        // 每个host都要等其它host开始连接后才能完成，串行连接时会超时失败
+        ConnectResult result = JschUtil.fanOut(Arrays.asList("10.0.0.1", "10.0.0.2", "10.0.0.3"), 3, host -> {
+            latch.countDown();
+            try {
+                if (!latch.await(5, TimeUnit.SECONDS)) {
+                    throw new JSchException("[" + host + "] 未并发连接");
+                }
+            } catch (InterruptedException e) {
+                throw new JSchException("[" + host + "] 连接被中断");
+            }
+            return jSch.getSession("root", host, 22);
+        });
+
+        assertTrue(result.isAllConnected(), String.valueOf(result.getFailedHosts()));
+    }
+
+    @Test
+    public void emptyHostListConnectsNothing() {
+        ConnectResult result = JschUtil.fanOut(Collections.emptyList(), 4, host -> {
+            throw new JSchException("不应调用");
+        });
+
+        assertTrue(result.isAllConnected());
+        assertTrue(result.getSessions().isEmpty());
+    }
+}
@@ -0,0 +1,199 @@
+package com.harvey.performance.jschutils;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * 在本机用bash执行种子节点的暂存命令、目标节点的复制命令和http服务命令，
+ * 验证目标路径为目录和文件时的落盘位置，以及http服务的监听地址和下载路径
+ *
+ * @author harvey
+ */
+public class TreeDistributorTest {
+
+    private Path root;
+
+    private TreeDistributor distributor;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("tree-distributor");
+        distributor = new TreeDistributor(root.resolve("staging").toString(), TreeDistributor.DEFAULT_PORT, TreeDistributor.DEFAULT_FANOUT);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception {
+        bash("rm -rf " + JschExecUtil.shellQuote(root.toString()));
+    }
+
+    @Test
+    public void distributeIntoDirectoryDestination() throws Exception {
+        File local = write(root.resolve("local/apache-jmeter-5.2.tgz"), "jmeter");
+        File seedDir = root.resolve("seed/.artifacts").toFile();
+        File targetDir = root.resolve("target/.artifacts").toFile();
+        assertTrue(targetDir.mkdirs());
+        // 种子节点上已通过增量上传得到 目录/源文件名
+        write(new File(seedDir, local.getName()).toPath(), "jmeter");
+        List<String> names = Collections.singletonList("f0");
+        List<String> src = Collections.singletonList(local.getPath());
+
+        bash(distributor.stageCommand(names, src, Collections.singletonList(seedDir.getPath() + "/")));
+        bash(distributor.copyCommand(names, src, Collections.singletonList(targetDir.getPath() + "/")));
+
+        File copied = new File(targetDir, local.getName());
+        assertTrue(copied.isFile(), "目标节点上应为源文件名");
+        assertEquals(new String(Files.readAllBytes(copied.toPath()), StandardCharsets.UTF_8), "jmeter");
+        assertFalse(new File(targetDir, "f0").exists(), "不应以暂存名落盘");
+    }
+
+    @Test
+    public void distributeIntoFileDestination() throws Exception {
+        File local = write(root.resolve("local/users.csv"), "id\n1\n");
+        File seedFile = write(root.resolve("seed/data/users-renamed.csv"), "id\n1\n");
+        File targetFile = root.resolve("target/data/users-renamed.csv").toFile();
+        assertTrue(targetFile.getParentFile().mkdirs());
+        List<String> names = Collections.singletonList("f0");
+        List<String> src = Collections.singletonList(local.getPath());
+
+        bash(distributor.stageCommand(names, src, Collections.singletonList(seedFile.getPath())));
+        bash(distributor.copyCommand(names, src, Collections.singletonList(targetFile.getPath())));
+
+        assertEquals(new String(Files.readAllBytes(targetFile.toPath()), StandardCharsets.UTF_8), "id\n1\n");
+    }
+
+    @Test
+    public void serveOnlyOnNodeIpUnderRandomPath() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        TreeDistributor server = new TreeDistributor(root.resolve("staging").toString(), port, TreeDistributor.DEFAULT_FANOUT);
+        File local = write(root.resolve("local/users.csv"), "id\n1\n");
+        write(root.resolve("seed/users.csv"), "id\n1\n");
+        bash(server.stageCommand(Collections.singletonList("f0"), Collections.singletonList(local.getPath()),
+                Collections.singletonList(root.resolve("seed").toString() + "/")));
+        Process process = new ProcessBuilder("bash", "-c", server.serverCommand("127.0.0.1")).redirectErrorStream(true).start();
+        try {
+            String url = server.url("127.0.0.1", "f0");
+            assertEquals(get(url), "id\n1\n");
+            String runId = url.split("/")[3];
+            assertFalse(get("http://127.0.0.1:" + port + "/").contains(runId), "根目录不应列出本次分发的目录");
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.2", port), 1000);
+                fail("http服务不应监听其它地址");
+            } catch (ConnectException expected) {
+                // 只监听指定的ip
+            }
+        } finally {
+            bash(server.stopCommand());
+            assertTrue(process.waitFor(10, TimeUnit.SECONDS), "http服务应被停止");
+        }
+    }
+
+    @Test
+    public void concurrentDistributorsKeepSeparateServersAndLogs() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        // 两次分发使用同一端口，分别监听不同的ip，相当于同一批压测机上同时进行的两次压测
+        TreeDistributor first = new TreeDistributor(root.resolve("first").toString(), port, TreeDistributor.DEFAULT_FANOUT);
+        TreeDistributor second = new TreeDistributor(root.resolve("second").toString(), port, TreeDistributor.DEFAULT_FANOUT);
+        File local = write(root.resolve("local/users.csv"), "id\n1\n");
+        write(root.resolve("seed/users.csv"), "id\n1\n");
+        List<String> names = Collections.singletonList("f0");
+        List<String> src = Collections.singletonList(local.getPath());
+        List<String> dst = Collections.singletonList(root.resolve("seed").toString() + "/");
+        bash(first.stageCommand(names, src, dst));
+        bash(second.stageCommand(names, src, dst));
+        Process firstServer = startServer(first, "127.0.0.1");
+        Process secondServer = startServer(second, "127.0.0.2");
+        try {
+            String firstUrl = first.url("127.0.0.1", "f0");
+            String secondUrl = second.url("127.0.0.2", "f0");
+            assertEquals(get(firstUrl), "id\n1\n");
+            assertEquals(get(secondUrl), "id\n1\n");
+
+            bash(first.stopCommand());
+            assertTrue(firstServer.waitFor(10, TimeUnit.SECONDS), "本次分发的http服务应被停止");
+            assertTrue(secondServer.isAlive(), "不应停止其它分发的http服务");
+            assertEquals(get(secondUrl), "id\n1\n");
+
+            String firstLog = new String(Files.readAllBytes(new File(first.logFile()).toPath()), StandardCharsets.UTF_8);
+            String secondLog = new String(Files.readAllBytes(new File(second.logFile()).toPath()), StandardCharsets.UTF_8);
+            assertTrue(firstLog.contains(firstUrl.substring(firstUrl.indexOf('/', 7))), firstLog);
+            assertFalse(firstLog.contains(secondUrl.substring(secondUrl.indexOf('/', 7))), "日志文件不应混入其它分发的请求");
+            assertTrue(secondLog.contains(secondUrl.substring(secondUrl.indexOf('/', 7))), secondLog);
+        } finally {
+            bash(first.stopCommand() + "; " + second.stopCommand() + "; rm -f " + JschExecUtil.shellQuote(first.logFile())
+                    + " " + JschExecUtil.shellQuote(second.logFile()) + "; true");
+            assertTrue(secondServer.waitFor(10, TimeUnit.SECONDS), "http服务应被停止");
+        }
+    }
+
+    /**
+     * 与JschExecUtil.startDaemon相同，输出写入该分发的日志文件
+     */
+    private static Process startServer(TreeDistributor distributor, String host) throws IOException {
+        return new ProcessBuilder("bash", "-c", "exec > " + JschExecUtil.shellQuote(distributor.logFile()) + " 2>&1; "
+                + distributor.serverCommand(host)).start();
+    }
+
+    /**
+     * 等待http服务启动后读取地址内容
+     */
+    private static String get(String url) throws Exception {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (true) {
+            try (InputStream in = new URL(url).openStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static File write(Path path, String content) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        return path.toFile();
+    }
+
+    private static void bash(String cmd) throws Exception {
+        Process process = new ProcessBuilder(Arrays.asList("bash", "-c", cmd)).redirectErrorStream(true).start();
+        assertTrue(process.waitFor(30, TimeUnit.SECONDS), "命令超时：" + cmd);
+        assertEquals(process.exitValue(), 0, "命令失败：" + cmd);
+    }
+}
@@ -0,0 +1,69 @@
+package com.harvey.performance.metrics;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * 验证名称有公共前缀的指标在Prometheus文本中按名称分组，每组只有一行 # TYPE
+ *
+ * @author harvey
+ */
+public class MetricsRegistryTest {
+
+    private final MetricsRegistry registry = MetricsRegistry.getInstance();
+
+    @Test
+    public void countersSharingPrefixAreGroupedByName() {
+        registry.increment("registry_test_total");
+        registry.increment("registry_test_total", "result", "failure");
+        registry.increment("registry_test_total_x");
+
+        List<String> lines = familyLines("registry_test_total");
+
+        assertEquals(lines, Arrays.asList(
+                "# TYPE registry_test_total counter",
+                "registry_test_total 1",
+                "registry_test_total{result=\"failure\"} 1",
+                "# TYPE registry_test_total_x counter",
+                "registry_test_total_x 1"));
+    }
+
+    @Test
+    public void histogramsSharingPrefixHaveOneTypeLineEach() {
+        double[] bounds = {1};
+        registry.histogram("registry_test_seconds", bounds).observe(0.5);
+        registry.histogram("registry_test_seconds", bounds, "action", "run").observe(2);
+        registry.histogram("registry_test_seconds_x", bounds).observe(0.5);
+
+        List<String> lines = familyLines("registry_test_seconds");
+
+        assertEquals(Collections.frequency(lines, "# TYPE registry_test_seconds histogram"), 1);
+        assertEquals(Collections.frequency(lines, "# TYPE registry_test_seconds_x histogram"), 1);
+        // registry_test_seconds的所有序列都在registry_test_seconds_x的# TYPE之前
+        int next = lines.indexOf("# TYPE registry_test_seconds_x histogram");
+        for (int i = next + 1; i < lines.size(); i++) {
+            assertTrue(lines.get(i).startsWith("registry_test_seconds_x"), lines.get(i));
+        }
+        assertEquals(lines.size(), 1 + 2 * 4 + 1 + 4);
+    }
+
+    /**
+     * 其它测试也会向同一个注册表记录指标，只取以prefix开头的行
+     */
+    private List<String> familyLines(String prefix) {
+        List<String> lines = new ArrayList<>();
+        for (String line : registry.toPrometheus().split("\n")) {
+            if (line.startsWith(prefix) || line.startsWith("# TYPE " + prefix)) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
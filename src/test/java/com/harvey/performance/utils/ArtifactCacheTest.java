@@ -0,0 +1,104 @@
+package com.harvey.performance.utils;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * 使用 file: 地址验证未指定sha256的制品必须与官方发布的sha512一致才会被缓存
+ *
+ * @author harvey
+ */
+public class ArtifactCacheTest {
+
+    private Path root;
+
+    private File source;
+
+    private ArtifactCache cache;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("artifact-cache");
+        source = root.resolve("dist/apache-jmeter-5.2.tgz").toFile();
+        assertTrue(source.getParentFile().mkdirs());
+        Files.write(source.toPath(), "jmeter".getBytes(StandardCharsets.UTF_8));
+        cache = new ArtifactCache(root.resolve("cache").toString());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void acceptsFileMatchingPublishedSha512() throws Exception {
+        writeSha512(sha512("jmeter") + " *apache-jmeter-5.2.tgz\n");
+
+        String resolved = cache.resolve(artifact());
+
+        assertNotNull(resolved);
+        assertTrue(root.resolve("cache/apache-jmeter-5.2.tgz.sha256").toFile().isFile(), "官方校验通过后应记录摘要");
+    }
+
+    @Test
+    public void rejectsFileNotMatchingPublishedSha512() throws Exception {
+        writeSha512(sha512("other") + " *apache-jmeter-5.2.tgz\n");
+
+        assertNull(cache.resolve(artifact()));
+        assertFalse(root.resolve("cache/apache-jmeter-5.2.tgz").toFile().exists());
+        assertFalse(root.resolve("cache/apache-jmeter-5.2.tgz.sha256").toFile().exists());
+    }
+
+    @Test
+    public void rejectsFileWhenPublishedSha512Missing() {
+        assertNull(cache.resolve(artifact()), "无法获取官方sha512时不应信任下载的文件");
+        assertFalse(root.resolve("cache/apache-jmeter-5.2.tgz.sha256").toFile().exists());
+    }
+
+    @Test
+    public void parsesGpgPrintMdFormat() throws Exception {
+        String hex = sha512("jmeter");
+        StringBuilder grouped = new StringBuilder("apache-jmeter-5.2.tgz: ");
+        for (int i = 0; i < hex.length(); i += 8) {
+            grouped.append(hex.substring(i, i + 8).toUpperCase()).append(i == 56 ? "\n" : " ");
+        }
+
+        assertEquals(ArtifactCache.parseSha512(grouped.toString(), "apache-jmeter-5.2.tgz"), hex);
+    }
+
+    private ArtifactCache.Artifact artifact() {
+        String url = source.toURI().toString();
+        return new ArtifactCache.Artifact(url, null, url + ".sha512", null);
+    }
+
+    private void writeSha512(String content) throws IOException {
+        Files.write(new File(source.getPath() + ".sha512").toPath(), content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String sha512(String content) throws NoSuchAlgorithmException {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-512").digest(content.getBytes(StandardCharsets.UTF_8))) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+}